@@ -0,0 +1,357 @@
+/**
+ * Copyright 2009 University of Oxford
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *  - Neither the name of the University of Oxford nor the names of its 
+ *    contributors may be used to endorse or promote products derived from this 
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.sf.gaboto;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import net.sf.gaboto.time.TimeDimensionIndexer;
+
+import com.hp.hpl.jena.datatypes.TypeMapper;
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.rdf.model.AnonId;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.util.iterator.ExtendedIterator;
+
+import de.fuberlin.wiwiss.ng4j.NamedGraph;
+import de.fuberlin.wiwiss.ng4j.NamedGraphSet;
+import de.fuberlin.wiwiss.ng4j.impl.NamedGraphSetImpl;
+
+/**
+ * Reads and writes Gaboto in a compact binary format that loads without
+ * parsing RDF.
+ * 
+ * <p>
+ * A file starts with a dictionary of all nodes, followed by one block of
+ * dictionary encoded triples per named graph, a block for the cdg and the
+ * serialised time index:
+ * </p>
+ * 
+ * <pre>
+ * int magic, int version
+ * int nodes, per node: byte kind, strings
+ * int graphs, per graph: int name, int triples, 3 ints per triple
+ * int cdg triples, 3 ints per triple
+ * int index length (-1 if none), index bytes
+ * </pre>
+ * 
+ * <p>
+ * Strings are written as their length in bytes followed by their UTF-8
+ * bytes. Blank nodes keep their labels, so they may be shared by graphs. The
+ * file is read through a read-only memory mapping and is never modified by
+ * the Gaboto read from it. Files must be smaller than 2GB.
+ * </p>
+ * 
+ * @see GabotoFactory#getBinaryGaboto(File)
+ * @see Gaboto#BINARY_FILE_NAME
+ */
+public class BinaryStore {
+
+  private static final int MAGIC = 0x4742494E;
+
+  private static final int FORMAT_VERSION = 1;
+
+  private static final byte URI = 0;
+
+  private static final byte BLANK = 1;
+
+  private static final byte LITERAL = 2;
+
+  private static final String ENCODING = "UTF-8";
+
+  private BinaryStore() {
+  }
+
+  /**
+   * Writes Gaboto to a binary file.
+   * 
+   * @param gaboto
+   *          The Gaboto to write.
+   * @param file
+   *          The file to write to.
+   */
+  public static void write(Gaboto gaboto, File file) {
+    gaboto.getLock().readLock().lock();
+    try {
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+          new FileOutputStream(file)));
+      try {
+        write(gaboto, out);
+      } finally {
+        out.close();
+      }
+    } catch (IOException e) {
+      throw new GabotoRuntimeException(e);
+    } finally {
+      gaboto.getLock().readLock().unlock();
+    }
+  }
+
+  private static void write(Gaboto gaboto, DataOutputStream out)
+      throws IOException {
+    NamedGraphSet graphset = gaboto.getNamedGraphSet();
+    Graph cdg = gaboto.getContextDescriptionGraph().getGraph();
+
+    // dictionary
+    NodeDictionary nodes = new NodeDictionary();
+    List<NamedGraph> graphs = new ArrayList<NamedGraph>();
+    Iterator<?> it = graphset.listGraphs();
+    while (it.hasNext()) {
+      NamedGraph graph = (NamedGraph) it.next();
+      graphs.add(graph);
+      nodes.id(graph.getGraphName());
+      collect(graph, nodes);
+    }
+    collect(cdg, nodes);
+
+    out.writeInt(MAGIC);
+    out.writeInt(FORMAT_VERSION);
+    out.writeInt(nodes.size());
+    for (int i = 0; i < nodes.size(); i++)
+      writeNode(nodes.get(i), out);
+
+    // triples
+    out.writeInt(graphs.size());
+    for (NamedGraph graph : graphs) {
+      out.writeInt(nodes.lookup(graph.getGraphName()));
+      writeTriples(graph, nodes, out);
+    }
+    writeTriples(cdg, nodes, out);
+
+    // time index
+    TimeDimensionIndexer idx = null;
+    try {
+      idx = gaboto.getTimeDimensionIndexer();
+    } catch (NoTimeIndexSetException e) {
+    }
+    if (idx == null)
+      out.writeInt(-1);
+    else {
+      ByteArrayOutputStream index = new ByteArrayOutputStream();
+      idx.write(index, 0);
+      out.writeInt(index.size());
+      index.writeTo(out);
+    }
+  }
+
+  private static void collect(Graph graph, NodeDictionary nodes) {
+    ExtendedIterator<Triple> it = graph.find(Node.ANY, Node.ANY, Node.ANY);
+    try {
+      while (it.hasNext()) {
+        Triple t = it.next();
+        nodes.id(t.getSubject());
+        nodes.id(t.getPredicate());
+        nodes.id(t.getObject());
+      }
+    } finally {
+      it.close();
+    }
+  }
+
+  private static void writeTriples(Graph graph, NodeDictionary nodes,
+      DataOutputStream out) throws IOException {
+    // the size of some graphs is only an estimate
+    List<Triple> triples = new ArrayList<Triple>();
+    ExtendedIterator<Triple> it = graph.find(Node.ANY, Node.ANY, Node.ANY);
+    try {
+      while (it.hasNext())
+        triples.add(it.next());
+    } finally {
+      it.close();
+    }
+    out.writeInt(triples.size());
+    for (Triple t : triples) {
+      out.writeInt(nodes.lookup(t.getSubject()));
+      out.writeInt(nodes.lookup(t.getPredicate()));
+      out.writeInt(nodes.lookup(t.getObject()));
+    }
+  }
+
+  private static void writeNode(Node node, DataOutputStream out)
+      throws IOException {
+    if (node.isURI()) {
+      out.writeByte(URI);
+      writeString(node.getURI(), out);
+    } else if (node.isBlank()) {
+      out.writeByte(BLANK);
+      writeString(node.getBlankNodeLabel(), out);
+    } else if (node.isLiteral()) {
+      out.writeByte(LITERAL);
+      writeString(node.getLiteralLexicalForm(), out);
+      String lang = node.getLiteralLanguage();
+      writeString(lang == null ? "" : lang, out);
+      String datatype = node.getLiteralDatatypeURI();
+      writeString(datatype == null ? "" : datatype, out);
+    } else
+      throw new GabotoRuntimeException("Cannot store node " + node);
+  }
+
+  private static void writeString(String s, DataOutputStream out)
+      throws IOException {
+    byte[] bytes = s.getBytes(ENCODING);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  /**
+   * Reads Gaboto from a binary file.
+   * 
+   * @param file
+   *          The file to read.
+   * @return A new in-memory Gaboto.
+   */
+  public static Gaboto read(File file) {
+    try {
+      RandomAccessFile raf = new RandomAccessFile(file, "r");
+      try {
+        FileChannel channel = raf.getChannel();
+        ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+            channel.size());
+        return read(buffer, file);
+      } finally {
+        raf.close();
+      }
+    } catch (IOException e) {
+      throw new GabotoRuntimeException(e);
+    }
+  }
+
+  private static Gaboto read(ByteBuffer in, File file) throws IOException {
+    if (in.getInt() != MAGIC || in.getInt() != FORMAT_VERSION)
+      throw new GabotoRuntimeException(file + " is not a binary Gaboto store.");
+
+    Node[] nodes = new Node[in.getInt()];
+    for (int i = 0; i < nodes.length; i++)
+      nodes[i] = readNode(in);
+
+    NamedGraphSet graphset = new NamedGraphSetImpl();
+    int graphs = in.getInt();
+    for (int i = 0; i < graphs; i++) {
+      NamedGraph graph = graphset.createGraph(nodes[in.getInt()]);
+      graph.getBulkUpdateHandler().add(readTriples(in, nodes));
+    }
+    Model cdg = ModelFactory.createDefaultModel();
+    cdg.getGraph().getBulkUpdateHandler().add(readTriples(in, nodes));
+
+    Gaboto gaboto = new Gaboto(cdg, graphset);
+    // the decoded nodes are unique already, the shared ones become canonical
+    for (Node node : nodes)
+      gaboto.getNodeDictionary().intern(node);
+    int length = in.getInt();
+    if (length < 0)
+      return gaboto;
+
+    byte[] index = new byte[length];
+    in.get(index);
+    TimeDimensionIndexer idx = new TimeDimensionIndexer();
+    if (idx.read(new ByteArrayInputStream(index), 0))
+      gaboto.setTimeDimensionIndexer(idx);
+    else {
+      gaboto.setTimeDimensionIndexer(idx);
+      gaboto.recreateTimeDimensionIndex();
+    }
+    return gaboto;
+  }
+
+  private static Triple[] readTriples(ByteBuffer in, Node[] nodes) {
+    Triple[] triples = new Triple[in.getInt()];
+    for (int i = 0; i < triples.length; i++)
+      triples[i] = new Triple(nodes[in.getInt()], nodes[in.getInt()],
+          nodes[in.getInt()]);
+    return triples;
+  }
+
+  private static Node readNode(ByteBuffer in) throws IOException {
+    byte kind = in.get();
+    switch (kind) {
+    case URI:
+      return Node.createURI(readString(in));
+    case BLANK:
+      return Node.createAnon(new AnonId(readString(in)));
+    case LITERAL:
+      String lex = readString(in);
+      String lang = readString(in);
+      String datatype = readString(in);
+      if (datatype.length() > 0)
+        return Node.createLiteral(lex, null, TypeMapper.getInstance()
+            .getSafeTypeByName(datatype));
+      return Node.createLiteral(lex, lang, false);
+    default:
+      throw new IOException("Unknown node kind " + kind);
+    }
+  }
+
+  private static String readString(ByteBuffer in) throws IOException {
+    byte[] bytes = new byte[in.getInt()];
+    in.get(bytes);
+    return new String(bytes, ENCODING);
+  }
+
+  /**
+   * Converts a store written by {@link Gaboto#persistToDisk(String)} into a
+   * binary file.
+   * 
+   * @param directoryName
+   *          The directory holding the graphs and cdg files.
+   * @param file
+   *          The binary file to write.
+   */
+  public static void convertFromRDF(String directoryName, File file) {
+    write(GabotoFactory.readPersistedGaboto(directoryName,
+        Gaboto.GRAPH_FILE_NAME, Gaboto.CDG_FILE_NAME), file);
+  }
+
+  /**
+   * Converts a binary file into the graphs and cdg files written by
+   * {@link Gaboto#persistToDisk(String)}.
+   * 
+   * @param file
+   *          The binary file to read.
+   * @param directoryName
+   *          The directory to write the graphs and cdg files to.
+   */
+  public static void convertToRDF(File file, String directoryName) {
+    read(file).persistToDisk(directoryName);
+  }
+}
@@ -0,0 +1,578 @@
+/**
+ * Copyright 2009 University of Oxford
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *  - Neither the name of the University of Oxford nor the names of its 
+ *    contributors may be used to endorse or promote products derived from this 
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.sf.gaboto;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import net.sf.gaboto.event.BatchGabotoEvent;
+import net.sf.gaboto.event.GabotoEvent;
+import net.sf.gaboto.event.InsertionGabotoEvent;
+import net.sf.gaboto.event.RemovalGabotoEvent;
+import net.sf.gaboto.time.TimeSpan;
+
+import org.apache.log4j.Logger;
+
+import com.hp.hpl.jena.datatypes.TypeMapper;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.rdf.model.AnonId;
+
+import de.fuberlin.wiwiss.ng4j.Quad;
+
+/**
+ * An append-only log of the changes made to Gaboto since its last checkpoint.
+ * 
+ * <p>
+ * Attached to Gaboto by {@link Gaboto#setJournal(ChangeJournal)}, the journal
+ * writes one line per added or removed triple and forces it to disk before
+ * the change is applied. If the journal cannot be written, the change fails
+ * and so do all later ones until the next checkpoint. A store on disk then consists of the files written
+ * by the last {@link Gaboto#checkpoint(String)}, which empties the journal,
+ * and the journal itself, which
+ * {@link GabotoFactory#readPersistedGaboto(String, String, String)} replays
+ * on load. Persisting a large Gaboto for every change is thus no longer
+ * necessary.
+ * </p>
+ * 
+ * <p>
+ * Each line holds one change in a notation close to N-Triples:
+ * </p>
+ * 
+ * <pre>
+ * A &lt;timespan&gt; &lt;s&gt; &lt;p&gt; &lt;o&gt; .   triple added
+ * R &lt;timespan&gt; &lt;s&gt; &lt;p&gt; &lt;o&gt; .   triple removed
+ * Q &lt;g&gt; &lt;s&gt; &lt;p&gt; &lt;o&gt; .          quad (pattern) removed
+ * </pre>
+ * 
+ * <p>
+ * The time span is written as <code>-</code> for the global knowledge graph
+ * or as its six fields separated by <code>/</code>, <code>_</code> standing
+ * for unset fields. Wildcards are written as <code>*</code>. Line breaks in
+ * literals are escaped, so a last line without its newline was only partly
+ * written when the process died and is ignored on replay.
+ * </p>
+ * 
+ * <p>
+ * Blank nodes are journaled with their labels. As labels change when the
+ * checkpoint is read, only blank nodes created since the checkpoint can be
+ * replayed. A change mentioning a blank node that was already part of the
+ * checkpoint, such as the removal of a bean, therefore makes Gaboto write a
+ * new checkpoint right after applying it. Entities are always named by URIs.
+ * </p>
+ * 
+ * @see GabotoFactory#getJournaledGaboto(String)
+ */
+public class ChangeJournal {
+
+  private static Logger logger = Logger.getLogger(ChangeJournal.class.getName());
+
+  private static final String ENCODING = "UTF-8";
+
+  private File file;
+
+  private FileOutputStream out;
+
+  private Writer writer;
+
+  private boolean failed;
+
+  /** Blank nodes created since the last checkpoint. */
+  private Set<Node> created = new HashSet<Node>();
+
+  private boolean replayable = true;
+
+  private Timer compactionTimer;
+
+  /**
+   * Opens a journal, appending to the file if it exists.
+   * 
+   * @param file
+   *          The journal file.
+   */
+  public ChangeJournal(File file) {
+    this.file = file;
+    open(true);
+  }
+
+  private void open(boolean append) {
+    try {
+      out = new FileOutputStream(file, append);
+      writer = new BufferedWriter(new OutputStreamWriter(out, ENCODING));
+    } catch (IOException e) {
+      throw new GabotoRuntimeException(e);
+    }
+    failed = false;
+  }
+
+  /**
+   * Writes a change to the journal and forces it to disk. Called by Gaboto,
+   * under its write lock, before the change is applied.
+   * 
+   * <p>
+   * Once writing failed, the end of the file is undefined, so every later
+   * change is refused until {@link #truncate()} starts the journal afresh.
+   * </p>
+   * 
+   * @param e
+   *          The change.
+   * @param gaboto
+   *          The Gaboto the change is about to be applied to.
+   */
+  synchronized void write(GabotoEvent e, Gaboto gaboto) {
+    if (writer == null)
+      throw new IllegalStateException("Journal " + file + " has been closed.");
+    if (failed)
+      throw new IllegalStateException("Journal " + file
+          + " could not be written and awaits a checkpoint.");
+    try {
+      append(e, gaboto);
+      writer.flush();
+      out.getChannel().force(false);
+    } catch (IOException ex) {
+      failed = true;
+      throw new GabotoRuntimeException(ex);
+    }
+  }
+
+  /**
+   * Tells whether everything written since the last checkpoint can be
+   * replayed. If not, Gaboto has to be checkpointed.
+   * 
+   * @return False if a change mentioned a blank node read from the checkpoint.
+   */
+  public synchronized boolean isReplayable() {
+    return replayable;
+  }
+
+  private void append(GabotoEvent e, Gaboto gaboto) throws IOException {
+    StringBuilder line = new StringBuilder();
+    if (e instanceof BatchGabotoEvent) {
+      for (GabotoEvent event : ((BatchGabotoEvent) e).getEvents())
+        append(event, gaboto);
+      return;
+    } else if (e instanceof InsertionGabotoEvent) {
+      InsertionGabotoEvent event = (InsertionGabotoEvent) e;
+      line.append("A ");
+      encode(event.getTimespan(), line);
+      encode(event.getTriple(), line);
+      checkBlankNodes(event.getTriple(), true, gaboto);
+    } else if (e instanceof RemovalGabotoEvent) {
+      RemovalGabotoEvent event = (RemovalGabotoEvent) e;
+      if (event.getQuad() != null) {
+        line.append("Q ");
+        encode(event.getQuad().getGraphName(), line);
+        encode(event.getQuad().getTriple(), line);
+        checkBlankNodes(event.getQuad().getTriple(), false, gaboto);
+      } else {
+        line.append("R ");
+        encode(event.getTimespan(), line);
+        encode(event.getTriple(), line);
+        checkBlankNodes(event.getTriple(), false, gaboto);
+      }
+    } else
+      throw new GabotoRuntimeException("Unexpected update type: " + e.getClass());
+    line.append(".\n");
+    writer.write(line.toString());
+  }
+
+  /**
+   * Notes the blank nodes an addition creates and whether the change refers
+   * to blank nodes of the checkpoint, whose labels differ after a restart.
+   */
+  private void checkBlankNodes(Triple t, boolean addition, Gaboto gaboto) {
+    checkBlankNode(t.getSubject(), addition, gaboto);
+    checkBlankNode(t.getObject(), addition, gaboto);
+  }
+
+  private void checkBlankNode(Node node, boolean addition, Gaboto gaboto) {
+    if (!replayable || node == null || !node.isBlank()
+        || created.contains(node))
+      return;
+    if (addition && !gaboto.containsBlankNode(node))
+      created.add(node);
+    else
+      replayable = false;
+  }
+
+  /**
+   * Empties the journal. Called once everything it contains has been
+   * checkpointed.
+   */
+  public synchronized void truncate() {
+    if (writer == null)
+      throw new IllegalStateException("Journal " + file + " has been closed.");
+    try {
+      writer.close();
+    } catch (IOException e) {
+      if (!failed)
+        throw new GabotoRuntimeException(e);
+      // a failed journal may not flush, but is discarded anyway
+      try {
+        out.close();
+      } catch (IOException ex) {
+      }
+    }
+    open(false);
+    created.clear();
+    replayable = true;
+  }
+
+  /**
+   * Stops compaction and closes the journal file.
+   */
+  public synchronized void close() {
+    if (compactionTimer != null) {
+      compactionTimer.cancel();
+      compactionTimer = null;
+    }
+    if (writer == null)
+      return;
+    try {
+      writer.close();
+    } catch (IOException e) {
+      throw new GabotoRuntimeException(e);
+    } finally {
+      writer = null;
+    }
+  }
+
+  /**
+   * Periodically checks the size of the journal in the background and
+   * checkpoints Gaboto once the journal has grown too long.
+   * 
+   * @param gaboto
+   *          The Gaboto this journal is attached to.
+   * @param directory
+   *          The directory Gaboto is persisted in.
+   * @param period
+   *          The time between two checks in milliseconds.
+   * @param maxLength
+   *          The journal size in bytes above which a checkpoint is written.
+   */
+  public synchronized void scheduleCompaction(final Gaboto gaboto,
+      final String directory, long period, final long maxLength) {
+    if (compactionTimer != null)
+      compactionTimer.cancel();
+    compactionTimer = new Timer("Gaboto journal compaction", true);
+    compactionTimer.schedule(new TimerTask() {
+      public void run() {
+        if (file.length() <= maxLength)
+          return;
+        try {
+          gaboto.checkpoint(directory);
+        } catch (RuntimeException e) {
+          logger.error("Could not checkpoint " + directory, e);
+        }
+      }
+    }, period, period);
+  }
+
+  /**
+   * @return The journal file.
+   */
+  public File getFile() {
+    return file;
+  }
+
+  /**
+   * Applies the changes recorded in a journal file to Gaboto.
+   * 
+   * @param file
+   *          The journal file.
+   * @param gaboto
+   *          The Gaboto holding the matching checkpoint.
+   * @return The number of changes applied.
+   */
+  public static int replay(File file, Gaboto gaboto) {
+    BufferedReader reader;
+    try {
+      reader = new BufferedReader(new InputStreamReader(new FileInputStream(
+          file), ENCODING));
+    } catch (FileNotFoundException e) {
+      return 0;
+    } catch (IOException e) {
+      throw new GabotoRuntimeException(e);
+    }
+
+    int count = 0;
+    gaboto.getLock().writeLock().lock();
+    try {
+      StringBuilder line = new StringBuilder();
+      int lineNumber = 0;
+      int c;
+      while ((c = reader.read()) != -1) {
+        if (c != '\n') {
+          line.append((char) c);
+          continue;
+        }
+        lineNumber++;
+        if (line.length() > 0) {
+          try {
+            apply(line.toString(), gaboto);
+          } catch (IllegalArgumentException e) {
+            throw new GabotoRuntimeException("Line " + lineNumber
+                + " of journal " + file + " is corrupt: " + line, e);
+          }
+          count++;
+        }
+        line.setLength(0);
+      }
+      // only a line followed by its newline was written completely
+      if (line.length() > 0)
+        logger.warn("Ignoring incomplete line " + (lineNumber + 1)
+            + " of journal " + file);
+    } catch (IOException e) {
+      throw new GabotoRuntimeException(e);
+    } finally {
+      gaboto.getLock().writeLock().unlock();
+      try {
+        reader.close();
+      } catch (IOException e) {
+      }
+    }
+    return count;
+  }
+
+  private static void apply(String line, Gaboto gaboto) {
+    int[] pos = new int[] { 2 };
+    char op = line.charAt(0);
+    if (op == 'Q') {
+      Node g = decodeNode(line, pos);
+      Triple t = decodeTriple(line, pos);
+      gaboto.remove(new Quad(g, t));
+      return;
+    }
+
+    TimeSpan ts = decodeTimeSpan(line, pos);
+    Triple t = decodeTriple(line, pos);
+    if (op == 'A') {
+      if (ts == null)
+        gaboto.add(t);
+      else
+        gaboto.add(ts, t);
+    } else if (op == 'R') {
+      if (ts == null)
+        gaboto.remove(t);
+      else
+        gaboto.remove(ts, t);
+    } else
+      throw new IllegalArgumentException("Unknown operation " + op);
+  }
+
+  private static void encode(TimeSpan ts, StringBuilder out) {
+    if (ts == null) {
+      out.append("- ");
+      return;
+    }
+    Integer[] fields = new Integer[] { ts.getStartYear(), ts.getStartMonth(),
+        ts.getStartDay(), ts.getDurationYear(), ts.getDurationMonth(),
+        ts.getDurationDay() };
+    for (int i = 0; i < fields.length; i++) {
+      if (i > 0)
+        out.append('/');
+      out.append(fields[i] == null ? "_" : fields[i].toString());
+    }
+    out.append(' ');
+  }
+
+  private static TimeSpan decodeTimeSpan(String line, int[] pos) {
+    String token = nextToken(line, pos);
+    if (token.equals("-"))
+      return null;
+    String[] parts = token.split("/");
+    if (parts.length != 6)
+      throw new IllegalArgumentException("Bad time span " + token);
+    Integer[] fields = new Integer[6];
+    for (int i = 0; i < 6; i++)
+      fields[i] = parts[i].equals("_") ? null : Integer.valueOf(parts[i]);
+    return new TimeSpan(fields[0], fields[1], fields[2], fields[3], fields[4],
+        fields[5]);
+  }
+
+  private static void encode(Triple t, StringBuilder out) {
+    encode(t.getSubject(), out);
+    encode(t.getPredicate(), out);
+    encode(t.getObject(), out);
+  }
+
+  private static Triple decodeTriple(String line, int[] pos) {
+    Node s = decodeNode(line, pos);
+    Node p = decodeNode(line, pos);
+    Node o = decodeNode(line, pos);
+    return new Triple(s, p, o);
+  }
+
+  private static void encode(Node node, StringBuilder out) {
+    if (node == null || !node.isConcrete()) {
+      out.append('*');
+    } else if (node.isURI()) {
+      out.append('<');
+      escape(node.getURI(), '>', out);
+      out.append('>');
+    } else if (node.isBlank()) {
+      out.append("_:");
+      escape(node.getBlankNodeLabel(), ' ', out);
+    } else {
+      out.append('"');
+      escape(node.getLiteralLexicalForm(), '"', out);
+      out.append('"');
+      String lang = node.getLiteralLanguage();
+      String datatype = node.getLiteralDatatypeURI();
+      if (lang != null && lang.length() > 0)
+        out.append('@').append(lang);
+      else if (datatype != null) {
+        out.append("^^<");
+        escape(datatype, '>', out);
+        out.append('>');
+      }
+    }
+    out.append(' ');
+  }
+
+  private static Node decodeNode(String line, int[] pos) {
+    int i = pos[0];
+    if (i >= line.length())
+      throw new IllegalArgumentException("Unexpected end of line");
+    char c = line.charAt(i);
+    Node node;
+    if (c == '*') {
+      pos[0] = i + 1;
+      node = Node.ANY;
+    } else if (c == '<') {
+      pos[0] = i + 1;
+      node = Node.createURI(unescape(line, pos, '>'));
+    } else if (c == '_') {
+      pos[0] = i + 2;
+      node = Node.createAnon(new AnonId(unescape(line, pos, ' ')));
+      pos[0]--;
+    } else if (c == '"') {
+      pos[0] = i + 1;
+      String lex = unescape(line, pos, '"');
+      if (pos[0] < line.length() && line.charAt(pos[0]) == '@') {
+        int end = line.indexOf(' ', pos[0]);
+        String lang = line.substring(pos[0] + 1, end);
+        pos[0] = end;
+        node = Node.createLiteral(lex, lang, false);
+      } else if (line.startsWith("^^<", pos[0])) {
+        pos[0] += 3;
+        String datatype = unescape(line, pos, '>');
+        node = Node.createLiteral(lex, null, TypeMapper.getInstance()
+            .getSafeTypeByName(datatype));
+      } else
+        node = Node.createLiteral(lex);
+    } else
+      throw new IllegalArgumentException("Unexpected character " + c);
+
+    // skip separator
+    if (pos[0] >= line.length() || line.charAt(pos[0]) != ' ')
+      throw new IllegalArgumentException("Expected space at " + pos[0]);
+    pos[0]++;
+    return node;
+  }
+
+  private static String nextToken(String line, int[] pos) {
+    int end = line.indexOf(' ', pos[0]);
+    if (end < 0)
+      throw new IllegalArgumentException("Unexpected end of line");
+    String token = line.substring(pos[0], end);
+    pos[0] = end + 1;
+    return token;
+  }
+
+  private static void escape(String s, char delimiter, StringBuilder out) {
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (c == '\\')
+        out.append("\\\\");
+      else if (c == '\n')
+        out.append("\\n");
+      else if (c == '\r')
+        out.append("\\r");
+      else if (c == '\t')
+        out.append("\\t");
+      else if (c == delimiter || c < 0x20)
+        out.append(String.format("\\u%04X", (int) c));
+      else
+        out.append(c);
+    }
+  }
+
+  /**
+   * Reads up to (and past) the delimiter, resolving escapes.
+   */
+  private static String unescape(String line, int[] pos, char delimiter) {
+    StringBuilder out = new StringBuilder();
+    int i = pos[0];
+    while (true) {
+      if (i >= line.length())
+        throw new IllegalArgumentException("Missing " + delimiter);
+      char c = line.charAt(i++);
+      if (c == delimiter)
+        break;
+      if (c != '\\') {
+        out.append(c);
+        continue;
+      }
+      char e = line.charAt(i++);
+      switch (e) {
+      case 'n':
+        out.append('\n');
+        break;
+      case 'r':
+        out.append('\r');
+        break;
+      case 't':
+        out.append('\t');
+        break;
+      case 'u':
+        out.append((char) Integer.parseInt(line.substring(i, i + 4), 16));
+        i += 4;
+        break;
+      default:
+        out.append(e);
+      }
+    }
+    pos[0] = i;
+    return out.toString();
+  }
+}
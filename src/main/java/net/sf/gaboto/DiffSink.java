@@ -0,0 +1,76 @@
+/**
+ * Copyright 2009 University of Oxford
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *  - Neither the name of the University of Oxford nor the names of its 
+ *    contributors may be used to endorse or promote products derived from this 
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.sf.gaboto;
+
+import net.sf.gaboto.time.TimeSpan;
+
+import com.hp.hpl.jena.graph.Triple;
+
+/**
+ * Receives the differences found by {@link GabotoDiff}, graph by graph.
+ * 
+ * <p>
+ * For every graph that differs, {@link #startGraph(String, TimeSpan)} is
+ * called, followed by the triples to add and to remove to turn the first
+ * graph into the second, followed by {@link #endGraph()}.
+ * </p>
+ * 
+ * @see GabotoBatch
+ */
+public interface DiffSink {
+
+  /**
+   * Called before the differences of a graph are reported.
+   * 
+   * @param graphURI
+   *          The graph's URI, or null when comparing snapshots.
+   * @param ts
+   *          The graph's time span, or null for the global knowledge graph
+   *          and when comparing snapshots.
+   */
+  public void startGraph(String graphURI, TimeSpan ts);
+
+  /**
+   * @param triple
+   *          A triple only contained in the second graph.
+   */
+  public void added(Triple triple);
+
+  /**
+   * @param triple
+   *          A triple only contained in the first graph.
+   */
+  public void removed(Triple triple);
+
+  /**
+   * Called once all differences of a graph have been reported.
+   */
+  public void endGraph();
+}
@@ -0,0 +1,212 @@
+/**
+ * Copyright 2009 University of Oxford
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *  - Neither the name of the University of Oxford nor the names of its 
+ *    contributors may be used to endorse or promote products derived from this 
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.sf.gaboto;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import net.sf.gaboto.time.TimeSpan;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.vocabulary.RDF;
+
+import de.fuberlin.wiwiss.ng4j.NamedGraphSet;
+import de.fuberlin.wiwiss.ng4j.Quad;
+
+/**
+ * An in-memory index of the entities stored in Gaboto.
+ * 
+ * <p>
+ * An entity is anything with an RDF type. For every entity the catalogue
+ * records its type and the graph holding the type triple, which describes the
+ * entity's life time. This turns lookups such as
+ * {@link Gaboto#containsEntity(String)}, {@link Gaboto#getTypeOf(String)} and
+ * {@link Gaboto#getEntitysLifetime(String)} from a search through all named
+ * graphs into a map lookup.
+ * </p>
+ * 
+ * <p>
+ * Gaboto keeps the catalogue in sync by recording type triples as they are
+ * added through {@link #add(Quad)}, and by calling {@link #refresh(String)}
+ * whenever type triples are removed. Entities with more than one
+ * type triple are corrupt; the catalogue counts their type triples so that
+ * this can be reported.
+ * </p>
+ */
+class EntityCatalogue {
+
+  private static final Node TYPE = RDF.type.asNode();
+
+  static class Entry {
+    private Node type;
+    private Node graph;
+    private int typeCount;
+    private TimeSpan lifetime;
+
+    Entry(Node type, Node graph) {
+      this.type = type;
+      this.graph = graph;
+      this.typeCount = 1;
+    }
+
+    /**
+     * @return the object of the (first) type triple
+     */
+    Node getType() {
+      return type;
+    }
+
+    /**
+     * @return the name of the graph holding the (first) type triple
+     */
+    Node getGraph() {
+      return graph;
+    }
+
+    /**
+     * @return whether the entity has more than one type triple
+     */
+    boolean isConflicting() {
+      return typeCount > 1;
+    }
+  }
+
+  private NamedGraphSet graphset;
+
+  private Map<String, Entry> entries = new HashMap<String, Entry>();
+
+  /**
+   * Creates a catalogue of all entities in the graph set.
+   * 
+   * @param graphset
+   *          The graph set.
+   */
+  EntityCatalogue(NamedGraphSet graphset) {
+    this.graphset = graphset;
+    Iterator<?> it = graphset.findQuads(Node.ANY, Node.ANY, TYPE, Node.ANY);
+    while (it.hasNext())
+      record((Quad) it.next());
+  }
+
+  /**
+   * Records a type triple that its graph did not contain yet, without
+   * searching the graph set.
+   * 
+   * @param q
+   *          The type triple and the graph it is added to.
+   */
+  void add(Quad q) {
+    record(q);
+  }
+
+  /**
+   * Rereads the type triples of one entity. Must be called whenever one of
+   * them was added or removed.
+   * 
+   * @param uri
+   *          The entity's URI.
+   */
+  void refresh(String uri) {
+    entries.remove(uri);
+    Iterator<?> it = graphset.findQuads(Node.ANY, Node.createURI(uri), TYPE,
+        Node.ANY);
+    while (it.hasNext())
+      record((Quad) it.next());
+  }
+
+  /**
+   * @param uri
+   *          The entity's URI.
+   * @return the entity's entry or null if there is no such entity
+   */
+  Entry get(String uri) {
+    return entries.get(uri);
+  }
+
+  /**
+   * @param uri
+   *          The entity's URI.
+   * @return whether there is such an entity
+   */
+  boolean contains(String uri) {
+    return entries.containsKey(uri);
+  }
+
+  /**
+   * Returns an entity's life time, which is the time span of the graph
+   * holding its type triple.
+   * 
+   * @param entry
+   *          The entity's entry.
+   * @param gaboto
+   *          The Gaboto the catalogue belongs to.
+   * @return the life time
+   */
+  TimeSpan getLifetime(Entry entry, Gaboto gaboto) {
+    if (entry.lifetime == null)
+      entry.lifetime = TimeSpan.createFromGraphName(entry.graph.getURI(), gaboto);
+    return entry.lifetime;
+  }
+
+  /**
+   * @return the URIs of all entities
+   */
+  Set<String> getURIs() {
+    return entries.keySet();
+  }
+
+  /**
+   * @return the number of entities
+   */
+  int size() {
+    return entries.size();
+  }
+
+  /**
+   * Tests whether a triple pattern may match type triples and so may affect
+   * the catalogue.
+   */
+  static boolean isTypeTriple(Node predicate) {
+    return !predicate.isConcrete() || TYPE.equals(predicate);
+  }
+
+  private void record(Quad q) {
+    Node subject = q.getSubject();
+    if (!subject.isURI())
+      return;
+    Entry e = entries.get(subject.getURI());
+    if (e == null)
+      entries.put(subject.getURI(), new Entry(q.getObject(), q.getGraphName()));
+    else
+      e.typeCount++;
+  }
+}
@@ -31,39 +31,70 @@
  */
 package net.sf.gaboto;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.StringReader;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
-
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import net.sf.gaboto.event.AsyncUpdateDispatcher;
+import net.sf.gaboto.event.BatchGabotoEvent;
 import net.sf.gaboto.event.GabotoEvent;
 import net.sf.gaboto.event.InsertionGabotoEvent;
 import net.sf.gaboto.event.RemovalGabotoEvent;
 import net.sf.gaboto.event.UpdateListener;
 import net.sf.gaboto.node.GabotoEntity;
 import net.sf.gaboto.node.GabotoTimeBasedEntity;
+import net.sf.gaboto.time.PackedTime;
 import net.sf.gaboto.time.TimeDimensionIndexer;
 import net.sf.gaboto.time.TimeInstant;
 import net.sf.gaboto.time.TimeSpan;
+import net.sf.gaboto.util.FileUtils;
+import net.sf.gaboto.vocabulary.GabotoVocab;
 import net.sf.gaboto.vocabulary.RDFContext;
 import net.sf.gaboto.vocabulary.RDFGraph;
 import net.sf.gaboto.vocabulary.TimeVocab;
 
 import com.hp.hpl.jena.datatypes.xsd.XSDDatatype;
+import com.hp.hpl.jena.graph.Factory;
 import com.hp.hpl.jena.graph.Graph;
 import com.hp.hpl.jena.graph.Node;
 import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.rdf.model.Literal;
 import com.hp.hpl.jena.rdf.model.Model;
 import com.hp.hpl.jena.rdf.model.ModelFactory;
 import com.hp.hpl.jena.rdf.model.Property;
+import com.hp.hpl.jena.rdf.model.RDFNode;
 import com.hp.hpl.jena.rdf.model.Resource;
 import com.hp.hpl.jena.rdf.model.Statement;
 import com.hp.hpl.jena.rdf.model.StmtIterator;
@@ -115,26 +146,76 @@ public class Gaboto {
   
   public final static String GRAPH_FILE_NAME = "graphs.rdf"; 
   public final static String CDG_FILE_NAME   = "cdg.xml"; 
+  public final static String TIME_INDEX_FILE_NAME = "timeindex.bin"; 
+  public final static String HIGHEST_ID_FILE_NAME = "highestid.txt"; 
+  public final static String JOURNAL_FILE_NAME = "journal.log"; 
+  public final static String BINARY_FILE_NAME = "gaboto.bin"; 
   
   public final static String GRAPH_LANGUAGE = "TRIG"; 
   public final static String CDG_LANGUAGE   = "RDF/XML"; 
 
   /**
-   * The next entity id.
+   * Snapshots are filled by copying every triple of the selected graphs into
+   * a fresh model. 
+   */
+  public final static int SNAPSHOT_MODE_COPY = 1;
+
+  /**
+   * Snapshots are read-only union views over the selected graphs and the
+   * global knowledge graph. Creating one costs O(number of graphs).
+   */
+  public final static int SNAPSHOT_MODE_VIEW = 2;
+
+  /**
+   * Selects the graphs whose time span contains the whole of a time span.
+   */
+  public final static int TIME_MATCH_CONTAINS = 1;
+
+  /**
+   * Selects the graphs whose time span shares at least one instant with a
+   * time span.
+   */
+  public final static int TIME_MATCH_OVERLAPS = 2;
+
+  /**
+   * Selects the graphs whose time span lies within a time span.
+   */
+  public final static int TIME_MATCH_DURING = 3;
+
+  /**
+   * The highest id of an empty store; the first id handed out is one more.
+   */
+  public final static long INITIAL_ID = 23232322;
+
+  /**
+   * Property of the global knowledge graph under which the highest id handed
+   * out used to be recorded in the cdg. It is still read, but moved to
+   * {@link #HIGHEST_ID_FILE_NAME} by the next checkpoint, so that the cdg only
+   * describes the data.
    */
-  long id = 23232322;
+  public final static String HIGHEST_ID_PROPERTY_URI = GabotoVocab.NS + "highestId";
+
+  /**
+   * The highest id handed out or found in the data so far.
+   */
+  private final AtomicLong id = new AtomicLong(INITIAL_ID);
 
   /**
    * @return the id
    */
   public long getCurrentHighestId() {
-    return id;
+    return id.get();
   }
 
   /**
-   * Update listeners.
+   * Update listeners. Listeners may detach themselves while being informed.
    */
-  private List<UpdateListener> updateListeners = new ArrayList<UpdateListener>();
+  private List<UpdateListener> updateListeners = new CopyOnWriteArrayList<UpdateListener>();
+
+  /**
+   * Commit hooks, run after every change or batch.
+   */
+  private List<Runnable> commitHooks = new CopyOnWriteArrayList<Runnable>();
 
   /**
    * Named graph set. 
@@ -146,6 +227,86 @@ public class Gaboto {
 
   private TimeDimensionIndexer timeDimensionIndexer;
   
+  private int snapshotMode = SNAPSHOT_MODE_COPY;
+
+  /**
+   * Guards the data. Mutators take the write lock, readers the read lock.
+   */
+  private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+  /**
+   * Incremented with every change to the data, guarded by {@link #lock}.
+   */
+  private long version = 0;
+
+  /**
+   * Type and life time of every entity, guarded by {@link #lock}.
+   */
+  private EntityCatalogue entityCatalogue;
+
+  /**
+   * Snapshots for time instants, keyed by the set of graphs they were built
+   * from, so that all instants within one elementary time period share a
+   * snapshot. 
+   */
+  private SnapshotCache snapshotCache = new SnapshotCache();
+
+  /**
+   * Snapshots being built for {@link #getSnapshot(TimeInstant)}, by cache key
+   * and stamp.
+   */
+  private final ConcurrentHashMap<String, FutureTask<GabotoSnapshot>> snapshotsInFlight = new ConcurrentHashMap<String, FutureTask<GabotoSnapshot>>();
+
+  /**
+   * Records changes since the last checkpoint, may be null.
+   */
+  private ChangeJournal journal;
+
+  /**
+   * URIs of the graphs changed since the last segmented checkpoint, guarded
+   * by {@link #lock}.
+   */
+  private final Set<String> dirtyGraphs = new HashSet<String>();
+
+  /**
+   * Whether the cdg changed since the last segmented checkpoint.
+   */
+  private boolean cdgDirty = true;
+
+  /**
+   * Where the last segmented checkpoint was written, null if everything needs
+   * to be written.
+   */
+  private File segmentDirectory;
+
+  /**
+   * Digests of the named graphs by URI. A graph's digest is computed when
+   * first asked for and maintained from then on. Changed under the write
+   * lock, filled in under the read lock.
+   */
+  private final ConcurrentHashMap<String, GraphDigest> digests = new ConcurrentHashMap<String, GraphDigest>();
+
+  /**
+   * Digest of the cdg, null if it needs to be computed.
+   */
+  private volatile GraphDigest cdgDigest;
+
+  /**
+   * Number of changes to each named graph. Counts are never reset, so that
+   * they can stamp cached snapshots. Changed under the write lock.
+   */
+  private final ConcurrentHashMap<String, Long> modifications = new ConcurrentHashMap<String, Long>();
+
+  /**
+   * Number of changes that may have touched any graph, such as bulk reads.
+   */
+  private volatile long modificationEpoch = 0;
+
+  /**
+   * Canonical instances of the nodes in stored triples.
+   */
+  private final NodeDictionary nodeDictionary = new NodeDictionary();
+
 
   /**
    * Creates a new Gaboto object using the passed graphset.
@@ -181,6 +342,8 @@ public class Gaboto {
     this.contextDescriptionGraph = cdg;
     this.namedGraphSet = graphset;
     this.config = GabotoFactory.getConfig();
+    this.entityCatalogue = new EntityCatalogue(graphset);
+    seedIds();
     if (idx != null) {
       // create an index on the time dimension
       idx.createIndex(cdg);
@@ -208,7 +371,12 @@ public class Gaboto {
    *          The indexer.
    */
   public void setTimeDimensionIndexer(TimeDimensionIndexer idx) {
-    this.timeDimensionIndexer = idx;
+    lock.writeLock().lock();
+    try {
+      this.timeDimensionIndexer = idx;
+    } finally {
+      lock.writeLock().unlock();
+    }
   }
 
   /**
@@ -216,7 +384,103 @@ public class Gaboto {
    * TPP - No idea when this should be created or why it is public
    */
   public void recreateTimeDimensionIndex() {
-    this.getTimeDimensionIndexer().createIndex(getContextDescriptionGraph());
+    lock.writeLock().lock();
+    try {
+      this.getTimeDimensionIndexer().createIndex(getContextDescriptionGraph());
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Loads the time dimension index from a file written by
+   * {@link #persistToDisk(String)} instead of querying the cdg.
+   * 
+   * <p>
+   * The index is only used if it was written together with the supplied cdg
+   * file, which is checked using the cdg file's checksum.
+   * </p>
+   * 
+   * @param indexFile
+   *          The persisted index.
+   * @param cdgFile
+   *          The file the cdg was read from.
+   * @return Whether the index was loaded. If not, the current index is left
+   *         untouched.
+   */
+  public boolean readTimeDimensionIndex(File indexFile, File cdgFile) {
+    if (!indexFile.exists())
+      return false;
+    try {
+      long checksum = FileUtils.checksum(cdgFile);
+      InputStream is = new BufferedInputStream(new FileInputStream(indexFile));
+      try {
+        TimeDimensionIndexer idx = new TimeDimensionIndexer();
+        if (!idx.read(is, checksum))
+          return false;
+        setTimeDimensionIndexer(idx);
+        return true;
+      } finally {
+        is.close();
+      }
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Returns the lock guarding this Gaboto's data.
+   * 
+   * <p>
+   * All mutators take the write lock, so that writers are serialised, and all
+   * readers take the read lock, so that they proceed in parallel but never
+   * observe a partly applied change. Callers that need several reads to see
+   * the same version of the data may hold the read lock around them. A thread
+   * holding the read lock must not call a mutator: the read lock cannot be
+   * upgraded and the call would block forever.
+   * </p>
+   * 
+   * <p>
+   * Snapshots in {@link #SNAPSHOT_MODE_COPY} are built under the read lock and
+   * therefore reflect a single version. Snapshots in
+   * {@link #SNAPSHOT_MODE_VIEW} read the live graphs and reflect later changes.
+   * </p>
+   * 
+   * @return The lock.
+   */
+  public ReadWriteLock getLock() {
+    return lock;
+  }
+
+  /**
+   * Returns the dictionary holding the canonical instances of the nodes
+   * stored in this Gaboto.
+   * 
+   * <p>
+   * Triples added to Gaboto or to one of its batches are interned, so that
+   * equal nodes in different triples and graphs share one instance. Nodes
+   * obtained from the dictionary can be used for lookups without creating
+   * new ones.
+   * </p>
+   * 
+   * @return The node dictionary.
+   */
+  public NodeDictionary getNodeDictionary() {
+    return nodeDictionary;
+  }
+
+  /**
+   * Returns the version of the data, which is incremented with every change.
+   * 
+   * @return The current version.
+   */
+  public long getVersion() {
+    lock.readLock().lock();
+    try {
+      return version;
+    } finally {
+      lock.readLock().unlock();
+    }
   }
 
   /**
@@ -229,6 +493,33 @@ public class Gaboto {
     updateListeners.add(listener);
   }
 
+  /**
+   * Attaches a listener that is informed on updates to the graph from a 
+   * background thread rather than from within the writing thread.
+   * 
+   * <p>
+   * Events are queued in a bounded queue of the given capacity and delivered 
+   * in batches. To detach the listener, pass the returned dispatcher to 
+   * {@link #detachUpdateListener(UpdateListener)} and close it.
+   * </p>
+   * 
+   * @param listener
+   *          The update listener to be attached.
+   * @param capacity
+   *          The maximum number of queued events.
+   * @param policy
+   *          What to do if the queue is full, one of
+   *          {@link AsyncUpdateDispatcher#POLICY_BLOCK},
+   *          {@link AsyncUpdateDispatcher#POLICY_DROP} and
+   *          {@link AsyncUpdateDispatcher#POLICY_COALESCE}.
+   * @return The dispatcher, which provides lag metrics for the listener.
+   */
+  public AsyncUpdateDispatcher attachAsyncUpdateListener(UpdateListener listener, int capacity, int policy) {
+    AsyncUpdateDispatcher dispatcher = new AsyncUpdateDispatcher(this, listener, capacity, policy);
+    updateListeners.add(dispatcher);
+    return dispatcher;
+  }
+
   /**
    * Detaches an update listener.
    * 
@@ -239,22 +530,241 @@ public class Gaboto {
     updateListeners.remove(listener);
   }
 
+  /**
+   * Adds a hook that is run once after every change and once after every
+   * committed {@link GabotoBatch}, while the write lock is still held.
+   * 
+   * <p>
+   * Unlike update listeners, hooks are not told what changed, so no events are
+   * created for them.
+   * </p>
+   * 
+   * @param hook
+   *          The hook.
+   */
+  public void addCommitHook(Runnable hook) {
+    commitHooks.add(hook);
+  }
+
+  /**
+   * Removes a commit hook.
+   * 
+   * @param hook
+   *          The hook.
+   */
+  public void removeCommitHook(Runnable hook) {
+    commitHooks.remove(hook);
+  }
+
+  /**
+   * Runs the commit hooks and, if the journal could not record the change in
+   * a replayable form, checkpoints Gaboto to the journal's directory.
+   */
+  private void committed() {
+    for (Runnable hook : commitHooks)
+      hook.run();
+    if (journal != null && !journal.isReplayable())
+      checkpoint(journal.getFile().getAbsoluteFile().getParent());
+  }
+
+  private boolean needsEvents() {
+    return journal != null || !updateListeners.isEmpty();
+  }
+
+  /**
+   * Writes a change to the journal before it is applied. Should the journal
+   * fail, the exception leaves Gaboto unchanged.
+   */
+  private void journal(GabotoEvent event) {
+    if (journal != null)
+      journal.write(event, this);
+  }
+
+  /**
+   * Tells whether a blank node is subject or object of any quad.
+   */
+  boolean containsBlankNode(Node node) {
+    return getNamedGraphSet().containsQuad(
+        new Quad(Node.ANY, node, Node.ANY, Node.ANY))
+        || getNamedGraphSet().containsQuad(
+            new Quad(Node.ANY, Node.ANY, Node.ANY, node));
+  }
+
+  /**
+   * Attaches a journal that records every change made from now on.
+   * 
+   * <p>
+   * Each change is written to the journal and forced to disk before it is
+   * applied. Persisting Gaboto to the directory holding the journal 
+   * checkpoints it: the journal is emptied once the data has been written.
+   * </p>
+   * 
+   * @param journal
+   *          The journal, or null to detach the current one.
+   */
+  public void setJournal(ChangeJournal journal) {
+    lock.writeLock().lock();
+    try {
+      this.journal = journal;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * @return The journal recording changes, or null.
+   */
+  public ChangeJournal getJournal() {
+    return journal;
+  }
+
   /**
    * Generates a new id unique within this Gaboto.
    * 
+   * <p>
+   * Ids are handed out in sequence, starting after the highest id found in 
+   * the data or recorded by {@link #persistToDisk(String)}, so that no lookup
+   * in the data is needed. Entities added with an id beyond the sequence 
+   * advance it.
+   * </p>
+   * 
    * @return A new unique new.
    */
   public String generateIdUri() {
-    String tmpId = generateId();
-    while (containsResource(tmpId)) {  
-      tmpId = generateId();
+    return getIdUri(reserveIds(1));
+  }
+
+  /**
+   * Reserves a block of consecutive ids, for example for an importer that
+   * creates many entities. No other caller will be handed any of these ids.
+   * 
+   * @param count
+   *          The number of ids to reserve.
+   * @return The first id of the block.
+   * 
+   * @see #getIdUri(long)
+   */
+  public long reserveIds(int count) {
+    if (count < 1)
+      throw new IllegalArgumentException("Cannot reserve " + count + " ids.");
+    return id.getAndAdd(count) + 1;
+  }
+
+  /**
+   * Returns the URI for an id handed out by {@link #reserveIds(int)}.
+   * 
+   * @param id
+   *          The id.
+   * @return The URI.
+   */
+  public String getIdUri(long id) {
+    return config.getNSData() + id;
+  }
+
+  /**
+   * Returns the id encoded in a URI generated by {@link #generateIdUri()}, or
+   * -1 for any other URI.
+   */
+  private long parseId(String uri) {
+    String ns = config.getNSData();
+    if (!uri.startsWith(ns) || uri.length() == ns.length()
+        || uri.length() - ns.length() > 18)
+      return -1;
+    for (int i = ns.length(); i < uri.length(); i++)
+      if (!Character.isDigit(uri.charAt(i)))
+        return -1;
+    return Long.parseLong(uri.substring(ns.length()));
+  }
+
+  /**
+   * Makes sure an id found in the data is never handed out.
+   */
+  private void observeId(long seen) {
+    long current = id.get();
+    while (current < seen && !id.compareAndSet(current, seen))
+      current = id.get();
+  }
+
+  /**
+   * Advances the id sequence past all ids found in the data and a highest id
+   * recorded in the cdg by older versions.
+   */
+  private void seedIds() {
+    for (String uri : entityCatalogue.getURIs())
+      observeId(parseId(uri));
+
+    Model cdg = getContextDescriptionGraph();
+    StmtIterator it = cdg.listStatements(
+        cdg.getResource(config.getGlobalKnowledgeGraphURI()),
+        cdg.getProperty(HIGHEST_ID_PROPERTY_URI), (RDFNode) null);
+    while (it.hasNext()) {
+      RDFNode recorded = it.nextStatement().getObject();
+      if (recorded.isLiteral())
+        observeId(((Literal) recorded).getLong());
     }
+  }
 
-    return tmpId;
+  /**
+   * Removes a highest id recorded in the cdg by older versions, which is
+   * persisted in its own file instead. Must be called holding the write lock.
+   */
+  private void removeRecordedHighestId() {
+    Model cdg = getContextDescriptionGraph();
+    Resource gkg = cdg.getResource(config.getGlobalKnowledgeGraphURI());
+    Property highestId = cdg.getProperty(HIGHEST_ID_PROPERTY_URI);
+    if (!cdg.contains(gkg, highestId))
+      return;
+    cdgDirty = true;
+    cdgDigest = null;
+    cdg.removeAll(gkg, highestId, null);
   }
 
-  private String generateId() {
-    return config.getNSData() + new Long(++id).toString();
+  /**
+   * Advances the id sequence past the highest id recorded in a file written
+   * by {@link #persistToDisk(String)} or {@link #persistSegments(String)}, so
+   * that ids handed out are never reused even if their entities were not
+   * persisted.
+   * 
+   * @param file
+   *          The file. Nothing happens if it does not exist.
+   */
+  public void readHighestId(File file) {
+    if (!file.exists())
+      return;
+    try {
+      BufferedReader reader = new BufferedReader(new FileReader(file));
+      try {
+        String line = reader.readLine();
+        if (line == null)
+          throw new GabotoRuntimeException("Empty id file: " + file);
+        observeId(Long.parseLong(line.trim()));
+      } finally {
+        reader.close();
+      }
+    } catch (NumberFormatException e) {
+      throw new GabotoRuntimeException(e);
+    } catch (IOException e) {
+      throw new GabotoRuntimeException(e);
+    }
+  }
+
+  /**
+   * Writes the highest id to its file, via a temporary file.
+   */
+  private void persistHighestId(String actualOutputDir, long highestId) {
+    File idFile = new File(actualOutputDir, HIGHEST_ID_FILE_NAME);
+    File idTemp = new File(actualOutputDir, HIGHEST_ID_FILE_NAME + ".tmp");
+    try {
+      Writer writer = new FileWriter(idTemp);
+      try {
+        writer.write(highestId + "\n");
+      } finally {
+        writer.close();
+      }
+      FileUtils.replaceFile(idTemp, idFile);
+    } catch (IOException e) {
+      throw new GabotoRuntimeException(e);
+    }
   }
 
   /**
@@ -265,6 +775,14 @@ public class Gaboto {
    * to the snapshot.
    * </p>
    * 
+   * <p>
+   * Instants that resolve to the same set of graphs share one snapshot, which
+   * is cached until this Gaboto is changed. Callers must therefore not modify
+   * the returned snapshot's model. For an instant given to the day the
+   * snapshot is looked up by the elementary period containing it (see
+   * {@link #getChangePoints(TimeSpan)}).
+   * </p>
+   * 
    * @param ti
    *          The time instant.
    * @return A snapshot only containing flat RDF.
@@ -273,9 +791,263 @@ public class Gaboto {
    */
   public GabotoSnapshot getSnapshot(TimeInstant ti)
       throws NoTimeIndexSetException {
-    System.err.println("Creating snapshot for time instant " + ti);
-    Collection<String> graphURIs = getTimeDimensionIndexer().getGraphsForInstant(ti);
-    return getSnapshot(graphURIs);
+    lock.readLock().lock();
+    try {
+      TimeDimensionIndexer idx = getTimeDimensionIndexer();
+      Collection<String> graphURIs = idx.getGraphsForInstant(ti);
+      int mode = snapshotMode;
+      TimeInstant period = idx.getPeriodStart(ti);
+      String key = period == null ? mode + ":" + fingerprint(graphURIs)
+          : mode + ":period:" + period;
+      // a snapshot stays valid as long as its graphs do not change
+      String stamp = stampOf(graphURIs);
+      GabotoSnapshot snapshot = snapshotCache.get(key, stamp);
+      if (snapshot != null)
+        return snapshot;
+      return buildSnapshot(key, stamp, graphURIs, mode);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Builds and caches a snapshot. Threads asking for the same snapshot wait
+   * for the one building it, while snapshots for other keys are built in
+   * parallel. Must be called holding the read lock.
+   */
+  private GabotoSnapshot buildSnapshot(final String key, final String stamp,
+      final Collection<String> graphURIs, final int mode) {
+    String flight = key + "@" + stamp;
+    FutureTask<GabotoSnapshot> task = new FutureTask<GabotoSnapshot>(
+        new Callable<GabotoSnapshot>() {
+          public GabotoSnapshot call() {
+            // another thread may have finished building it meanwhile
+            GabotoSnapshot snapshot = snapshotCache.get(key, stamp);
+            if (snapshot == null) {
+              snapshot = getSnapshot(graphURIs, mode);
+              snapshotCache.put(key, snapshot, stamp);
+            }
+            return snapshot;
+          }
+        });
+    FutureTask<GabotoSnapshot> building = snapshotsInFlight.putIfAbsent(flight, task);
+    if (building == null) {
+      building = task;
+      try {
+        task.run();
+      } finally {
+        snapshotsInFlight.remove(flight, task);
+      }
+    }
+
+    try {
+      return building.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new GabotoRuntimeException(e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException)
+        throw (RuntimeException) e.getCause();
+      if (e.getCause() instanceof Error)
+        throw (Error) e.getCause();
+      throw new GabotoRuntimeException(e.getCause());
+    }
+  }
+
+  /**
+   * Returns the graphs whose time span matches a time span.
+   * 
+   * @param ts
+   *          The time span.
+   * @param match
+   *          One of {@link #TIME_MATCH_CONTAINS}, {@link #TIME_MATCH_OVERLAPS}
+   *          and {@link #TIME_MATCH_DURING}.
+   * @return The graphs' URIs.
+   * @throws NoTimeIndexSetException
+   */
+  public Collection<String> getGraphsFor(TimeSpan ts, int match)
+      throws NoTimeIndexSetException {
+    lock.readLock().lock();
+    try {
+      TimeDimensionIndexer idx = getTimeDimensionIndexer();
+      switch (match) {
+      case TIME_MATCH_CONTAINS:
+        return idx.getGraphsForDuration(ts);
+      case TIME_MATCH_OVERLAPS:
+        return idx.getGraphsIntersecting(ts);
+      case TIME_MATCH_DURING:
+        return idx.getGraphsDuring(ts);
+      default:
+        throw new IllegalArgumentException("Unknown time match: " + match);
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Creates a snapshot of the information valid during a time span, together
+   * with the global knowledge graph.
+   * 
+   * <p>
+   * Unlike {@link #getSnapshot(TimeInstant)} the snapshot is not cached. It
+   * may hold information that was valid at different times, so the graphs a
+   * statement came from can be looked up with
+   * {@link GabotoSnapshot#getSourceGraphs(Statement)} and their time spans
+   * with {@link GabotoSnapshot#getTimeSpans(Statement)}. The graphs holding
+   * each statement are recorded together with the snapshot, so these lookups
+   * do not touch the live graphs.
+   * </p>
+   * 
+   * @param ts
+   *          The time span.
+   * @param match
+   *          One of {@link #TIME_MATCH_CONTAINS}, {@link #TIME_MATCH_OVERLAPS}
+   *          and {@link #TIME_MATCH_DURING}.
+   * @return A snapshot of the matching graphs.
+   * @throws NoTimeIndexSetException
+   */
+  public GabotoSnapshot getSnapshot(TimeSpan ts, int match)
+      throws NoTimeIndexSetException {
+    lock.readLock().lock();
+    try {
+      Collection<String> graphURIs = getGraphsFor(ts, match);
+      GabotoSnapshot snapshot = getSnapshot(graphURIs, snapshotMode);
+      snapshot.setSourceGraphs(sourceGraphsOf(graphURIs));
+      return snapshot;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Maps each triple of the given graphs and the global knowledge graph to the
+   * graphs holding it. Must be called holding the lock.
+   */
+  private Map<Triple, Collection<String>> sourceGraphsOf(Collection<String> graphURIs) {
+    String gkgURI = config.getGlobalKnowledgeGraphURI();
+    Set<String> uris = new HashSet<String>(graphURIs);
+    uris.add(gkgURI);
+    Map<Triple, Collection<String>> sources = new HashMap<Triple, Collection<String>>();
+    for (String uri : uris) {
+      Graph graph = uri.equals(gkgURI) ? getGlobalKnowledgeGraph() : namedGraphSet.getGraph(uri);
+      if (graph == null)
+        throw new IllegalArgumentException("Unknown graph: " + uri);
+      ExtendedIterator<Triple> it = graph.find(Node.ANY, Node.ANY, Node.ANY);
+      try {
+        while (it.hasNext()) {
+          Triple t = it.next();
+          Collection<String> graphs = sources.get(t);
+          if (graphs == null) {
+            // most triples live in a single graph
+            sources.put(t, Collections.singleton(uri));
+          } else {
+            if (graphs.size() == 1) {
+              graphs = new HashSet<String>(graphs);
+              sources.put(t, graphs);
+            }
+            graphs.add(uri);
+          }
+        }
+      } finally {
+        it.close();
+      }
+    }
+    return sources;
+  }
+
+  /**
+   * Returns the instants at which the set of graphs valid at an instant
+   * changes during a time span.
+   * 
+   * <p>
+   * The snapshot for any day from one change point up to the next is the
+   * same. The history of a time span can therefore be walked by taking the
+   * snapshot at its beginning and then one at each change point, instead of
+   * probing day by day.
+   * </p>
+   * 
+   * @param range
+   *          The time span.
+   * @return The change points, in order.
+   * @throws NoTimeIndexSetException
+   * @see TimeDimensionIndexer#getChangePoints(TimeSpan)
+   */
+  public List<TimeInstant> getChangePoints(TimeSpan range)
+      throws NoTimeIndexSetException {
+    lock.readLock().lock();
+    try {
+      return getTimeDimensionIndexer().getChangePoints(range);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Builds and caches the snapshots for all elementary periods during a time
+   * span, so that later calls to {@link #getSnapshot(TimeInstant)} for days
+   * within the span are served from the cache.
+   * 
+   * <p>
+   * Snapshots are otherwise built when first asked for. The snapshot cache
+   * must be large enough to hold one snapshot per period (see
+   * {@link #getChangePoints(TimeSpan)}), or the earliest ones are evicted.
+   * </p>
+   * 
+   * @param range
+   *          The time span.
+   * @return The number of periods.
+   * @throws NoTimeIndexSetException
+   */
+  public int prebuildSnapshots(TimeSpan range) throws NoTimeIndexSetException {
+    lock.readLock().lock();
+    try {
+      List<TimeInstant> points = getChangePoints(range);
+      // the first day, so that its snapshot is cached under its period
+      TimeInstant begin = PackedTime.toInstant(PackedTime.firstDay(range.getPackedBegin()));
+      if (points.isEmpty() || !points.get(0).equals(begin))
+        points.add(0, begin);
+      for (TimeInstant ti : points)
+        getSnapshot(ti);
+      return points.size();
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Returns a key identifying a set of graphs regardless of the order in
+   * which they are listed.
+   */
+  private static String fingerprint(Collection<String> graphURIs) {
+    List<String> sorted = new ArrayList<String>(new HashSet<String>(graphURIs));
+    Collections.sort(sorted);
+    try {
+      MessageDigest md5 = MessageDigest.getInstance("MD5");
+      for (String uri : sorted) {
+        md5.update(uri.getBytes("UTF-8"));
+        md5.update((byte) '\n');
+      }
+      StringBuffer hex = new StringBuffer(sorted.size() + ":");
+      for (byte b : md5.digest())
+        hex.append(Integer.toHexString((b & 0xff) | 0x100).substring(1));
+      return hex.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new GabotoRuntimeException(e);
+    } catch (UnsupportedEncodingException e) {
+      throw new GabotoRuntimeException(e);
+    }
+  }
+
+  /**
+   * Returns the cache holding the snapshots returned by
+   * {@link #getSnapshot(TimeInstant)}, to adjust its bounds or read its
+   * counters.
+   * 
+   * @return the snapshot cache
+   */
+  public SnapshotCache getSnapshotCache() {
+    return snapshotCache;
   }
 
   /**
@@ -321,18 +1093,52 @@ public class Gaboto {
    * Creates an {@link GabotoSnapshot} that contains the data from all the
    * specified graphs.
    * 
+   * <p>
+   * The snapshot is built according to this Gaboto's snapshot mode.
+   * </p>
+   * 
    * @param graphURIs
    *          The graphs to use.
    * 
    * @return A snapshot.
+   * 
+   * @see #setSnapshotMode(int)
    */
   public GabotoSnapshot getSnapshot(Collection<String> graphURIs) {
+    return getSnapshot(graphURIs, snapshotMode);
+  }
+
+  /**
+   * Creates an {@link GabotoSnapshot} that contains the data from all the
+   * specified graphs.
+   * 
+   * @param graphURIs
+   *          The graphs to use.
+   * @param mode
+   *          Either {@link #SNAPSHOT_MODE_COPY} or {@link #SNAPSHOT_MODE_VIEW}.
+   * 
+   * @return A snapshot.
+   */
+  public GabotoSnapshot getSnapshot(Collection<String> graphURIs, int mode) {
+    lock.readLock().lock();
+    try {
+      if (mode == SNAPSHOT_MODE_VIEW)
+        return createSnapshotView(graphURIs);
+      else if (mode == SNAPSHOT_MODE_COPY)
+        return createSnapshotCopy(graphURIs);
+      throw new IllegalArgumentException("Unknown snapshot mode: " + mode);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  private GabotoSnapshot createSnapshotCopy(Collection<String> graphURIs) {
     // create model
     Model model = ModelFactory.createDefaultModel();
     Graph newModelsDefaultGraph = model.getGraph();
 
     // create snapshot
-    GabotoSnapshot snapshot = new GabotoSnapshot(model, this);
+    GabotoSnapshot snapshot = new GabotoSnapshot(model, this, graphURIs);
 
     //System.err.println("Adding " + graphURIs.size() + " graphs to snapshot");
     // fill model
@@ -364,9 +1170,135 @@ public class Gaboto {
     return snapshot;
   }
 
+  /**
+   * Creates a snapshot whose model is a read-only union over the named graphs
+   * and the global knowledge graph. No triples are copied.
+   */
+  private GabotoSnapshot createSnapshotView(Collection<String> graphURIs) {
+    String gkgURI = config.getGlobalKnowledgeGraphURI();
+    List<Graph> members = new ArrayList<Graph>(graphURIs.size() + 1);
+    for (String g : new HashSet<String>(graphURIs)) {
+      if (g.equals(gkgURI))
+        continue;
+      NamedGraph graph = namedGraphSet.getGraph(g);
+      if (graph == null)
+        throw new IllegalArgumentException("Unknown graph: " + g);
+      members.add(graph);
+    }
+    members.add(getGlobalKnowledgeGraph());
+
+    Graph union = new ReadOnlyUnionGraph(members.toArray(new Graph[members.size()]));
+    return new GabotoSnapshot(ModelFactory.createModelForGraph(union), this, graphURIs);
+  }
+
+  /**
+   * Returns the mode used to build snapshots.
+   * 
+   * @return Either {@link #SNAPSHOT_MODE_COPY} or {@link #SNAPSHOT_MODE_VIEW}.
+   */
+  public int getSnapshotMode() {
+    return snapshotMode;
+  }
+
+  /**
+   * Sets the mode used to build snapshots.
+   * 
+   * <p>
+   * Snapshots created in {@link #SNAPSHOT_MODE_VIEW} are views on the live
+   * data: they are cheap to create but reflect later changes to the graphs
+   * they were built from.
+   * </p>
+   * 
+   * @param mode
+   *          Either {@link #SNAPSHOT_MODE_COPY} or {@link #SNAPSHOT_MODE_VIEW}.
+   */
+  public void setSnapshotMode(int mode) {
+    if (mode != SNAPSHOT_MODE_COPY && mode != SNAPSHOT_MODE_VIEW)
+      throw new IllegalArgumentException("Unknown snapshot mode: " + mode);
+    this.snapshotMode = mode;
+  }
+
+  /**
+   * Accounts for data read in bulk, which does not inform listeners.
+   */
+  private void dataRead() {
+    version++;
+    snapshotCache.clear();
+    entityCatalogue = new EntityCatalogue(getNamedGraphSet());
+    seedIds();
+    segmentDirectory = null;
+    digests.clear();
+    cdgDigest = null;
+    modificationEpoch++;
+  }
+
+  /**
+   * Updates the digest of a graph, if it is maintained, for a triple about
+   * to be added.
+   */
+  private void digestAdd(NamedGraph graph, Triple triple) {
+    GraphDigest digest = digests.get(graph.getGraphName().getURI());
+    if (digest != null && !graph.contains(triple))
+      digest.add(triple);
+  }
+
+  /**
+   * Updates the digest of a graph, if it is maintained, for a triple about
+   * to be removed.
+   */
+  private void digestRemove(NamedGraph graph, Triple triple) {
+    GraphDigest digest = digests.get(graph.getGraphName().getURI());
+    if (digest != null && graph.contains(triple))
+      digest.remove(triple);
+  }
+
+  /**
+   * Marks a graph to be written by the next segmented checkpoint.
+   */
+  private void graphChanged(NamedGraph graph) {
+    dirtyGraphs.add(graph.getGraphName().getURI());
+    modified(graph.getGraphName().getURI());
+  }
+
+  /**
+   * Records a triple about to be added to a graph in the entity catalogue. A
+   * type triple new to the graph is recorded directly, without searching the
+   * graph set.
+   */
+  private void catalogueAdd(NamedGraph graph, Triple triple) {
+    if (!EntityCatalogue.isTypeTriple(triple.getPredicate())
+        || graph.contains(triple))
+      return;
+    entityCatalogue.add(new Quad(graph.getGraphName(), triple));
+    if (triple.getSubject().isURI())
+      observeId(parseId(triple.getSubject().getURI()));
+  }
+
+  /**
+   * Keeps the entity catalogue in sync after triples matching the pattern were
+   * removed.
+   */
+  private void updateEntityCatalogue(Node subject, Node predicate) {
+    if (!EntityCatalogue.isTypeTriple(predicate))
+      return;
+    if (subject.isURI()) {
+      entityCatalogue.refresh(subject.getURI());
+      observeId(parseId(subject.getURI()));
+    }
+    else if (!subject.isConcrete())
+      entityCatalogue = new EntityCatalogue(getNamedGraphSet());
+  }
+
   /**
    * Informs listeners of update.
    * 
+   * <p>
+   * Listeners are called synchronously while the write lock is held. Slow 
+   * listeners should therefore be wrapped in an {@link AsyncUpdateDispatcher}.
+   * Callers bump the version themselves and need not create events when 
+   * nobody is listening.
+   * </p>
+   * 
    * @param e
    */
   private void triggerUpdateEvent(GabotoEvent e) {
@@ -382,22 +1314,27 @@ public class Gaboto {
    * @throws EntityAlreadyExistsException
    *           If the entity already exists in the model.
    */
-  synchronized public void add(GabotoTimeBasedEntity entityTB)
+  public void add(GabotoTimeBasedEntity entityTB)
       throws EntityAlreadyExistsException {
-    if (containsEntity(entityTB.getUri()))
-      throw new EntityAlreadyExistsException(entityTB.getUri());
+    lock.writeLock().lock();
+    try {
+      if (containsEntity(entityTB.getUri()))
+        throw new EntityAlreadyExistsException(entityTB.getUri());
 
-    //System.err.println("Adding time based entity to gaboto: " + entityTB);
-    //System.err.println("TimeSpans in tbEntity: " + entityTB.getTimeSpansSorted());
+      //System.err.println("Adding time based entity to gaboto: " + entityTB);
+      //System.err.println("TimeSpans in tbEntity: " + entityTB.getTimeSpansSorted());
 
-    // add triple denoting entities type and lifespan
-    add(entityTB.getTimeSpan(), entityTB.getRDFTypeTriple());
+      // add triple denoting entities type and lifespan
+      add(entityTB.getTimeSpan(), entityTB.getRDFTypeTriple());
 
-    // loop over "internal" entities and add them
-    Iterator<GabotoEntity> it = entityTB.iterator();
-    while (it.hasNext()) {
-      GabotoEntity entity = it.next();
-      add(entity, false);
+      // loop over "internal" entities and add them
+      Iterator<GabotoEntity> it = entityTB.iterator();
+      while (it.hasNext()) {
+        GabotoEntity entity = it.next();
+        add(entity, false);
+      }
+    } finally {
+      lock.writeLock().unlock();
     }
   }
 
@@ -406,47 +1343,93 @@ public class Gaboto {
    * the data.
    * 
    * <p>
-   * Same as: <code>purge(entity); add(entity);</code>
+   * Has the same result as: <code>purge(entity); add(entity);</code> but only
+   * removes the triples that are no longer part of the entity and only adds
+   * the triples that are missing. Listeners are informed by a single
+   * {@link BatchGabotoEvent}, or not at all if nothing changed.
    * </p>
    * 
    * @param entity
    *          The entity that is to be changed
    */
-  synchronized public void change(GabotoEntity entity) {
+  public void change(GabotoEntity entity) {
+    lock.writeLock().lock();
     try {
-      purge(entity);
-    } catch (EntityDoesNotExistException e) {
-      // Add is a change
-    } 
-    try {
-      add(entity);
-    } catch (EntityAlreadyExistsException e) {
-      throw new IncoherenceException(
-          "Something went terribly wrong .. I just purged " + entity.getUri()
-              + ". It should not exist.", e);
+      Map<Quad, TimeSpan> wanted = new LinkedHashMap<Quad, TimeSpan>();
+      collectQuads(entity.getTimeSpan().canonicalize(), entity.getTriplesFor(true), wanted);
+      replaceQuads(entity.getUri(), wanted);
+    } finally {
+      lock.writeLock().unlock();
     }
   }
 
   /**
-   * Changes an {@link GabotoEntity}. If entity did not exist, it is added to
-   * the data.
+   * Changes an {@link GabotoTimeBasedEntity}. If entity did not exist, it is
+   * added to the data.
    * 
    * <p>
-   * Same as: <code>purge(entity); add(entity);</code>
+   * Has the same result as: <code>purge(entity); add(entity);</code> but only
+   * writes the difference, see {@link #change(GabotoEntity)}.
    * </p>
    * 
    * @param entity
    *          The entity that is to be changed
    */
-  synchronized public void change(GabotoTimeBasedEntity entity) {
+  public void change(GabotoTimeBasedEntity entity) {
+    lock.writeLock().lock();
     try {
-      purge(entity);
-      add(entity);
-    } catch (EntityDoesNotExistException e) {
+      Map<Quad, TimeSpan> wanted = new LinkedHashMap<Quad, TimeSpan>();
+      collectQuads(entity.getTimeSpan(),
+          Collections.singletonList(entity.getRDFTypeTriple()), wanted);
+      Iterator<GabotoEntity> it = entity.iterator();
+      while (it.hasNext()) {
+        GabotoEntity e = it.next();
+        collectQuads(e.getTimeSpan().canonicalize(), e.getTriplesFor(false), wanted);
+      }
+      replaceQuads(entity.getUri(), wanted);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Maps the triples to the quads they would be stored as.
+   */
+  private void collectQuads(TimeSpan ts, Collection<Triple> triples, Map<Quad, TimeSpan> quads) {
+    if (ts != null && ts.equals(TimeSpan.EXISTENCE))
+      ts = null;
+    Node graph = ts == null ? getGlobalKnowledgeGraph().getGraphName()
+        : nodeDictionary.uri(getGraphNameFor(ts));
+    for (Triple t : triples)
+      quads.put(new Quad(graph, nodeDictionary.intern(t)), ts);
+  }
+
+  /**
+   * Replaces the quads about an entity by the wanted ones, writing only the
+   * difference as one batch. Must be called holding the write lock.
+   */
+  private void replaceQuads(String uri, Map<Quad, TimeSpan> wanted) {
+    GabotoBatch batch = beginBatch();
+
+    Iterator<?> it = getNamedGraphSet().findQuads(Node.ANY, nodeDictionary.uri(uri), Node.ANY, Node.ANY);
+    while (it.hasNext()) {
+      Quad q = (Quad) it.next();
+      if (!wanted.containsKey(q))
+        batch.remove(q);
+    }
+
+    for (Map.Entry<Quad, TimeSpan> entry : wanted.entrySet()) {
+      Quad q = entry.getKey();
+      String graphURI = q.getGraphName().getURI();
+      if (!containsGraph(graphURI) || !getGraph(graphURI).contains(q.getTriple()))
+        batch.add(entry.getValue(), q.getTriple());
+    }
+
+    try {
+      batch.commit();
     } catch (EntityAlreadyExistsException e) {
-      throw new IncoherenceException(
-          "Something went teribly wrong .. I just purged " + entity.getUri()
-              + ". It should not exist.", e);
+      // no entities were added to the batch
+      throw new IncoherenceException("Could not change " + uri, e);
     }
   }
 
@@ -465,7 +1448,7 @@ public class Gaboto {
    * 
    * @see #add(GabotoEntity, boolean)
    */
-  synchronized public void add(GabotoEntity entity) throws EntityAlreadyExistsException {
+  public void add(GabotoEntity entity) throws EntityAlreadyExistsException {
     add(entity, true);
   }
 
@@ -485,21 +1468,26 @@ public class Gaboto {
    */
   
 
-  public synchronized void add(GabotoEntity entity, boolean includeType)
+  public void add(GabotoEntity entity, boolean includeType)
   	  throws EntityAlreadyExistsException {
 	  add(entity, false, includeType);
 	  
   }
 
-  public synchronized void add(GabotoEntity entity, boolean withoutDuplicityCheck, boolean includeType)
+  public void add(GabotoEntity entity, boolean withoutDuplicityCheck, boolean includeType)
       throws EntityAlreadyExistsException {
-    if (!withoutDuplicityCheck && containsEntity(entity) && includeType)
-      throw new EntityAlreadyExistsException(entity);
+    lock.writeLock().lock();
+    try {
+      if (!withoutDuplicityCheck && containsEntity(entity) && includeType)
+        throw new EntityAlreadyExistsException(entity);
 
 
-    TimeSpan ts = entity.getTimeSpan().canonicalize();
-    for (Triple t : entity.getTriplesFor(includeType))
-      add(ts, t);
+      TimeSpan ts = entity.getTimeSpan().canonicalize();
+      for (Triple t : entity.getTriplesFor(includeType))
+        add(ts, t);
+    } finally {
+      lock.writeLock().unlock();
+    }
   }
 
   /**
@@ -509,7 +1497,7 @@ public class Gaboto {
    *          The entity that is to be removed.
    * 
    */
-  synchronized public void purge(GabotoEntity entity) {
+  public void purge(GabotoEntity entity) {
     purge(entity.getUri());
   }
 
@@ -520,7 +1508,7 @@ public class Gaboto {
    *          The entity that is to be removed.
    * 
    */
-  synchronized public void purge(GabotoTimeBasedEntity entity) {
+  public void purge(GabotoTimeBasedEntity entity) {
     purge(entity.getUri());
   }
 
@@ -531,23 +1519,47 @@ public class Gaboto {
    *          The entity referenced by its URI.
    * 
    */
-  synchronized public void purge(String entityURI) {
-    if (!containsEntity(entityURI))
-      throw new EntityDoesNotExistException(entityURI);
-
+  public void purge(String entityURI) {
     System.err.println("Attempting to purge " + entityURI);
+    purgeAll(Collections.singleton(entityURI));
+  }
 
-    // load time-based entity
-    Iterator<?> it = getNamedGraphSet().findQuads(Node.ANY,
-        Node.createURI(entityURI), Node.ANY, Node.ANY);
-    while (it.hasNext()) {
-      Quad q = (Quad)it.next();
-      remove(q);
-
-      // old way
-      // TimeSpan ts = TimeSpan.createFromGraphName(q.getGraphName().getURI(),
-      // this);
-      // remove(ts, q.getTriple());
+  /**
+   * Removes all direct information about the supplied entities.
+   * 
+   * <p>
+   * All quads about the entities are removed in one batch, so that listeners
+   * are informed by a single {@link BatchGabotoEvent}.
+   * </p>
+   * 
+   * @param entityURIs
+   *          The entities referenced by their URIs.
+   * @throws EntityDoesNotExistException
+   *           If one of the entities does not exist. Nothing is removed in
+   *           that case.
+   */
+  public void purgeAll(Collection<String> entityURIs) {
+    lock.writeLock().lock();
+    try {
+      for (String uri : entityURIs)
+        if (!containsEntity(uri))
+          throw new EntityDoesNotExistException(uri);
+
+      GabotoBatch batch = beginBatch();
+      for (String uri : entityURIs) {
+        Iterator<?> it = getNamedGraphSet().findQuads(Node.ANY,
+            nodeDictionary.uri(uri), Node.ANY, Node.ANY);
+        while (it.hasNext())
+          batch.remove((Quad) it.next());
+      }
+      try {
+        batch.commit();
+      } catch (EntityAlreadyExistsException e) {
+        // no entities were added to the batch
+        throw new IncoherenceException("Could not purge " + entityURIs, e);
+      }
+    } finally {
+      lock.writeLock().unlock();
     }
   }
 
@@ -561,7 +1573,7 @@ public class Gaboto {
    * @param entity
    *          The entity to be removed.
    */
-  synchronized public void remove(GabotoEntity entity) {
+  public void remove(GabotoEntity entity) {
     remove(entity, entity.getTimeSpan());
   }
 
@@ -584,9 +1596,14 @@ public class Gaboto {
    * @param ts
    *          Defines the graph from which the entity should be removed.
    */
-  synchronized public void remove(GabotoEntity entity, TimeSpan ts) {
-    for (Triple t : entity.getTriplesFor(true))
-        remove(ts, t);
+  public void remove(GabotoEntity entity, TimeSpan ts) {
+    lock.writeLock().lock();
+    try {
+      for (Triple t : entity.getTriplesFor(true))
+          remove(ts, t);
+    } finally {
+      lock.writeLock().unlock();
+    }
   }
 
   /**
@@ -609,11 +1626,25 @@ public class Gaboto {
    * @see UpdateListener
    * @see InsertionGabotoEvent
    */
-  synchronized public void add(Triple triple) {
-    getGlobalKnowledgeGraph().add(triple);
-
-    // inform listeners
-    triggerUpdateEvent(new InsertionGabotoEvent(triple));
+  public void add(Triple triple) {
+    triple = nodeDictionary.intern(triple);
+    lock.writeLock().lock();
+    try {
+      GabotoEvent event = needsEvents() ? new InsertionGabotoEvent(triple) : null;
+      journal(event);
+      digestAdd(getGlobalKnowledgeGraph(), triple);
+      catalogueAdd(getGlobalKnowledgeGraph(), triple);
+      getGlobalKnowledgeGraph().add(triple);
+      graphChanged(getGlobalKnowledgeGraph());
+
+      // inform listeners
+      version++;
+      if (!updateListeners.isEmpty())
+        triggerUpdateEvent(event);
+      committed();
+    } finally {
+      lock.writeLock().unlock();
+    }
   }
 
   /**
@@ -636,11 +1667,24 @@ public class Gaboto {
    * @see UpdateListener
    * @see RemovalGabotoEvent
    */
-  synchronized public void remove(Triple triple) {
-    getGlobalKnowledgeGraph().delete(triple);
-
-    // inform listeners
-    triggerUpdateEvent(new RemovalGabotoEvent(triple));
+  public void remove(Triple triple) {
+    lock.writeLock().lock();
+    try {
+      GabotoEvent event = needsEvents() ? new RemovalGabotoEvent(triple) : null;
+      journal(event);
+      digestRemove(getGlobalKnowledgeGraph(), triple);
+      getGlobalKnowledgeGraph().delete(triple);
+      updateEntityCatalogue(triple.getSubject(), triple.getPredicate());
+      graphChanged(getGlobalKnowledgeGraph());
+
+      // inform listeners
+      version++;
+      if (!updateListeners.isEmpty())
+        triggerUpdateEvent(event);
+      committed();
+    } finally {
+      lock.writeLock().unlock();
+    }
   }
 
   /**
@@ -652,48 +1696,168 @@ public class Gaboto {
    * </p>
    * 
    * <p>
-   * Update listeners are informed.
+   * Update listeners are informed.
+   * </p>
+   * 
+   * @param ts
+   *          The time span in which the triple is valid. if the time span is
+   *          null, then the triple will be added to the gkg.
+   * @param triple
+   *          The information that is to be saved.
+   * 
+   * @return The NamedGraph the triple was added to.
+   * 
+   * @see #attachUpdateListener(UpdateListener)
+   * @see #detachUpdateListener(UpdateListener)
+   * @see UpdateListener
+   * @see InsertionGabotoEvent
+   */
+  public NamedGraph add(TimeSpan ts, Triple triple) {
+    triple = nodeDictionary.intern(triple);
+    lock.writeLock().lock();
+    try {
+      if (ts == null || ts.equals(TimeSpan.EXISTENCE)) {
+        add(triple);
+        return null;
+      }
+
+      GabotoEvent event = needsEvents() ? new InsertionGabotoEvent(ts, triple) : null;
+      journal(event);
+
+      NamedGraph graph;
+
+      if (containsGraph(ts))
+        graph = getGraph(ts);
+      else {
+        graph = createNewGraph(ts);
+
+        // update the index
+        try {
+          getTimeDimensionIndexer().add(graph, ts);
+        } catch (NoTimeIndexSetException e) {
+        }
+      }
+
+      digestAdd(graph, triple);
+      catalogueAdd(graph, triple);
+      graph.add(triple);
+      graphChanged(graph);
+
+      // inform listeners
+      version++;
+      if (!updateListeners.isEmpty())
+        triggerUpdateEvent(event);
+      committed();
+
+      return graph;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Starts a unit of work that adds many entities or triples at once.
+   * 
+   * <p>
+   * Nothing is written before the batch is committed. See
+   * {@link GabotoBatch} for details.
+   * </p>
+   * 
+   * @return A new, empty batch.
+   */
+  public GabotoBatch beginBatch() {
+    return new GabotoBatch(this);
+  }
+
+  /**
+   * Adds many {@link GabotoEntity}s to the data in one go.
+   * 
+   * <p>
+   * Same as adding every entity to a new {@link GabotoBatch} and committing
+   * it. Listeners are informed by a single {@link BatchGabotoEvent}.
    * </p>
    * 
-   * @param ts
-   *          The time span in which the triple is valid. if the time span is
-   *          null, then the triple will be added to the gkg.
-   * @param triple
-   *          The information that is to be saved.
-   * 
-   * @return The NamedGraph the triple was added to.
+   * @param entities
+   *          The entities to be added.
    * 
-   * @see #attachUpdateListener(UpdateListener)
-   * @see #detachUpdateListener(UpdateListener)
-   * @see UpdateListener
-   * @see InsertionGabotoEvent
+   * @throws EntityAlreadyExistsException
+   *           If one of the entities already exists in the model, or is
+   *           contained twice. Nothing is added in that case.
    */
-  synchronized public NamedGraph add(TimeSpan ts, Triple triple) {
-    if (ts == null || ts.equals(TimeSpan.EXISTENCE)) {
-      add(triple);
-      return null;
-    }
-
-    NamedGraph graph;
-
-    if (containsGraph(ts))
-      graph = getGraph(ts);
-    else {
-      graph = createNewGraph(ts);
+  public void addAll(Collection<? extends GabotoEntity> entities)
+      throws EntityAlreadyExistsException {
+    GabotoBatch batch = beginBatch();
+    for (GabotoEntity entity : entities)
+      batch.add(entity);
+    batch.commit();
+  }
 
-      // update the index
-      try {
-        getTimeDimensionIndexer().add(graph, ts);
-      } catch (NoTimeIndexSetException e) {
+  /**
+   * Writes a batch: removes its quads, creates missing graphs once, adds each
+   * graph's triples in bulk and fires a single event.
+   */
+  void commit(GabotoBatch batch) throws EntityAlreadyExistsException {
+    if (batch.size() == 0)
+      return;
+    lock.writeLock().lock();
+    try {
+      for (String uri : batch.getNewEntities())
+        if (containsEntity(uri))
+          throw new EntityAlreadyExistsException(uri);
+
+      // only build events if somebody is listening or journaling
+      GabotoEvent event = null;
+      if (needsEvents()) {
+        List<GabotoEvent> events = new ArrayList<GabotoEvent>(batch.size());
+        for (Quad q : batch.getRemovals())
+          events.add(new RemovalGabotoEvent(q));
+        for (GabotoBatch.Group group : batch.getGroups()) {
+          TimeSpan ts = group.getTimeSpan();
+          for (Triple t : group.getTriples())
+            events.add(ts == null ? new InsertionGabotoEvent(t)
+                : new InsertionGabotoEvent(ts, t));
+        }
+        event = new BatchGabotoEvent(events);
       }
-    }
-
-    graph.add(triple);
+      journal(event);
+
+      // removals first, so that a triple both removed and added remains
+      for (Quad q : batch.getRemovals())
+        removeQuad(q);
+
+      for (GabotoBatch.Group group : batch.getGroups()) {
+        TimeSpan ts = group.getTimeSpan();
+        NamedGraph graph;
+        if (ts == null)
+          graph = getGlobalKnowledgeGraph();
+        else if (containsGraph(ts))
+          graph = getGraph(ts);
+        else {
+          graph = createNewGraph(ts);
+          try {
+            getTimeDimensionIndexer().add(graph, ts);
+          } catch (NoTimeIndexSetException e) {
+          }
+        }
 
-    // inform listeners
-    triggerUpdateEvent(new InsertionGabotoEvent(ts, triple));
+        GraphDigest digest = digests.get(graph.getGraphName().getURI());
+        for (Triple t : new HashSet<Triple>(group.getTriples())) {
+          if (digest != null && !graph.contains(t))
+            digest.add(t);
+          catalogueAdd(graph, t);
+        }
+        graph.getBulkUpdateHandler().add(group.getTriples());
+        graphChanged(graph);
+      }
 
-    return graph;
+      // inform listeners
+      version++;
+      if (!updateListeners.isEmpty())
+        triggerUpdateEvent(event);
+      committed();
+    } finally {
+      lock.writeLock().unlock();
+    }
   }
 
   /**
@@ -715,17 +1879,30 @@ public class Gaboto {
    * @see UpdateListener
    * @see RemovalGabotoEvent
    */
-  synchronized public void remove(TimeSpan ts, Triple triple) {
-    if (ts == null || ts.equals(TimeSpan.EXISTENCE)) {
-      remove(triple);
-      return;
-    }
-
-    if (containsGraph(ts)) {
-      NamedGraph graph = getGraph(ts);
-      graph.delete(triple);
+  public void remove(TimeSpan ts, Triple triple) {
+    lock.writeLock().lock();
+    try {
+      if (ts == null || ts.equals(TimeSpan.EXISTENCE)) {
+        remove(triple);
+        return;
+      }
 
-      triggerUpdateEvent(new RemovalGabotoEvent(ts, triple));
+      if (containsGraph(ts)) {
+        GabotoEvent event = needsEvents() ? new RemovalGabotoEvent(ts, triple) : null;
+        journal(event);
+        NamedGraph graph = getGraph(ts);
+        digestRemove(graph, triple);
+        graph.delete(triple);
+        updateEntityCatalogue(triple.getSubject(), triple.getPredicate());
+        graphChanged(graph);
+
+        version++;
+        if (!updateListeners.isEmpty())
+          triggerUpdateEvent(event);
+        committed();
+      }
+    } finally {
+      lock.writeLock().unlock();
     }
   }
 
@@ -735,10 +1912,43 @@ public class Gaboto {
    * @param q
    *          the quad.
    */
-  synchronized public void remove(Quad q) {
-    getNamedGraphSet().removeQuad(q);
+  public void remove(Quad q) {
+    lock.writeLock().lock();
+    try {
+      GabotoEvent event = needsEvents() ? new RemovalGabotoEvent(q) : null;
+      journal(event);
+      removeQuad(q);
+
+      version++;
+      if (!updateListeners.isEmpty())
+        triggerUpdateEvent(event);
+      committed();
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
 
-    triggerUpdateEvent(new RemovalGabotoEvent(q));
+  /**
+   * Removes a quad (pattern) without informing listeners. Must be called
+   * holding the write lock.
+   */
+  private void removeQuad(Quad q) {
+    if (!q.getGraphName().isConcrete())
+      digests.clear();
+    else if (q.getTriple().isConcrete()) {
+      if (containsGraph(q.getGraphName().getURI()))
+        digestRemove(getGraph(q.getGraphName().getURI()), q.getTriple());
+    } else
+      digests.remove(q.getGraphName().getURI());
+    getNamedGraphSet().removeQuad(q);
+    updateEntityCatalogue(q.getSubject(), q.getPredicate());
+    if (q.getGraphName().isConcrete()) {
+      dirtyGraphs.add(q.getGraphName().getURI());
+      modified(q.getGraphName().getURI());
+    } else {
+      segmentDirectory = null;
+      modificationEpoch++;
+    }
   }
 
   /**
@@ -749,7 +1959,7 @@ public class Gaboto {
    *          The timespan/TimeInstant
    * @return the name a graph for this timespan would have
    */
-  private String getGraphNameFor(TimeSpan ts) {
+  public String getGraphNameFor(TimeSpan ts) {
     return config.getNSGraphs() + "tg-" + ts.toString();
   }
 
@@ -769,47 +1979,49 @@ public class Gaboto {
     // calculate name and create graph
     String name = getGraphNameFor(ts);
     NamedGraph graph = getNamedGraphSet().createGraph(name);
+    digests.put(name, new GraphDigest());
 
     // put information about graph in cdg
     Model cdgModel = getContextDescriptionGraph();
 
     Graph cdgGraph = cdgModel.getGraph();
+    Node graphNode = nodeDictionary.uri(name);
 
     // say that the graph is a graph. We do that in the cdg as well to have all
     // the information on the graph in the cdg
-    cdgGraph.add(new Triple(Node.createURI(name), Node.createURI(RDF.type
-        .getURI()), Node.createURI(RDFGraph.Graph.getURI())));
+    cdgGraph.add(new Triple(graphNode, nodeDictionary.uri(RDF.type
+        .getURI()), nodeDictionary.uri(RDFGraph.Graph.getURI())));
 
     // say that the graph is actually a graph
-    cdgGraph.add(new Triple(Node.createURI(name), Node.createURI(RDF.type
-        .getURI()), Node.createURI(RDFGraph.Graph.getURI())));
+    cdgGraph.add(new Triple(graphNode, nodeDictionary.uri(RDF.type
+        .getURI()), nodeDictionary.uri(RDFGraph.Graph.getURI())));
 
     // attach a temporal dimension to the graph
     Node tempD = Node.createAnon();
-    cdgGraph.add(new Triple(Node.createURI(name), Node
-        .createURI(RDFContext.hasTemporalDimension.getURI()), tempD));
+    cdgGraph.add(new Triple(graphNode, nodeDictionary
+        .uri(RDFContext.hasTemporalDimension.getURI()), tempD));
 
     // Say that the temporal dimension is actually a Interval
-    cdgGraph.add(new Triple(tempD, Node.createURI(RDF.type.getURI()), Node
-        .createURI(TimeVocab.Interval.getURI())));
+    cdgGraph.add(new Triple(tempD, nodeDictionary.uri(RDF.type.getURI()),
+        nodeDictionary.uri(TimeVocab.Interval.getURI())));
 
     // attach a beginning to the interval
     Node beginning = Node.createAnon();
-    cdgGraph.add(new Triple(tempD, Node.createURI(TimeVocab.hasBeginning
+    cdgGraph.add(new Triple(tempD, nodeDictionary.uri(TimeVocab.hasBeginning
         .getURI()), beginning));
 
     // say that the beginning is an instant
-    cdgGraph.add(new Triple(beginning, Node.createURI(RDF.type.getURI()), Node
-        .createURI(TimeVocab.Instant.getURI())));
+    cdgGraph.add(new Triple(beginning, nodeDictionary.uri(RDF.type.getURI()),
+        nodeDictionary.uri(TimeVocab.Instant.getURI())));
 
     // attach a time description to the beginning
     Node beginningDesc = Node.createAnon();
-    cdgGraph.add(new Triple(beginning, Node
-        .createURI(TimeVocab.hasDateTimeDescription.getURI()), beginningDesc));
+    cdgGraph.add(new Triple(beginning, nodeDictionary
+        .uri(TimeVocab.hasDateTimeDescription.getURI()), beginningDesc));
 
     // set the type of the time description
-    cdgGraph.add(new Triple(beginningDesc, Node.createURI(RDF.type.getURI()),
-        Node.createURI(TimeVocab.DateTimeDescription.getURI())));
+    cdgGraph.add(new Triple(beginningDesc, nodeDictionary.uri(RDF.type.getURI()),
+        nodeDictionary.uri(TimeVocab.DateTimeDescription.getURI())));
 
     // now actually describe the time description
     String unitType = "";
@@ -819,18 +2031,18 @@ public class Gaboto {
       unitType = TimeVocab.unitMonth.getURI();
     else
       unitType = TimeVocab.unitYear.getURI();
-    cdgGraph.add(new Triple(beginningDesc, Node.createURI(TimeVocab.unitType
-        .getURI()), Node.createURI(unitType)));
-    cdgGraph.add(new Triple(beginningDesc, Node.createURI(TimeVocab.year
+    cdgGraph.add(new Triple(beginningDesc, nodeDictionary.uri(TimeVocab.unitType
+        .getURI()), nodeDictionary.uri(unitType)));
+    cdgGraph.add(new Triple(beginningDesc, nodeDictionary.uri(TimeVocab.year
         .getURI()), Node.createLiteral(String.valueOf(ts.getStartYear()), null,
         XSDDatatype.XSDinteger)));
     if (null != ts.getStartMonth()) {
-      cdgGraph.add(new Triple(beginningDesc, Node.createURI(TimeVocab.month
+      cdgGraph.add(new Triple(beginningDesc, nodeDictionary.uri(TimeVocab.month
           .getURI()), Node.createLiteral(String.valueOf(ts.getStartMonth()),
           null, XSDDatatype.XSDinteger)));
     }
     if (null != ts.getStartDay()) {
-      cdgGraph.add(new Triple(beginningDesc, Node.createURI(TimeVocab.day
+      cdgGraph.add(new Triple(beginningDesc, nodeDictionary.uri(TimeVocab.day
           .getURI()), Node.createLiteral(String.valueOf(ts.getStartDay()),
           null, XSDDatatype.XSDinteger)));
     }
@@ -839,28 +2051,30 @@ public class Gaboto {
 
     if (ts.hasFixedDuration()) {
       Node durationDesc = Node.createAnon();
-      cdgGraph.add(new Triple(tempD, Node
-          .createURI(TimeVocab.hasDurationDescription.getURI()), durationDesc));
-      cdgGraph.add(new Triple(durationDesc, Node.createURI(RDF.type.getURI()),
-          Node.createURI(TimeVocab.DurationDescription.getURI())));
+      cdgGraph.add(new Triple(tempD, nodeDictionary
+          .uri(TimeVocab.hasDurationDescription.getURI()), durationDesc));
+      cdgGraph.add(new Triple(durationDesc, nodeDictionary.uri(RDF.type.getURI()),
+          nodeDictionary.uri(TimeVocab.DurationDescription.getURI())));
 
       if (ts.getDurationYear() != null) {
         cdgGraph
-            .add(new Triple(durationDesc, Node.createURI(TimeVocab.years
+            .add(new Triple(durationDesc, nodeDictionary.uri(TimeVocab.years
                 .getURI()), Node.createLiteral(String.valueOf(ts
                 .getDurationYear()), null, XSDDatatype.XSDinteger)));
       }
       if (ts.getDurationMonth() != null) {
-        cdgGraph.add(new Triple(durationDesc, Node.createURI(TimeVocab.months
+        cdgGraph.add(new Triple(durationDesc, nodeDictionary.uri(TimeVocab.months
             .getURI()), Node.createLiteral(String
             .valueOf(ts.getDurationMonth()), null, XSDDatatype.XSDinteger)));
       }
       if (ts.getDurationDay() != null) {
-        cdgGraph.add(new Triple(durationDesc, Node.createURI(TimeVocab.days
+        cdgGraph.add(new Triple(durationDesc, nodeDictionary.uri(TimeVocab.days
             .getURI()), Node.createLiteral(String.valueOf(ts.getDurationDay()),
             null, XSDDatatype.XSDinteger)));
       }
     }
+    cdgDirty = true;
+    cdgDigest = null;
 
     return graph;
   }
@@ -883,7 +2097,12 @@ public class Gaboto {
    * @return True if Gaboto contains a graph for this time span
    */
   public boolean containsGraph(TimeSpan ts) {
-    return this.getNamedGraphSet().containsGraph(getGraphNameFor(ts));
+    lock.readLock().lock();
+    try {
+      return this.getNamedGraphSet().containsGraph(getGraphNameFor(ts));
+    } finally {
+      lock.readLock().unlock();
+    }
   }
 
   /**
@@ -895,7 +2114,12 @@ public class Gaboto {
    * @return True if Gaboto contains the graph.
    */
   public boolean containsGraph(String uri) {
-    return this.getNamedGraphSet().containsGraph(uri);
+    lock.readLock().lock();
+    try {
+      return this.getNamedGraphSet().containsGraph(uri);
+    } finally {
+      lock.readLock().unlock();
+    }
   }
 
   /**
@@ -907,7 +2131,12 @@ public class Gaboto {
    * @return The named graph or null.
    */
   public NamedGraph getGraph(String uri) {
-    return this.getNamedGraphSet().getGraph(uri);
+    lock.readLock().lock();
+    try {
+      return this.getNamedGraphSet().getGraph(uri);
+    } finally {
+      lock.readLock().unlock();
+    }
   }
 
   /**
@@ -919,7 +2148,12 @@ public class Gaboto {
    * @return The corresponding graph or null.
    */
   public NamedGraph getGraph(TimeSpan ts) {
-    return this.getNamedGraphSet().getGraph(getGraphNameFor(ts));
+    lock.readLock().lock();
+    try {
+      return this.getNamedGraphSet().getGraph(getGraphNameFor(ts));
+    } finally {
+      lock.readLock().unlock();
+    }
   }
 
   /**
@@ -1013,11 +2247,14 @@ public class Gaboto {
    *         system.
    */
   public boolean containsEntity(String uri) {
-    if (uri == null)
-      throw new IllegalArgumentException("URI may not be null.");
-    return getNamedGraphSet().containsQuad(
-        new Quad(Node.ANY, Node.createURI(uri), Node.createURI(RDF.type
-            .getURI()), Node.ANY));
+    lock.readLock().lock();
+    try {
+      if (uri == null)
+        throw new IllegalArgumentException("URI may not be null.");
+      return entityCatalogue.contains(uri);
+    } finally {
+      lock.readLock().unlock();
+    }
   }
 
   /**
@@ -1033,12 +2270,17 @@ public class Gaboto {
    * @throws NoTimeIndexSetException
    */
   public GabotoEntity getEntity(String uri, TimeInstant ti) {
-    if (!containsEntity(uri))
-      throw new EntityDoesNotExistException(uri);
+    lock.readLock().lock();
+    try {
+      if (!containsEntity(uri))
+        throw new EntityDoesNotExistException(uri);
 
-    GabotoSnapshot snap = getSnapshot(ti);
+      GabotoSnapshot snap = getSnapshot(ti);
 
-    return snap.loadEntity(uri);
+      return snap.loadEntity(uri);
+    } finally {
+      lock.readLock().unlock();
+    }
   }
 
   /**
@@ -1049,10 +2291,15 @@ public class Gaboto {
    * @return A full representation of the entity.
    */
   public GabotoTimeBasedEntity getEntityOverTime(String uri) {
-    if (!containsEntity(uri))
-      throw new EntityDoesNotExistException(uri);
+    lock.readLock().lock();
+    try {
+      if (!containsEntity(uri))
+        throw new EntityDoesNotExistException(uri);
 
-    return GabotoTimeBasedEntity.loadEntity(uri, this);
+      return GabotoTimeBasedEntity.loadEntity(uri, this);
+    } finally {
+      lock.readLock().unlock();
+    }
   }
 
   /**
@@ -1086,8 +2333,13 @@ public class Gaboto {
    * @return True, if the resource exists.
    */
   public boolean containsResource(String uri) {
-    return getNamedGraphSet().containsQuad(
-        new Quad(Node.ANY, Node.createURI(uri), Node.ANY, Node.ANY));
+    lock.readLock().lock();
+    try {
+      return getNamedGraphSet().containsQuad(
+          new Quad(Node.ANY, nodeDictionary.uri(uri), Node.ANY, Node.ANY));
+    } finally {
+      lock.readLock().unlock();
+    }
   }
 
   /**
@@ -1098,26 +2350,25 @@ public class Gaboto {
    * 
    */
   public String getTypeOf(String uri) {
-    if (!containsEntity(uri))
-      throw new EntityDoesNotExistException(uri);
-
-    Iterator<?> it = getNamedGraphSet().findQuads(Node.ANY, Node.createURI(uri),
-        Node.createURI(RDF.type.getURI()), Node.ANY);
+    lock.readLock().lock();
+    try {
+      EntityCatalogue.Entry entry = entityCatalogue.get(uri);
+      if (entry == null)
+        throw new EntityDoesNotExistException(uri);
 
-    if (it.hasNext()) {
-      Quad quad = (Quad)it.next();
-      if (it.hasNext())
+      if (entry.isConflicting())
         throw new IncoherenceException("Corrupted data. " + uri
             + " has two triples defining its type");
 
-      if (!quad.getObject().isURI()) {
+      if (!entry.getType().isURI()) {
         throw new IncoherenceException("Corrupted data. " + uri
             + " has an invalid type.");
       }
 
-      return quad.getObject().getURI();
-    } else 
-      throw new GabotoRuntimeException("No quad found");
+      return entry.getType().getURI();
+    } finally {
+      lock.readLock().unlock();
+    }
   }
 
   /**
@@ -1135,27 +2386,26 @@ public class Gaboto {
    * 
    */
   public TimeSpan getEntitysLifetime(String uri) {
-    if (!containsEntity(uri))
-      throw new EntityDoesNotExistException(uri);
-
-    Iterator<?> it = getNamedGraphSet().findQuads(Node.ANY, Node.createURI(uri),
-        Node.createURI(RDF.type.getURI()), Node.ANY);
+    lock.readLock().lock();
+    try {
+      EntityCatalogue.Entry entry = entityCatalogue.get(uri);
+      if (entry == null)
+        throw new EntityDoesNotExistException(uri);
 
-    if (it.hasNext()) {
-      Quad quad = (Quad)it.next();
-      if (it.hasNext())
+      if (entry.isConflicting())
         System.err.println("Corrupted data. " + uri
             + " has two triples defining its type");
 
-      if (!quad.getObject().isURI()) {
+      if (!entry.getType().isURI()) {
         System.err.println("Corrupted data. " + uri + " has has not a valid type.");
         throw new IncoherenceException("Corrupted data. " + uri
             + " has has not a valid type.");
       }
 
-      return TimeSpan.createFromGraphName(quad.getGraphName().getURI(), this);
-    } else 
-      throw new RuntimeException("No quad found");
+      return entityCatalogue.getLifetime(entry, this);
+    } finally {
+      lock.readLock().unlock();
+    }
   }
 
   /**
@@ -1167,17 +2417,22 @@ public class Gaboto {
    * @return A collection of uris.
    */
   public Collection<String> getEntityURIsFor(Property prop) {
-    Collection<String> uris = new HashSet<String>();
+    lock.readLock().lock();
+    try {
+      Collection<String> uris = new HashSet<String>();
 
-    // find in named graphs
-    Iterator<?> it = getNamedGraphSet().findQuads(Node.ANY, Node.ANY,
-        Node.createURI(prop.getURI()), Node.ANY);
-    while (it.hasNext()) {
-      Quad q = (Quad)it.next();
-      uris.add(q.getSubject().getURI());
-    }
+      // find in named graphs
+      Iterator<?> it = getNamedGraphSet().findQuads(Node.ANY, Node.ANY,
+          nodeDictionary.uri(prop.getURI()), Node.ANY);
+      while (it.hasNext()) {
+        Quad q = (Quad)it.next();
+        uris.add(q.getSubject().getURI());
+      }
 
-    return uris;
+      return uris;
+    } finally {
+      lock.readLock().unlock();
+    }
   }
 
   /**
@@ -1191,17 +2446,22 @@ public class Gaboto {
    * @return A collection of uris.
    */
   public Collection<String> getEntityURIsFor(Property prop, String value) {
-    Collection<String> uris = new HashSet<String>();
+    lock.readLock().lock();
+    try {
+      Collection<String> uris = new HashSet<String>();
 
-    // find in named graphs
-    Iterator<?> it = getNamedGraphSet().findQuads(Node.ANY, Node.ANY,
-        Node.createURI(prop.getURI()), Node.createLiteral(value));
-    while (it.hasNext()) {
-      Quad q = (Quad)it.next();
-      uris.add(q.getSubject().getURI());
-    }
+      // find in named graphs
+      Iterator<?> it = getNamedGraphSet().findQuads(Node.ANY, Node.ANY,
+          nodeDictionary.uri(prop.getURI()), Node.createLiteral(value));
+      while (it.hasNext()) {
+        Quad q = (Quad)it.next();
+        uris.add(q.getSubject().getURI());
+      }
 
-    return uris;
+      return uris;
+    } finally {
+      lock.readLock().unlock();
+    }
   }
 
   /**
@@ -1215,17 +2475,22 @@ public class Gaboto {
    * @return A collection of uris.
    */
   public Collection<String> getEntityURIsFor(Property prop, Node value) {
-    Collection<String> uris = new HashSet<String>();
+    lock.readLock().lock();
+    try {
+      Collection<String> uris = new HashSet<String>();
 
-    // find in named graphs
-    Iterator<?> it = getNamedGraphSet().findQuads(Node.ANY, Node.ANY,
-        Node.createURI(prop.getURI()), value);
-    while (it.hasNext()) {
-      Quad q = (Quad)it.next();
-      uris.add(q.getSubject().getURI());
-    }
+      // find in named graphs
+      Iterator<?> it = getNamedGraphSet().findQuads(Node.ANY, Node.ANY,
+          nodeDictionary.uri(prop.getURI()), value);
+      while (it.hasNext()) {
+        Quad q = (Quad)it.next();
+        uris.add(q.getSubject().getURI());
+      }
 
-    return uris;
+      return uris;
+    } finally {
+      lock.readLock().unlock();
+    }
   }
 
   /**
@@ -1300,7 +2565,12 @@ public class Gaboto {
    *          The OutputStream to write to.
    */
   public void write(OutputStream os) {
-    getNamedGraphSet().write(os, GRAPH_LANGUAGE, null);
+    lock.readLock().lock();
+    try {
+      getNamedGraphSet().write(os, GRAPH_LANGUAGE, null);
+    } finally {
+      lock.readLock().unlock();
+    }
   }
 
   /**
@@ -1311,7 +2581,12 @@ public class Gaboto {
    *          The output format to use.
    */
   public void write(OutputStream os, String format) {
-    getNamedGraphSet().write(os, format, null);
+    lock.readLock().lock();
+    try {
+      getNamedGraphSet().write(os, format, null);
+    } finally {
+      lock.readLock().unlock();
+    }
   }
 
   /**
@@ -1320,7 +2595,12 @@ public class Gaboto {
    *          The OutputStream to write to.
    */
   public void writeCDG(OutputStream os) {
-    getContextDescriptionGraph().write(os);
+    lock.readLock().lock();
+    try {
+      getContextDescriptionGraph().write(os);
+    } finally {
+      lock.readLock().unlock();
+    }
   }
 
   /**
@@ -1331,7 +2611,12 @@ public class Gaboto {
    *          The RDF format.
    */
   public void writeCDG(OutputStream os, String format) {
-    getContextDescriptionGraph().write(os, format);
+    lock.readLock().lock();
+    try {
+      getContextDescriptionGraph().write(os, format);
+    } finally {
+      lock.readLock().unlock();
+    }
   }
 
   /**
@@ -1346,15 +2631,28 @@ public class Gaboto {
    * @param graphIS graphs file input stream 
    */
   public void read(InputStream graphIS) {
-    if (graphIS == null)
-      throw new NullPointerException();
-    getNamedGraphSet().read(graphIS, GRAPH_LANGUAGE, config.getNSData());
+    lock.writeLock().lock();
+    try {
+      if (graphIS == null)
+        throw new NullPointerException();
+      getNamedGraphSet().read(graphIS, GRAPH_LANGUAGE, config.getNSData());
+      dataRead();
+    } finally {
+      lock.writeLock().unlock();
+    }
   }
   public void read(String graphXml) { 
     read(graphXml, GRAPH_LANGUAGE);
   }
-  public void read(String graphXml, String format) { 
-    getNamedGraphSet().read(new StringReader(graphXml), format, null);    
+  public void read(String graphXml, String format) {
+    lock.writeLock().lock();
+    try {
+ 
+      getNamedGraphSet().read(new StringReader(graphXml), format, null);
+      dataRead();
+    } finally {
+      lock.writeLock().unlock();
+    }
   }
   /**
    * 
@@ -1365,12 +2663,18 @@ public class Gaboto {
    */
   public void read(InputStream oxpIS, String oxpFormat, InputStream cdgIS,
       String cdgFormat) {
-    if (oxpIS == null)
-      throw new NullPointerException();
-    if (cdgIS == null)
-      throw new NullPointerException();
-    getNamedGraphSet().read(oxpIS, oxpFormat, null);
-    getContextDescriptionGraph().read(cdgIS, cdgFormat);
+    lock.writeLock().lock();
+    try {
+      if (oxpIS == null)
+        throw new NullPointerException();
+      if (cdgIS == null)
+        throw new NullPointerException();
+      getNamedGraphSet().read(oxpIS, oxpFormat, null);
+      getContextDescriptionGraph().read(cdgIS, cdgFormat);
+      dataRead();
+    } finally {
+      lock.writeLock().unlock();
+    }
   }
 
   
@@ -1386,71 +2690,341 @@ public class Gaboto {
   }
 
   /**
+   * Two Gabotos are equal if their named graphs and their cdgs have the same
+   * digests, see {@link GraphDigest}. Graphs with blank nodes are in addition
+   * tested for isomorphism, as their digests do not tell how their blank
+   * nodes are connected.
+   * 
    * @see java.lang.Object#equals(java.lang.Object)
    */
   @Override
   public boolean equals(Object obj) {
-    if (this == obj) return true;
-    if (! (obj instanceof Gaboto))
+    if (this == obj)
+      return true;
+    if (!(obj instanceof Gaboto))
       return false;
-    else { 
-      if (getContextDescriptionGraph().isIsomorphicWith(((Gaboto)obj).getContextDescriptionGraph())) { 
-        if (getJenaModelViewOnNamedGraphSet().
-                isIsomorphicWith(((Gaboto)obj).getJenaModelViewOnNamedGraphSet())) {           
-          return true;
-        } else { 
-          Model us = getJenaModelViewOnNamedGraphSet();
-          Model them = ((Gaboto)obj).getJenaModelViewOnNamedGraphSet();
-          StmtIterator ours = us.listStatements();
-          System.err.println("unique to us");
-          while (ours.hasNext()) {
-            Statement s = ours.next();
-            if (!them.contains(s)) 
-              System.err.println(s);
-          }
-          System.err.println("unique to them");
-          StmtIterator theirs = them.listStatements();
-          while (theirs.hasNext()) {
-            Statement s = theirs.next();
-            if (!us.contains(s)) 
-              System.err.println(s);
-          }
-          
-          return false;          
-        }
-      } else { 
-        if (getJenaModelViewOnNamedGraphSet().
-                isIsomorphicWith(((Gaboto)obj).getJenaModelViewOnNamedGraphSet())) {           
-          System.err.println("CDGs only differ ");
-        }
+    Gaboto other = (Gaboto) obj;
+
+    // never hold both locks at once
+    Map<String, GraphDigest> theirs = other.getDigests();
+    GraphDigest theirCDG = other.getContextDescriptionGraphDigest();
+
+    if (!getContextDescriptionGraphDigest().equals(theirCDG)
+        || !getDigests().equals(theirs))
+      return false;
+
+    if (theirCDG.hasBlankNodes()
+        && !isIsomorphicWith(null, other.copyGraph(null)))
+      return false;
+    for (Map.Entry<String, GraphDigest> entry : theirs.entrySet())
+      if (entry.getValue().hasBlankNodes()
+          && !isIsomorphicWith(entry.getKey(), other.copyGraph(entry.getKey())))
         return false;
+
+    return true;
+  }
+
+  /**
+   * Copies a named graph, or the cdg if the URI is null, into memory.
+   */
+  private Graph copyGraph(String graphURI) {
+    lock.readLock().lock();
+    try {
+      Graph copy = Factory.createGraphMem();
+      ExtendedIterator<Triple> it = (graphURI == null ? getContextDescriptionGraph()
+          .getGraph() : getNamedGraphSet().getGraph(graphURI)).find(Node.ANY,
+          Node.ANY, Node.ANY);
+      try {
+        while (it.hasNext())
+          copy.add(it.next());
+      } finally {
+        it.close();
+      }
+      return copy;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Tests if a named graph, or the cdg if the URI is null, is isomorphic with
+   * the supplied graph.
+   */
+  private boolean isIsomorphicWith(String graphURI, Graph graph) {
+    lock.readLock().lock();
+    try {
+      Graph ours = graphURI == null ? getContextDescriptionGraph().getGraph()
+          : getNamedGraphSet().getGraph(graphURI);
+      return ours != null && ours.isIsomorphicWith(graph);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Returns the digest of a named graph.
+   * 
+   * <p>
+   * The digest is computed when first asked for and maintained as the graph
+   * changes through this Gaboto, so that comparing graphs and detecting
+   * changes costs constant time per graph.
+   * </p>
+   * 
+   * @param graphURI
+   *          The graph's URI.
+   * @return A copy of the graph's digest, or null if there is no such graph.
+   * @see GraphDigest
+   */
+  public GraphDigest getDigest(String graphURI) {
+    lock.readLock().lock();
+    try {
+      if (!getNamedGraphSet().containsGraph(graphURI))
+        return null;
+      return digestOf(graphURI).copy();
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Returns the digests of all named graphs.
+   * 
+   * @return Copies of the digests by graph URI.
+   */
+  public Map<String, GraphDigest> getDigests() {
+    lock.readLock().lock();
+    try {
+      Map<String, GraphDigest> all = new HashMap<String, GraphDigest>();
+      Iterator<?> it = getNamedGraphSet().listGraphs();
+      while (it.hasNext()) {
+        String uri = ((NamedGraph) it.next()).getGraphName().getURI();
+        all.put(uri, digestOf(uri).copy());
+      }
+      return all;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Returns the named graphs that changed since the supplied digests were
+   * taken, including graphs that were created since.
+   * 
+   * @param digests
+   *          Digests as returned by {@link #getDigests()}.
+   * @return The URIs of the changed graphs.
+   */
+  public Collection<String> getGraphsChangedSince(Map<String, GraphDigest> digests) {
+    Collection<String> changed = new ArrayList<String>();
+    for (Map.Entry<String, GraphDigest> entry : getDigests().entrySet())
+      if (!entry.getValue().equals(digests.get(entry.getKey())))
+        changed.add(entry.getKey());
+    return changed;
+  }
+
+  /**
+   * @return A copy of the digest of the context description graph.
+   */
+  public GraphDigest getContextDescriptionGraphDigest() {
+    lock.readLock().lock();
+    try {
+      GraphDigest digest = cdgDigest;
+      if (digest == null) {
+        digest = GraphDigest.of(getContextDescriptionGraph().getGraph());
+        cdgDigest = digest;
       }
+      return digest.copy();
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Returns the maintained digest of a graph, computing it if necessary. Must
+   * be called holding a lock.
+   */
+  private GraphDigest digestOf(String graphURI) {
+    GraphDigest digest = digests.get(graphURI);
+    if (digest == null) {
+      digest = GraphDigest.of(getNamedGraphSet().getGraph(graphURI));
+      GraphDigest computed = digests.putIfAbsent(graphURI, digest);
+      if (computed != null)
+        digest = computed;
+    }
+    return digest;
+  }
+
+  /**
+   * Counts a change to a named graph. Must be called holding the write lock.
+   */
+  private void modified(String graphURI) {
+    Long count = modifications.get(graphURI);
+    modifications.put(graphURI, count == null ? 1 : count + 1);
+  }
+
+  /**
+   * Returns a stamp that changes whenever the set of supplied graphs, one of
+   * these graphs or the gkg changes. Must be called holding a lock.
+   */
+  private String stampOf(Collection<String> graphURIs) {
+    Long gkg = modifications.get(getGlobalKnowledgeGraph().getGraphName().getURI());
+    // counts only grow, so their sum changes with any of them
+    long count = gkg == null ? 0 : gkg;
+    for (String uri : graphURIs) {
+      Long c = modifications.get(uri);
+      if (c != null)
+        count += c;
     }
+    return modificationEpoch + ":" + count + ":" + fingerprint(graphURIs);
   }
 
+
+  /**
+   * Writes the complete Gaboto, its cdg and its time index to the given
+   * directory, replacing a segmented store in that directory. 
+   * 
+   * @param actualOutputDir
+   *          The directory to write to.
+   * @see #persistSegments(String)
+   */
   public void persistToDisk(String actualOutputDir) {
-    File graphsFile = new File(actualOutputDir, GRAPH_FILE_NAME);
-    FileOutputStream actualOutputStream;
+    long highestId = lockForCheckpoint();
     try {
-      actualOutputStream = new FileOutputStream(graphsFile);
-    } catch (FileNotFoundException e) {
-      throw new GabotoRuntimeException(e);
+      File graphsFile = new File(actualOutputDir, GRAPH_FILE_NAME);
+      File graphsTemp = new File(actualOutputDir, GRAPH_FILE_NAME + ".tmp");
+      FileOutputStream actualOutputStream;
+      try {
+        actualOutputStream = new FileOutputStream(graphsTemp);
+      } catch (FileNotFoundException e) {
+        throw new GabotoRuntimeException(e);
+      }
+      write(actualOutputStream);
+      try {
+        actualOutputStream.close();
+        FileUtils.replaceFile(graphsTemp, graphsFile);
+      } catch (IOException e) {
+        throw new GabotoRuntimeException(e);
+      }
+      SegmentedStore.invalidate(new File(actualOutputDir));
+
+      persistContext(actualOutputDir);
+      persistHighestId(actualOutputDir, highestId);
+      checkpointed(actualOutputDir);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Writes Gaboto to the given directory as one file per graph.
+   * 
+   * <p>
+   * Only the graphs that changed since the last call for the same directory
+   * are written, and the cdg and time index only if graphs were created.
+   * Everything is written on the first call, after data was read, and if a
+   * quad pattern was removed. The files written by
+   * {@link #persistToDisk(String)} are removed from the directory.
+   * </p>
+   * 
+   * @param actualOutputDir
+   *          The directory to write to.
+   * @return The number of graphs written.
+   * @see #readSegments(String)
+   */
+  public int persistSegments(String actualOutputDir) {
+    long highestId = lockForCheckpoint();
+    try {
+      // the dirty state is changed under the read lock
+      synchronized (dirtyGraphs) {
+        File dir = new File(actualOutputDir).getAbsoluteFile();
+        boolean all = !dir.equals(segmentDirectory);
+        int written;
+        try {
+          written = SegmentedStore.write(getNamedGraphSet(), dir,
+              all ? null : dirtyGraphs);
+        } catch (IOException e) {
+          throw new GabotoRuntimeException(e);
+        }
+        if (all || cdgDirty
+            || !new File(actualOutputDir, CDG_FILE_NAME).exists())
+          persistContext(actualOutputDir);
+        new File(actualOutputDir, GRAPH_FILE_NAME).delete();
+
+        dirtyGraphs.clear();
+        cdgDirty = false;
+        segmentDirectory = dir;
+
+        persistHighestId(actualOutputDir, highestId);
+        checkpointed(actualOutputDir);
+        return written;
+      }
+    } finally {
+      lock.readLock().unlock();
     }
-    write(actualOutputStream);
+  }
+
+  /**
+   * Takes the highest id under the write lock and downgrades to the read
+   * lock, so that no writer can slip in between and the recorded id matches
+   * the data written. The read lock has to be released by the caller.
+   * 
+   * @return the highest id handed out
+   */
+  private long lockForCheckpoint() {
+    lock.writeLock().lock();
     try {
-      actualOutputStream.close();
-    } catch (IOException e) {
-      throw new GabotoRuntimeException(e);
+      removeRecordedHighestId();
+      long highestId = id.get();
+      lock.readLock().lock();
+      return highestId;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Writes Gaboto to the given directory in the layout already found there.
+   * 
+   * @param actualOutputDir
+   *          The directory to write to.
+   * @see #persistToDisk(String)
+   * @see #persistSegments(String)
+   */
+  public void checkpoint(String actualOutputDir) {
+    if (SegmentedStore.exists(new File(actualOutputDir)))
+      persistSegments(actualOutputDir);
+    else
+      persistToDisk(actualOutputDir);
+  }
+
+  /**
+   * Returns the URIs of the graphs changed since the last call to
+   * {@link #persistSegments(String)}.
+   * 
+   * @return The URIs of the changed graphs.
+   */
+  public Collection<String> getDirtyGraphs() {
+    lock.readLock().lock();
+    try {
+      synchronized (dirtyGraphs) {
+        return new ArrayList<String>(dirtyGraphs);
+      }
+    } finally {
+      lock.readLock().unlock();
     }
-    
+  }
+
+  /**
+   * Writes the cdg and the time index, which is tied to the cdg by its
+   * checksum. Both are written to temporary files first and then moved into
+   * place, so that a crash never leaves a partly written file behind.
+   */
+  private void persistContext(String actualOutputDir) {
     File contextFile = new File(actualOutputDir, CDG_FILE_NAME);
-    
-    
-    
-    
+    File contextTemp = new File(actualOutputDir, CDG_FILE_NAME + ".tmp");
     FileOutputStream contextOutputStream;
     try {
-      contextOutputStream = new FileOutputStream(contextFile);
+      contextOutputStream = new FileOutputStream(contextTemp);
     } catch (FileNotFoundException e) {
       throw new GabotoRuntimeException(e);
     }
@@ -1460,8 +3034,83 @@ public class Gaboto {
     } catch (IOException e) {
       throw new GabotoRuntimeException(e);
     }
-    
+
+    File indexFile = new File(actualOutputDir, TIME_INDEX_FILE_NAME);
+    File indexTemp = new File(actualOutputDir, TIME_INDEX_FILE_NAME + ".tmp");
+    try {
+      if (timeDimensionIndexer != null) {
+        long checksum = FileUtils.checksum(contextTemp);
+        OutputStream indexOutputStream = new BufferedOutputStream(new FileOutputStream(indexTemp));
+        try {
+          timeDimensionIndexer.write(indexOutputStream, checksum);
+        } finally {
+          indexOutputStream.close();
+        }
+      }
+
+      // an index not matching the cdg's checksum is ignored on load
+      FileUtils.replaceFile(contextTemp, contextFile);
+      if (timeDimensionIndexer == null)
+        indexFile.delete();
+      else
+        FileUtils.replaceFile(indexTemp, indexFile);
+    } catch (IOException e) {
+      throw new GabotoRuntimeException(e);
+    }
+  }
+
+  /**
+   * Empties the journal once a checkpoint was written to its directory. Must
+   * only be called once all files of the checkpoint have been moved into
+   * place.
+   */
+  private void checkpointed(String actualOutputDir) {
+    // writers are blocked, so the journal holds nothing beyond this checkpoint
+    if (journal != null
+        && journal.getFile().getAbsoluteFile().getParentFile().equals(
+            new File(actualOutputDir).getAbsoluteFile()))
+      journal.truncate();
+  }
+
+  /**
+   * Reads a store written by {@link #persistSegments(String)}: the cdg and the
+   * graphs.
+   * 
+   * @param directoryName
+   *          The store directory.
+   */
+  public void readSegments(String directoryName) {
+    lock.writeLock().lock();
+    try {
+      File dir = new File(directoryName).getAbsoluteFile();
+      InputStream cdgIS = new BufferedInputStream(new FileInputStream(new File(dir, CDG_FILE_NAME)));
+      try {
+        getContextDescriptionGraph().read(cdgIS, CDG_LANGUAGE);
+      } finally {
+        cdgIS.close();
+      }
+      SegmentedStore.read(getNamedGraphSet(), dir);
+      dataRead();
+
+      // what was read is what is on disk
+      dirtyGraphs.clear();
+      cdgDirty = false;
+      segmentDirectory = dir;
+    } catch (IOException e) {
+      throw new GabotoRuntimeException(e);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * @return Whether the directory holds a store written by
+   *         {@link #persistSegments(String)}.
+   */
+  public static boolean isSegmentedStore(String directoryName) {
+    return SegmentedStore.exists(new File(directoryName));
   }
 
 
+
 }
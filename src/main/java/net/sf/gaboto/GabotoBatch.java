@@ -0,0 +1,359 @@
+/**
+ * Copyright 2009 University of Oxford
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *  - Neither the name of the University of Oxford nor the names of its 
+ *    contributors may be used to endorse or promote products derived from this 
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.sf.gaboto;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import net.sf.gaboto.event.BatchGabotoEvent;
+import net.sf.gaboto.node.GabotoEntity;
+import net.sf.gaboto.node.GabotoTimeBasedEntity;
+import net.sf.gaboto.time.TimeSpan;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+
+import de.fuberlin.wiwiss.ng4j.Quad;
+
+/**
+ * A unit of work that adds (and removes) many entities or triples to Gaboto at
+ * once.
+ * 
+ * <p>
+ * Triples are collected and grouped by the graph they belong to. On
+ * {@link #commit()} every missing graph is created (and indexed) once, the
+ * triples of each graph are added in bulk and listeners are informed by a
+ * single {@link BatchGabotoEvent}. This is considerably cheaper than adding
+ * many entities one by one, which checks for each triple whether its graph
+ * exists and fires one event per triple.
+ * </p>
+ * 
+ * <p>
+ * Nothing is written before {@link #commit()}. Duplicates are checked on
+ * commit, before any triple is added, so that a batch containing an entity
+ * that already exists leaves Gaboto unchanged. A batch is not thread safe
+ * and may be reused once committed.
+ * </p>
+ * 
+ * <pre>
+ * GabotoBatch batch = gaboto.beginBatch();
+ * for (GabotoEntity entity : entities)
+ *   batch.add(entity);
+ * batch.commit();
+ * </pre>
+ * 
+ * <p>
+ * Removals are applied before any triple is added. As a {@link DiffSink}, a
+ * batch collects the differences found by {@link GabotoDiff}, so that 
+ * committing it brings its Gaboto in line with the other side of the diff.
+ * </p>
+ * 
+ * @see Gaboto#beginBatch()
+ * @see Gaboto#addAll(Collection)
+ */
+public class GabotoBatch implements DiffSink {
+
+  /**
+   * The triples destined for one graph.
+   */
+  static class Group {
+    private TimeSpan timeSpan;
+    private List<Triple> triples = new ArrayList<Triple>();
+
+    Group(TimeSpan timeSpan) {
+      this.timeSpan = timeSpan;
+    }
+
+    /**
+     * @return the time span of the graph, or null for the global knowledge graph
+     */
+    TimeSpan getTimeSpan() {
+      return timeSpan;
+    }
+
+    List<Triple> getTriples() {
+      return triples;
+    }
+  }
+
+  private Gaboto gaboto;
+
+  /** Groups by graph name, in the order they were first used. */
+  private Map<String, Group> groups = new LinkedHashMap<String, Group>();
+
+  /** Entities that must not exist when the batch is committed. */
+  private Set<String> newEntities = new HashSet<String>();
+
+  /** Quads to remove, in order. */
+  private List<Quad> removals = new ArrayList<Quad>();
+
+  /** The graph differences are currently reported for. */
+  private Node diffGraph;
+
+  private TimeSpan diffTimeSpan;
+
+  private int size = 0;
+
+  GabotoBatch(Gaboto gaboto) {
+    this.gaboto = gaboto;
+  }
+
+  /**
+   * Adds an entity, including the triple denoting its type.
+   * 
+   * @param entity
+   *          The entity to be added.
+   * @throws EntityAlreadyExistsException
+   *           If the entity was already added to this batch.
+   * 
+   * @see Gaboto#add(GabotoEntity)
+   */
+  public void add(GabotoEntity entity) throws EntityAlreadyExistsException {
+    add(entity, true);
+  }
+
+  /**
+   * Adds an entity.
+   * 
+   * @param entity
+   *          The entity to be added.
+   * @param includeType
+   *          Whether or not the triple denoting its type should be added. If
+   *          it is, the entity must not exist yet.
+   * @throws EntityAlreadyExistsException
+   *           If the entity was already added to this batch.
+   * 
+   * @see Gaboto#add(GabotoEntity, boolean)
+   */
+  public void add(GabotoEntity entity, boolean includeType)
+      throws EntityAlreadyExistsException {
+    if (includeType)
+      checkNew(entity.getUri());
+
+    TimeSpan ts = entity.getTimeSpan().canonicalize();
+    for (Triple t : entity.getTriplesFor(includeType))
+      add(ts, t);
+  }
+
+  /**
+   * Adds a time based entity.
+   * 
+   * @param entityTB
+   *          The entity to be added.
+   * @throws EntityAlreadyExistsException
+   *           If the entity was already added to this batch.
+   * 
+   * @see Gaboto#add(GabotoTimeBasedEntity)
+   */
+  public void add(GabotoTimeBasedEntity entityTB)
+      throws EntityAlreadyExistsException {
+    checkNew(entityTB.getUri());
+
+    add(entityTB.getTimeSpan(), entityTB.getRDFTypeTriple());
+
+    Iterator<GabotoEntity> it = entityTB.iterator();
+    while (it.hasNext())
+      add(it.next(), false);
+  }
+
+  /**
+   * Adds a triple to the global knowledge graph.
+   * 
+   * @param triple
+   *          The triple.
+   * 
+   * @see Gaboto#add(Triple)
+   */
+  public void add(Triple triple) {
+    add(null, triple);
+  }
+
+  /**
+   * Adds a triple to the graph corresponding to the supplied time span.
+   * 
+   * @param ts
+   *          The time span in which the triple is valid. If the time span is
+   *          null, then the triple will be added to the gkg.
+   * @param triple
+   *          The triple.
+   * 
+   * @see Gaboto#add(TimeSpan, Triple)
+   */
+  public void add(TimeSpan ts, Triple triple) {
+    if (ts != null && ts.equals(TimeSpan.EXISTENCE))
+      ts = null;
+    String name = ts == null ? null : gaboto.getGraphNameFor(ts);
+    Group group = groups.get(name);
+    if (group == null) {
+      group = new Group(ts);
+      groups.put(name, group);
+    }
+    group.getTriples().add(gaboto.getNodeDictionary().intern(triple));
+    size++;
+  }
+
+  /**
+   * Removes a triple from the global knowledge graph.
+   * 
+   * @param triple
+   *          The triple.
+   * 
+   * @see Gaboto#remove(Triple)
+   */
+  public void remove(Triple triple) {
+    remove(null, triple);
+  }
+
+  /**
+   * Removes a triple from the graph corresponding to the supplied time span.
+   * 
+   * @param ts
+   *          The time span of the graph. If the time span is null, then the
+   *          triple will be removed from the gkg.
+   * @param triple
+   *          The triple.
+   * 
+   * @see Gaboto#remove(TimeSpan, Triple)
+   */
+  public void remove(TimeSpan ts, Triple triple) {
+    String name;
+    if (ts == null || ts.equals(TimeSpan.EXISTENCE))
+      name = gaboto.getGlobalKnowledgeGraph().getGraphName().getURI();
+    else
+      name = gaboto.getGraphNameFor(ts);
+    remove(new Quad(gaboto.getNodeDictionary().uri(name), triple));
+  }
+
+  /**
+   * Removes a quad or all quads matching a pattern.
+   * 
+   * @param q
+   *          The quad.
+   * 
+   * @see Gaboto#remove(Quad)
+   */
+  public void remove(Quad q) {
+    removals.add(q);
+    size++;
+  }
+
+  /**
+   * Subsequent differences are added to or removed from the graph with the
+   * given time span.
+   * 
+   * @throws IllegalArgumentException
+   *           For differences between snapshots, which do not belong to a
+   *           graph.
+   */
+  public void startGraph(String graphURI, TimeSpan ts) {
+    if (graphURI == null)
+      throw new IllegalArgumentException(
+          "Differences between snapshots cannot be applied to Gaboto.");
+    diffGraph = gaboto.getNodeDictionary().uri(graphURI);
+    diffTimeSpan = ts;
+  }
+
+  public void added(Triple triple) {
+    add(diffTimeSpan, triple);
+  }
+
+  public void removed(Triple triple) {
+    remove(new Quad(diffGraph, triple));
+  }
+
+  public void endGraph() {
+    diffGraph = null;
+    diffTimeSpan = null;
+  }
+
+  /**
+   * Applies all collected removals, writes all collected triples to Gaboto
+   * and informs listeners by a single {@link BatchGabotoEvent}. The batch is
+   * empty afterwards.
+   * 
+   * @throws EntityAlreadyExistsException
+   *           If one of the entities added to this batch already exists in
+   *           Gaboto. Nothing is written in that case.
+   */
+  public void commit() throws EntityAlreadyExistsException {
+    try {
+      gaboto.commit(this);
+    } finally {
+      clear();
+    }
+  }
+
+  /**
+   * Discards all collected triples.
+   */
+  public void clear() {
+    groups.clear();
+    newEntities.clear();
+    removals.clear();
+    size = 0;
+  }
+
+  /**
+   * @return the number of collected triples and removals
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * @return the Gaboto this batch writes to
+   */
+  public Gaboto getGaboto() {
+    return gaboto;
+  }
+
+  Collection<Group> getGroups() {
+    return groups.values();
+  }
+
+  Set<String> getNewEntities() {
+    return newEntities;
+  }
+
+  List<Quad> getRemovals() {
+    return removals;
+  }
+
+  private void checkNew(String uri) throws EntityAlreadyExistsException {
+    if (!newEntities.add(uri))
+      throw new EntityAlreadyExistsException(uri);
+  }
+}
@@ -0,0 +1,371 @@
+/**
+ * Copyright 2009 University of Oxford
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *  - Neither the name of the University of Oxford nor the names of its 
+ *    contributors may be used to endorse or promote products derived from this 
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.sf.gaboto;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import net.sf.gaboto.time.TimeSpan;
+
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.util.iterator.ExtendedIterator;
+
+/**
+ * Computes the differences between two Gabotos or two snapshots.
+ * 
+ * <p>
+ * Gabotos are compared graph by graph. Graphs with equal digests (see
+ * {@link GraphDigest}) and without blank nodes are skipped. The triples
+ * without blank nodes of the other graphs are streamed past the other side
+ * and reported to a {@link DiffSink} without being collected. To bring a
+ * Gaboto in line with another, a batch can be used as the sink:
+ * </p>
+ * 
+ * <pre>
+ * GabotoBatch batch = running.beginBatch();
+ * GabotoDiff.diff(running, imported, batch);
+ * batch.commit();
+ * </pre>
+ * 
+ * <p>
+ * Blank nodes, such as the beans of entities, cannot be matched by label
+ * across two stores. They are compared by structure instead: for every
+ * subject and property, the beans it points to on either side are compared
+ * by their content, including nested beans. Only beans without an equal
+ * counterpart are reported, as the triple linking them together with all of
+ * their triples.
+ * </p>
+ */
+public class GabotoDiff {
+
+  private GabotoDiff() {
+  }
+
+  /**
+   * Reports the triples to add to and remove from each graph of one Gaboto to
+   * obtain the other.
+   * 
+   * @param from
+   *          The Gaboto to compare.
+   * @param to
+   *          The Gaboto to compare to.
+   * @param sink
+   *          Receives the differences.
+   * @return The number of differences reported.
+   */
+  public static long diff(Gaboto from, Gaboto to, DiffSink sink) {
+    // lock in a fixed order so that concurrent diffs cannot deadlock
+    Gaboto first = System.identityHashCode(from) <= System.identityHashCode(to) ? from : to;
+    Gaboto second = first == from ? to : from;
+    first.getLock().readLock().lock();
+    try {
+      second.getLock().readLock().lock();
+      try {
+        return diffGraphs(from, to, sink);
+      } finally {
+        second.getLock().readLock().unlock();
+      }
+    } finally {
+      first.getLock().readLock().unlock();
+    }
+  }
+
+  private static long diffGraphs(Gaboto from, Gaboto to, DiffSink sink) {
+    Map<String, GraphDigest> fromDigests = from.getDigests();
+    Map<String, GraphDigest> toDigests = to.getDigests();
+
+    // in a stable order
+    TreeSet<String> uris = new TreeSet<String>(fromDigests.keySet());
+    uris.addAll(toDigests.keySet());
+
+    String gkg = to.getGlobalKnowledgeGraph().getGraphName().getURI();
+    long count = 0;
+    for (String uri : uris) {
+      GraphDigest fromDigest = fromDigests.get(uri);
+      GraphDigest toDigest = toDigests.get(uri);
+      // equal digests do not tell how blank nodes are connected
+      if (fromDigest != null && fromDigest.equals(toDigest)
+          && !fromDigest.hasBlankNodes())
+        continue;
+
+      Graph fromGraph = fromDigest == null ? null : from.getGraph(uri);
+      Graph toGraph = toDigest == null ? null : to.getGraph(uri);
+      TimeSpan ts = null;
+      if (!uri.equals(gkg))
+        ts = TimeSpan.createFromGraphName(uri, toGraph != null ? to : from);
+
+      sink.startGraph(uri, ts);
+      count += diff(fromGraph, toGraph, sink);
+      sink.endGraph();
+    }
+    return count;
+  }
+
+  /**
+   * Reports the triples to add to and remove from one snapshot to obtain the
+   * other. The sink is told about a single graph without URI.
+   * 
+   * @param from
+   *          The snapshot to compare.
+   * @param to
+   *          The snapshot to compare to.
+   * @param sink
+   *          Receives the differences.
+   * @return The number of differences reported.
+   */
+  public static long diff(GabotoSnapshot from, GabotoSnapshot to, DiffSink sink) {
+    sink.startGraph(null, null);
+    long count = diff(from.getModel().getGraph(), to.getModel().getGraph(), sink);
+    sink.endGraph();
+    return count;
+  }
+
+  /**
+   * Streams the triples without blank nodes of each graph past the other and
+   * compares the beans of both graphs. Either graph may be null if it does
+   * not exist.
+   */
+  private static long diff(Graph from, Graph to, DiffSink sink) {
+    long count = 0;
+    if (from != null)
+      count += diffGround(from, to, sink, true);
+    if (to != null)
+      count += diffGround(to, from, sink, false);
+    count += diffBeans(from, to, sink);
+    return count;
+  }
+
+  /**
+   * Reports the triples without blank nodes of a graph that the other graph
+   * does not contain.
+   */
+  private static long diffGround(Graph graph, Graph other, DiffSink sink, boolean removed) {
+    long count = 0;
+    ExtendedIterator<Triple> it = graph.find(Node.ANY, Node.ANY, Node.ANY);
+    try {
+      while (it.hasNext()) {
+        Triple t = it.next();
+        if (hasBlankNode(t))
+          continue;
+        if (other == null || !other.contains(t)) {
+          if (removed)
+            sink.removed(t);
+          else
+            sink.added(t);
+          count++;
+        }
+      }
+    } finally {
+      it.close();
+    }
+    return count;
+  }
+
+  /**
+   * A blank node together with all triples reachable from it.
+   */
+  private static class Bean {
+    private final String form;
+    private final List<Triple> triples;
+
+    Bean(String form, List<Triple> triples) {
+      this.form = form;
+      this.triples = triples;
+    }
+  }
+
+  /**
+   * Compares the beans of two graphs per subject and property, and reports
+   * the triples of the beans without an equal counterpart.
+   */
+  private static long diffBeans(Graph from, Graph to, DiffSink sink) {
+    Map<String, List<Bean>> fromBeans = from == null ? new HashMap<String, List<Bean>>() : beans(from);
+    Map<String, List<Bean>> toBeans = to == null ? new HashMap<String, List<Bean>>() : beans(to);
+
+    Set<Triple> removed = new LinkedHashSet<Triple>();
+    Set<Triple> added = new LinkedHashSet<Triple>();
+    TreeSet<String> keys = new TreeSet<String>(fromBeans.keySet());
+    keys.addAll(toBeans.keySet());
+    for (String key : keys) {
+      List<Bean> theirs = toBeans.containsKey(key) ? new ArrayList<Bean>(toBeans.get(key)) : new ArrayList<Bean>();
+      if (fromBeans.containsKey(key)) {
+        for (Bean bean : fromBeans.get(key)) {
+          Bean match = null;
+          for (Bean candidate : theirs)
+            if (candidate.form.equals(bean.form)) {
+              match = candidate;
+              break;
+            }
+          if (match != null)
+            theirs.remove(match);
+          else
+            removed.addAll(bean.triples);
+        }
+      }
+      for (Bean bean : theirs)
+        added.addAll(bean.triples);
+    }
+
+    for (Triple t : removed)
+      sink.removed(t);
+    for (Triple t : added)
+      sink.added(t);
+    return removed.size() + added.size();
+  }
+
+  /**
+   * Collects the beans of a graph, keyed by the subject and property linking
+   * to them. Beans no other node links to are keyed by the empty string.
+   */
+  private static Map<String, List<Bean>> beans(Graph graph) {
+    Map<String, List<Bean>> beans = new HashMap<String, List<Bean>>();
+    Set<Triple> covered = new HashSet<Triple>();
+    Set<Node> blanks = new LinkedHashSet<Node>();
+
+    ExtendedIterator<Triple> it = graph.find(Node.ANY, Node.ANY, Node.ANY);
+    try {
+      while (it.hasNext()) {
+        Triple t = it.next();
+        if (t.getSubject().isBlank())
+          blanks.add(t.getSubject());
+        if (!t.getSubject().isBlank() && t.getObject().isBlank()) {
+          List<Triple> triples = new ArrayList<Triple>();
+          triples.add(t);
+          String form = form(graph, t.getObject(), new HashSet<Node>(), triples);
+          addBean(beans, t.getSubject() + " " + t.getPredicate(), new Bean(form, triples));
+          covered.addAll(triples);
+        }
+      }
+    } finally {
+      it.close();
+    }
+
+    // beans nothing links to
+    for (Node blank : blanks) {
+      ExtendedIterator<Triple> in = graph.find(Node.ANY, Node.ANY, blank);
+      try {
+        if (in.hasNext())
+          continue;
+      } finally {
+        in.close();
+      }
+      List<Triple> triples = new ArrayList<Triple>();
+      String form = form(graph, blank, new HashSet<Node>(), triples);
+      addBean(beans, "", new Bean(form, triples));
+      covered.addAll(triples);
+    }
+
+    // blank nodes only linked to from a cycle of blank nodes
+    List<Triple> rest = new ArrayList<Triple>();
+    List<String> forms = new ArrayList<String>();
+    for (Node blank : blanks) {
+      ExtendedIterator<Triple> out = graph.find(blank, Node.ANY, Node.ANY);
+      try {
+        while (out.hasNext()) {
+          Triple t = out.next();
+          if (!covered.contains(t)) {
+            rest.add(t);
+            forms.add("_ " + t.getPredicate() + " " + (t.getObject().isBlank() ? "_" : t.getObject().toString()));
+          }
+        }
+      } finally {
+        out.close();
+      }
+    }
+    if (!rest.isEmpty()) {
+      Collections.sort(forms);
+      addBean(beans, "", new Bean(forms.toString(), rest));
+    }
+
+    return beans;
+  }
+
+  private static void addBean(Map<String, List<Bean>> beans, String key, Bean bean) {
+    List<Bean> list = beans.get(key);
+    if (list == null) {
+      list = new ArrayList<Bean>();
+      beans.put(key, list);
+    }
+    list.add(bean);
+  }
+
+  /**
+   * Describes the content of a blank node independently of the labels of
+   * blank nodes, and collects the triples reachable from it.
+   * 
+   * @param graph
+   *          The graph.
+   * @param blank
+   *          The blank node.
+   * @param path
+   *          The blank nodes being described, to stop at cycles.
+   * @param triples
+   *          Receives the triples.
+   * @return The description.
+   */
+  private static String form(Graph graph, Node blank, Set<Node> path, List<Triple> triples) {
+    path.add(blank);
+    List<String> parts = new ArrayList<String>();
+    ExtendedIterator<Triple> it = graph.find(blank, Node.ANY, Node.ANY);
+    try {
+      while (it.hasNext()) {
+        Triple t = it.next();
+        triples.add(t);
+        Node o = t.getObject();
+        String object;
+        if (!o.isBlank())
+          object = o.toString();
+        else if (path.contains(o))
+          object = "^";
+        else
+          object = "[" + form(graph, o, path, triples) + "]";
+        parts.add(t.getPredicate() + " " + object);
+      }
+    } finally {
+      it.close();
+    }
+    path.remove(blank);
+    Collections.sort(parts);
+    return parts.toString();
+  }
+
+  private static boolean hasBlankNode(Triple t) {
+    return t.getSubject().isBlank() || t.getObject().isBlank();
+  }
+}
@@ -31,21 +31,19 @@
  */
 package net.sf.gaboto;
 
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.InputStream;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
 import java.util.Hashtable;
-import java.util.Iterator;
 
 
-import net.sf.gaboto.event.GabotoEvent;
-import net.sf.gaboto.event.InsertionGabotoEvent;
-import net.sf.gaboto.event.RemovalGabotoEvent;
-import net.sf.gaboto.event.UpdateListener;
+import net.sf.gaboto.event.AsyncUpdateDispatcher;
 import net.sf.gaboto.time.TimeDimensionIndexer;
 import net.sf.gaboto.time.TimeInstant;
 import net.sf.gaboto.util.Performance;
@@ -61,9 +59,7 @@ import com.hp.hpl.jena.rdf.model.ModelFactory;
 import com.hp.hpl.jena.rdf.model.ModelMaker;
 import com.hp.hpl.jena.vocabulary.RDF;
 
-import de.fuberlin.wiwiss.ng4j.NamedGraph;
 import de.fuberlin.wiwiss.ng4j.NamedGraphSet;
-import de.fuberlin.wiwiss.ng4j.Quad;
 import de.fuberlin.wiwiss.ng4j.db.NamedGraphSetDB;
 import de.fuberlin.wiwiss.ng4j.impl.NamedGraphSetImpl;
 
@@ -76,16 +72,37 @@ import de.fuberlin.wiwiss.ng4j.impl.NamedGraphSetImpl;
  */
 public class GabotoFactory {
 
+	/**
+	 * The number of changes to the persistent Gaboto that may be queued for 
+	 * the in-memory Gaboto before they are coalesced.
+	 */
+	private final static int REPLICATION_QUEUE_CAPACITY = 10000;
+
+	/**
+	 * Size of a journal in bytes beyond which it is compacted into a checkpoint. 
+	 */
+	public final static long JOURNAL_COMPACTION_THRESHOLD = 16 * 1024 * 1024;
+
+	/**
+	 * Milliseconds between two checks whether a journal needs compacting.
+	 */
+	public final static long JOURNAL_COMPACTION_PERIOD = 60 * 1000;
+
 	private static Gaboto persistentGaboto = null;
 
 	static Gaboto inMemoryGaboto = null;
 
+	private static GabotoReplicator replicator = null;
+
+	private static AsyncUpdateDispatcher replication = null;
+
 	private static Model contextDescriptiontGraph = null;
 
 	public static GabotoConfiguration config  = GabotoConfiguration.fromConfigFile();
 
 	private static Hashtable<String,Gaboto> knownStores = new Hashtable<String,Gaboto>();
-	private static Hashtable<String,GabotoSnapshot> knownSnapshots = new Hashtable<String,GabotoSnapshot>();
+
+	private static Hashtable<String,Gaboto> tdbStores = new Hashtable<String,Gaboto>();
 
 	/**
 	 * Returns the Gaboto configuration.
@@ -122,24 +139,33 @@ public class GabotoFactory {
 		return it;
 	}
 	/**
+	 * Instants that resolve to the same set of graphs share a snapshot, 
+	 * see {@link Gaboto#getSnapshot(TimeInstant)}.
+	 * 
 	 * @return a cached or newly minted GabotSnapshot
 	 */
 	public static GabotoSnapshot getSnapshot(String directoryName, TimeInstant timeInstant) { 
-		GabotoSnapshot it = null;
-		String key = directoryName + ":" + timeInstant.toString();
-		synchronized(knownSnapshots){
-			it = knownSnapshots.get(key);
-			if (it == null) {
-				it = getGaboto(directoryName).getSnapshot(timeInstant);
-				knownSnapshots.put(key, it);
-			}
-		}
-		return it;
+		return getGaboto(directoryName).getSnapshot(timeInstant);
 	}
 
 	private static Gaboto readPersistedGaboto(String directoryName) {
+		if (Gaboto.isSegmentedStore(directoryName))
+			return readSegmentedGaboto(directoryName);
 		return readPersistedGaboto(directoryName, Gaboto.GRAPH_FILE_NAME, Gaboto.CDG_FILE_NAME);
 	}
+
+	/**
+	 * Reads a Gaboto written by {@link Gaboto#persistSegments(String)}.
+	 * 
+	 * @param directoryName The store directory.
+	 * @return A new in-memory Gaboto.
+	 */
+	public static Gaboto readSegmentedGaboto(String directoryName) {
+		Gaboto g = getEmptyInMemoryGaboto();
+		g.readSegments(directoryName);
+		restore(g, directoryName, new File(directoryName, Gaboto.CDG_FILE_NAME));
+		return g;
+	}
 	public static Gaboto readPersistedGaboto(String directoryName, String graphName, String contextName) {
 		File graphs = new File(directoryName, graphName);
 		File context = new File(directoryName, contextName);
@@ -151,7 +177,53 @@ public class GabotoFactory {
 		} catch (FileNotFoundException e) {
 			throw new GabotoRuntimeException(e);
 		}
-		return readPersistedGaboto(graphsFileInputStream, contextFileInputStream);
+		Gaboto g = getEmptyInMemoryGaboto();
+		g.read(graphsFileInputStream, contextFileInputStream);
+		restore(g, directoryName, context);
+		return g;
+	}
+
+	/**
+	 * Loads the time index and replays the journal of a Gaboto just read.
+	 */
+	private static void restore(Gaboto g, String directoryName, File context) {
+		// fall back to querying the cdg if the persisted index is missing or stale
+		if (!g.readTimeDimensionIndex(new File(directoryName, Gaboto.TIME_INDEX_FILE_NAME), context))
+			g.recreateTimeDimensionIndex();
+		g.readHighestId(new File(directoryName, Gaboto.HIGHEST_ID_FILE_NAME));
+		// apply the changes made since the checkpoint 
+		ChangeJournal.replay(new File(directoryName, Gaboto.JOURNAL_FILE_NAME), g);
+	}
+
+	/**
+	 * Opens a Gaboto persisted in the given directory that records every change 
+	 * in a {@link ChangeJournal} rather than requiring to be persisted as a 
+	 * whole.
+	 * 
+	 * <p>
+	 * The store is read from its last checkpoint and journal. An empty store is 
+	 * created if the directory holds none. In the background, the journal is 
+	 * compacted into a new checkpoint once it has grown beyond 
+	 * {@link #JOURNAL_COMPACTION_THRESHOLD} bytes.
+	 * </p>
+	 * 
+	 * @param directoryName The directory holding the store.
+	 * @return A Gaboto object writing to the journal. 
+	 */
+	public static Gaboto getJournaledGaboto(String directoryName) {
+		Gaboto g;
+		if (Gaboto.isSegmentedStore(directoryName) 
+				|| new File(directoryName, Gaboto.GRAPH_FILE_NAME).exists())
+			g = readPersistedGaboto(directoryName);
+		else {
+			new File(directoryName).mkdirs();
+			g = getEmptyInMemoryGaboto();
+			g.persistToDisk(directoryName);
+		}
+		ChangeJournal journal = new ChangeJournal(new File(directoryName, Gaboto.JOURNAL_FILE_NAME));
+		g.setJournal(journal);
+		journal.scheduleCompaction(g, directoryName, JOURNAL_COMPACTION_PERIOD, JOURNAL_COMPACTION_THRESHOLD);
+		return g;
 	}
 	public static Gaboto readPersistedGaboto(InputStream graphsInputStream, InputStream contextInputStream) {
 		Gaboto g = getEmptyInMemoryGaboto();
@@ -174,6 +246,112 @@ public class GabotoFactory {
 		return new Gaboto(createGlobalKnowledgeGraph(ModelFactory.createDefaultModel(), graphset), graphset, new TimeDimensionIndexer());
 	}
 
+	/**
+	 * Opens a Gaboto stored in a TDB dataset in the given directory, creating 
+	 * an empty one if the directory holds none.
+	 * 
+	 * <p>
+	 * Unlike {@link #getPersistentGaboto()}, this needs no database server and 
+	 * looks up quads through TDB's indexes. A time dimension indexer is set. 
+	 * Changes are synced to disk after every change and after every committed 
+	 * {@link GabotoBatch}, so adding many triples should be done in batches. 
+	 * A sync is not atomic: a crash while syncing may leave only part of a 
+	 * batch on disk.
+	 * </p>
+	 * 
+	 * @param directory The directory holding the dataset.
+	 * @return A Gaboto stored in TDB.
+	 * @see TdbNamedGraphSet
+	 */
+	public static Gaboto getTdbGaboto(File directory) {
+		String key = directory.getAbsolutePath();
+		synchronized(tdbStores) {
+			Gaboto it = tdbStores.get(key);
+			if (it == null) {
+				directory.mkdirs();
+				it = openTdbGaboto(new TdbNamedGraphSet(directory));
+				tdbStores.put(key, it);
+			}
+			return it;
+		}
+	}
+
+	/**
+	 * Reads a Gaboto from a file written by {@link BinaryStore#write(Gaboto, File)}.
+	 * 
+	 * <p>
+	 * The file is memory mapped and decoded straight into the graphs, without 
+	 * parsing any RDF or rebuilding the time index.
+	 * </p>
+	 * 
+	 * @param file The binary file.
+	 * @return A new in-memory Gaboto.
+	 */
+	public static Gaboto getBinaryGaboto(File file) {
+		return BinaryStore.read(file);
+	}
+
+	/**
+	 * Loads a store written by {@link Gaboto#persistToDisk(String)} into a TDB 
+	 * dataset and opens it.
+	 * 
+	 * <p>
+	 * The graphs are parsed straight into the dataset, which is only synced 
+	 * once everything has been loaded. Existing data in the dataset is kept.
+	 * </p>
+	 * 
+	 * @param directory The directory holding the dataset.
+	 * @param dumpDirectoryName The directory holding the graphs and cdg files.
+	 * @return A Gaboto stored in TDB.
+	 */
+	public static Gaboto loadTdbGaboto(File directory, String dumpDirectoryName) {
+		String key = directory.getAbsolutePath();
+		synchronized(tdbStores) {
+			if (tdbStores.containsKey(key))
+				throw new IllegalStateException("TDB store " + key + " is already open.");
+
+			directory.mkdirs();
+			TdbNamedGraphSet graphset = new TdbNamedGraphSet(directory);
+			try {
+				InputStream graphs = new BufferedInputStream(new FileInputStream(new File(dumpDirectoryName, Gaboto.GRAPH_FILE_NAME)));
+				try {
+					graphset.read(graphs, Gaboto.GRAPH_LANGUAGE, config.getNSData());
+				} finally {
+					graphs.close();
+				}
+				InputStream context = new BufferedInputStream(new FileInputStream(new File(dumpDirectoryName, Gaboto.CDG_FILE_NAME)));
+				try {
+					graphset.getContextDescriptionGraph().read(context, null, Gaboto.CDG_LANGUAGE);
+				} finally {
+					context.close();
+				}
+			} catch (IOException e) {
+				throw new GabotoRuntimeException(e);
+			}
+			graphset.sync();
+
+			Gaboto it = openTdbGaboto(graphset);
+			tdbStores.put(key, it);
+			return it;
+		}
+	}
+
+	private static Gaboto openTdbGaboto(final TdbNamedGraphSet graphset) {
+		Model cdg = graphset.getContextDescriptionGraph();
+		if (!graphset.containsGraph(config.getGlobalKnowledgeGraphURI()))
+			createGlobalKnowledgeGraph(cdg, graphset);
+		graphset.sync();
+
+		Gaboto g = new Gaboto(cdg, graphset, new TimeDimensionIndexer());
+		// run once per change or batch, with the write lock still held
+		g.addCommitHook(new Runnable() {
+			public void run() {
+				graphset.sync();
+			}
+		});
+		return g;
+	}
+
 	/**
 	 * Creates a new in-memory Gaboto system that is kept in sync with the persistent Gaboto object.
 	 * 
@@ -182,7 +360,11 @@ public class GabotoFactory {
 	 * </p>
 	 * 
 	 * <p>
-	 * In memory objects should only be used for querying data.
+	 * In memory objects should only be used for querying data. Changes to the 
+	 * persistent Gaboto are replicated asynchronously and may become visible 
+	 * with a short delay. Should a change fail to replicate, the in-memory 
+	 * Gaboto stops following the persistent one and the next call returns a 
+	 * freshly copied one instead.
 	 * </p>
 	 * 
 	 * @return An Gaboto object with an in-memory store.
@@ -190,25 +372,32 @@ public class GabotoFactory {
 	 * @see #getPersistentGaboto()
 	 */
 	public static Gaboto getInMemoryGaboto() {
-		if(inMemoryGaboto != null) {
+		if(inMemoryGaboto != null && !replicator.isStale()) {
 			return inMemoryGaboto;
 		}
 
 		Gaboto po = getPersistentGaboto();
+		if (replication != null) {
+			po.detachUpdateListener(replication);
+			replication.close();
+		}
 
-		// Create a new graphset and copy graphs
+		// Create a new graphset and copy graphs while writers are blocked, 
+		// so that no change between copying and listening is missed
 		NamedGraphSet graphset = new NamedGraphSetImpl();
-		Iterator<NamedGraph> graphIt = po.getNamedGraphSet().listGraphs();
-		while(graphIt.hasNext())
-			graphset.createGraph(((NamedGraph)graphIt.next()).getGraphName());
-		System.err.println("getInMemoryGaboto: have created graphs");
+		po.getLock().readLock().lock();
+		try {
+			GabotoReplicator.copy(po.getNamedGraphSet(), graphset, Runtime.getRuntime().availableProcessors());
 
-		Iterator<?> it = po.getNamedGraphSet().findQuads(Node.ANY, Node.ANY, Node.ANY, Node.ANY);
-		while(it.hasNext())
-			graphset.addQuad((Quad)it.next());
-		System.err.println("getInMemoryGaboto: have added quads");
+			inMemoryGaboto = new Gaboto(createDbBackedCDG(), graphset, new TimeDimensionIndexer());
 
-		inMemoryGaboto = new Gaboto(createDbBackedCDG(), graphset, new TimeDimensionIndexer());
+			// replicate changes in coalesced batches without holding up writers 
+			replicator = new GabotoReplicator(inMemoryGaboto);
+			replication = po.attachAsyncUpdateListener(replicator, 
+					REPLICATION_QUEUE_CAPACITY, AsyncUpdateDispatcher.POLICY_COALESCE);
+		} finally {
+			po.getLock().readLock().unlock();
+		}
 
 		System.err.println("getInMemoryGaboto: returning");
 		return inMemoryGaboto;
@@ -232,7 +421,8 @@ public class GabotoFactory {
 	 * </p>
 	 * 
 	 * <p>
-	 * Update the persistent and the in-memory copy is updated.
+	 * Update the persistent and the in-memory copy is updated. Changes reach the 
+	 * in-memory copy asynchronously, in batches.
 	 * </p>
 	 * 
 	 * @return A new persistent Gaboto
@@ -277,33 +467,6 @@ public class GabotoFactory {
 		persistentGaboto = new Gaboto(cdg, graphset, new TimeDimensionIndexer());
 		Performance.stop();
 
-		Performance.start("GabotoFactory update listener");
-		// attach update listener
-		persistentGaboto.attachUpdateListener(new UpdateListener(){
-			public void updateOccured(GabotoEvent e) {
-				// try to cast event to insertion
-				if(e instanceof InsertionGabotoEvent){
-					InsertionGabotoEvent event = (InsertionGabotoEvent) e;
-					if(event.getTimespan() != null)
-						inMemoryGaboto.add(event.getTimespan(), event.getTriple());
-					else
-						inMemoryGaboto.add(event.getTriple());
-				}
-				// try to cast event to removal
-				else if(e instanceof RemovalGabotoEvent){
-					RemovalGabotoEvent event = (RemovalGabotoEvent) e;
-					if(event.getQuad() != null)
-						inMemoryGaboto.remove(event.getQuad());
-					else if(event.getTimespan() != null && event.getTriple() != null )
-						inMemoryGaboto.remove(event.getTimespan(), event.getTriple());
-					else if(event.getTriple() != null)
-						inMemoryGaboto.remove(event.getTriple());
-				} else 
-					throw new GabotoRuntimeException("Unexpected update type: " + e.getClass());
-			}
-		});
-
-		Performance.stop();
 		return persistentGaboto;
 	}
 
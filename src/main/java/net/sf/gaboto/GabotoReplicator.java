@@ -0,0 +1,260 @@
+/**
+ * Copyright 2009 University of Oxford
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *  - Neither the name of the University of Oxford nor the names of its 
+ *    contributors may be used to endorse or promote products derived from this 
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.sf.gaboto;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import net.sf.gaboto.event.BatchGabotoEvent;
+import net.sf.gaboto.event.BatchUpdateListener;
+import net.sf.gaboto.event.GabotoEvent;
+import net.sf.gaboto.event.InsertionGabotoEvent;
+import net.sf.gaboto.event.RemovalGabotoEvent;
+import net.sf.gaboto.time.TimeSpan;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.util.iterator.ExtendedIterator;
+
+import de.fuberlin.wiwiss.ng4j.NamedGraph;
+import de.fuberlin.wiwiss.ng4j.NamedGraphSet;
+import de.fuberlin.wiwiss.ng4j.Quad;
+import de.fuberlin.wiwiss.ng4j.db.NamedGraphSetDB;
+
+/**
+ * Keeps a Gaboto in sync with the changes made to another one.
+ * 
+ * <p>
+ * The replicator is meant to be attached to the source Gaboto through an
+ * {@link net.sf.gaboto.event.AsyncUpdateDispatcher}, so that the source's
+ * writers do not wait for the replica. Each delivered list of events is
+ * applied to the replica while holding its write lock once: insertions are
+ * collected into a single {@link GabotoBatch}, an insertion that is removed
+ * again within the same list is never written, and removals are applied
+ * directly.
+ * </p>
+ * 
+ * <p>
+ * The initial state of the replica is best created with
+ * {@link #copy(NamedGraphSet, NamedGraphSet, int)}, which copies graphs in
+ * parallel and in bulk.
+ * </p>
+ * 
+ * <p>
+ * Should applying changes fail, the replica may have missed some of them. The
+ * replicator then marks it stale and ignores all further changes, and the
+ * replica has to be copied again.
+ * </p>
+ * 
+ * @see GabotoFactory#getInMemoryGaboto()
+ */
+public class GabotoReplicator implements BatchUpdateListener {
+
+  private Gaboto replica;
+
+  private volatile boolean stale;
+
+  /**
+   * Creates a replicator that applies changes to the supplied Gaboto.
+   * 
+   * @param replica
+   *          The Gaboto to keep in sync.
+   */
+  public GabotoReplicator(Gaboto replica) {
+    this.replica = replica;
+  }
+
+  /**
+   * Applies a single change.
+   */
+  public void updateOccured(GabotoEvent e) {
+    List<GabotoEvent> events = new ArrayList<GabotoEvent>(1);
+    events.add(e);
+    updatesOccured(events);
+  }
+
+  /**
+   * Applies a number of changes, in order, as one unit.
+   */
+  public void updatesOccured(List<GabotoEvent> events) {
+    if (stale)
+      return;
+    boolean applied = false;
+    replica.getLock().writeLock().lock();
+    try {
+      Map<Quad, TimeSpan> insertions = new LinkedHashMap<Quad, TimeSpan>();
+      apply(events, insertions);
+      commit(insertions);
+      applied = true;
+    } finally {
+      if (!applied)
+        stale = true;
+      replica.getLock().writeLock().unlock();
+    }
+  }
+
+  private void apply(List<GabotoEvent> events, Map<Quad, TimeSpan> insertions) {
+    for (GabotoEvent e : events) {
+      if (e instanceof BatchGabotoEvent) {
+        apply(((BatchGabotoEvent) e).getEvents(), insertions);
+      } else if (e instanceof InsertionGabotoEvent) {
+        InsertionGabotoEvent event = (InsertionGabotoEvent) e;
+        TimeSpan ts = event.getTimespan();
+        insertions.put(new Quad(graphNameFor(ts), event.getTriple()), ts);
+      } else if (e instanceof RemovalGabotoEvent) {
+        RemovalGabotoEvent event = (RemovalGabotoEvent) e;
+        if (event.getQuad() != null) {
+          Quad q = event.getQuad();
+          // patterns may match pending insertions
+          if (q.getGraphName().isConcrete() && q.getTriple().isConcrete())
+            insertions.remove(q);
+          else
+            commit(insertions);
+          replica.remove(q);
+        } else if (event.getTriple() != null) {
+          TimeSpan ts = event.getTimespan();
+          insertions.remove(new Quad(graphNameFor(ts), event.getTriple()));
+          if (ts != null)
+            replica.remove(ts, event.getTriple());
+          else
+            replica.remove(event.getTriple());
+        }
+      } else
+        throw new GabotoRuntimeException("Unexpected update type: " + e.getClass());
+    }
+  }
+
+  private Node graphNameFor(TimeSpan ts) {
+    if (ts == null || ts.equals(TimeSpan.EXISTENCE))
+      return replica.getGlobalKnowledgeGraph().getGraphName();
+    return Node.createURI(replica.getGraphNameFor(ts));
+  }
+
+  private void commit(Map<Quad, TimeSpan> insertions) {
+    if (insertions.isEmpty())
+      return;
+    GabotoBatch batch = replica.beginBatch();
+    for (Map.Entry<Quad, TimeSpan> entry : insertions.entrySet())
+      batch.add(entry.getValue(), entry.getKey().getTriple());
+    insertions.clear();
+    try {
+      batch.commit();
+    } catch (EntityAlreadyExistsException e) {
+      throw new GabotoRuntimeException(e);
+    }
+  }
+
+  /**
+   * Copies all graphs of one graph set into another.
+   * 
+   * <p>
+   * Missing graphs are created in the target first. The triples of each graph
+   * are then streamed into the corresponding target graph in bulk, using up
+   * to the given number of threads. The source must not be modified while it
+   * is copied and the target must not be used by others.
+   * </p>
+   * 
+   * <p>
+   * The graphs of a database backed graph set share one JDBC connection,
+   * which cannot run concurrent statements. Such graph sets are copied one
+   * graph at a time.
+   * </p>
+   * 
+   * @param source
+   *          The graph set to copy from.
+   * @param target
+   *          The graph set to copy to.
+   * @param threads
+   *          The number of graphs to copy at a time.
+   */
+  public static void copy(NamedGraphSet source, final NamedGraphSet target, int threads) {
+    // graph sets are not safe for concurrent creation of graphs
+    final List<NamedGraph> graphs = new ArrayList<NamedGraph>();
+    Iterator<NamedGraph> it = source.listGraphs();
+    while (it.hasNext()) {
+      NamedGraph graph = it.next();
+      graphs.add(graph);
+      if (!target.containsGraph(graph.getGraphName()))
+        target.createGraph(graph.getGraphName());
+    }
+
+    if (source instanceof NamedGraphSetDB || target instanceof NamedGraphSetDB)
+      threads = 1;
+    ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, graphs.size())));
+    try {
+      List<Future<Object>> results = new ArrayList<Future<Object>>();
+      for (final NamedGraph graph : graphs) {
+        results.add(executor.submit(new Callable<Object>() {
+          public Object call() {
+            ExtendedIterator<Triple> triples = graph.find(Node.ANY, Node.ANY, Node.ANY);
+            try {
+              target.getGraph(graph.getGraphName()).getBulkUpdateHandler().add(triples);
+            } finally {
+              triples.close();
+            }
+            return null;
+          }
+        }));
+      }
+      for (Future<Object> result : results)
+        result.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new GabotoRuntimeException(e);
+    } catch (ExecutionException e) {
+      throw new GabotoRuntimeException(e.getCause());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * @return True if changes could not be applied, so that the replica no
+   *         longer follows the source and has to be copied again.
+   */
+  public boolean isStale() {
+    return stale;
+  }
+
+  /**
+   * @return The Gaboto that is kept in sync.
+   */
+  public Gaboto getReplica() {
+    return replica;
+  }
+}
@@ -33,7 +33,9 @@ package net.sf.gaboto;
 
 import java.io.OutputStream;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 
 import net.sf.gaboto.node.GabotoEntity;
@@ -43,6 +45,7 @@ import net.sf.gaboto.time.TimeSpan;
 
 
 import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
 import com.hp.hpl.jena.ontology.OntClass;
 import com.hp.hpl.jena.query.QueryExecution;
 import com.hp.hpl.jena.query.QueryExecutionFactory;
@@ -53,8 +56,11 @@ import com.hp.hpl.jena.rdf.model.Property;
 import com.hp.hpl.jena.rdf.model.RDFNode;
 import com.hp.hpl.jena.rdf.model.ResIterator;
 import com.hp.hpl.jena.rdf.model.Resource;
+import com.hp.hpl.jena.rdf.model.Statement;
 import com.hp.hpl.jena.vocabulary.RDF;
 
+import de.fuberlin.wiwiss.ng4j.NamedGraph;
+
 /**
  * Snapshots represent a flat extract from the data in Gaboto.
  * 
@@ -79,6 +85,12 @@ public class GabotoSnapshot {
 	private Model model;
 	
 	private Gaboto gaboto;
+	
+	/** The graphs the snapshot was built from, besides the gkg, or null. */
+	private Collection<String> graphURIs;
+	
+	/** The graphs holding each triple when the snapshot was built, or null. */
+	private Map<Triple, Collection<String>> sourceGraphs;
 
 	/**
 	 * Creates a new snapshot using the Jena Model and Gaboto system.
@@ -91,6 +103,98 @@ public class GabotoSnapshot {
 		 this.gaboto = gaboto;
 	}
 	
+	/**
+	 * Creates a new snapshot of the named graphs and the global knowledge graph 
+	 * of a Gaboto system.
+	 * 
+	 * @param model The Jena Model holding the graphs' statements.
+	 * @param gaboto The Gaboto system.
+	 * @param graphURIs The named graphs the model was built from.
+	 */
+	public GabotoSnapshot(Model model, Gaboto gaboto, Collection<String> graphURIs) {
+		this(model, gaboto);
+		this.graphURIs = Collections.unmodifiableSet(new HashSet<String>(graphURIs));
+	}
+	
+	/**
+	 * Returns the named graphs this snapshot was built from, besides the 
+	 * global knowledge graph.
+	 * 
+	 * @return The graphs' URIs, or null if the snapshot was not built from 
+	 * named graphs.
+	 */
+	public Collection<String> getGraphURIs(){
+		return graphURIs;
+	}
+	
+	/**
+	 * Records the graphs holding each triple of this snapshot.
+	 * 
+	 * @param sourceGraphs The graphs holding each triple, taken under the 
+	 * same lock the snapshot was built under.
+	 */
+	void setSourceGraphs(Map<Triple, Collection<String>> sourceGraphs){
+		this.sourceGraphs = sourceGraphs;
+	}
+	
+	/**
+	 * Returns the graphs a statement of this snapshot came from.
+	 * 
+	 * <p>
+	 * Snapshots built by {@link Gaboto#getSnapshot(TimeSpan, int)} record the 
+	 * graphs holding each statement when they are built. For other snapshots 
+	 * the graphs are looked up in Gaboto instead, so the result reflects 
+	 * Gaboto's current data.
+	 * </p>
+	 * 
+	 * @param stmt The statement.
+	 * @return The URIs of the graphs holding the statement, including the 
+	 * global knowledge graph.
+	 */
+	public Collection<String> getSourceGraphs(Statement stmt){
+		if(graphURIs == null)
+			throw new UnsupportedOperationException("The snapshot was not built from named graphs.");
+		
+		Triple triple = stmt.asTriple();
+		if(sourceGraphs != null){
+			Collection<String> sources = sourceGraphs.get(triple);
+			if(sources == null)
+				return Collections.emptySet();
+			return Collections.unmodifiableCollection(sources);
+		}
+		
+		Collection<String> sources = new HashSet<String>();
+		gaboto.getLock().readLock().lock();
+		try {
+			for(String uri : graphURIs){
+				NamedGraph graph = gaboto.getNamedGraphSet().getGraph(uri);
+				if(graph != null && graph.contains(triple))
+					sources.add(uri);
+			}
+			NamedGraph gkg = gaboto.getGlobalKnowledgeGraph();
+			if(gkg.contains(triple))
+				sources.add(gkg.getGraphName().getURI());
+		} finally {
+			gaboto.getLock().readLock().unlock();
+		}
+		return sources;
+	}
+	
+	/**
+	 * Returns the time spans during which a statement of this snapshot is valid.
+	 * 
+	 * @param stmt The statement.
+	 * @return The time spans of the graphs holding the statement, with 
+	 * {@link TimeSpan#EXISTENCE} for the global knowledge graph.
+	 * @see #getSourceGraphs(Statement)
+	 */
+	public Collection<TimeSpan> getTimeSpans(Statement stmt){
+		Collection<TimeSpan> spans = new HashSet<TimeSpan>();
+		for(String uri : getSourceGraphs(stmt))
+			spans.add(TimeSpan.createFromGraphName(uri, gaboto));
+		return spans;
+	}
+	
 	/**
 	 * Returns the Gaboto model this snapshot is built upon.
 	 * 
@@ -0,0 +1,246 @@
+/**
+ * Copyright 2009 University of Oxford
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *  - Neither the name of the University of Oxford nor the names of its 
+ *    contributors may be used to endorse or promote products derived from this 
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.sf.gaboto;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.util.iterator.ExtendedIterator;
+
+/**
+ * An order independent 128 bit hash of a set of triples.
+ * 
+ * <p>
+ * The digest is the sum, modulo 2<sup>128</sup>, of the MD5 hashes of all
+ * triples. It can thus be updated as triples are added and removed without
+ * looking at the rest of the graph, and two graphs with the same triples have
+ * the same digest no matter in which order the triples were added. Triples
+ * must only be added if they are not yet part of the graph, and only be
+ * removed if they are.
+ * </p>
+ * 
+ * <p>
+ * All blank nodes hash to the same value, so that graphs that only differ in
+ * the labels of their blank nodes have the same digest. Consequently, graphs
+ * that only differ in how their blank nodes are connected cannot be told
+ * apart by their digests. The digest counts the triples with blank nodes, so
+ * that callers know when equal digests have to be confirmed by an isomorphism
+ * check, see {@link #hasBlankNodes()}.
+ * </p>
+ * 
+ * @see Gaboto#getDigest(String)
+ */
+public class GraphDigest {
+
+  private static final ThreadLocal<MessageDigest> md5 = new ThreadLocal<MessageDigest>() {
+    protected MessageDigest initialValue() {
+      try {
+        return MessageDigest.getInstance("MD5");
+      } catch (NoSuchAlgorithmException e) {
+        throw new GabotoRuntimeException(e);
+      }
+    }
+  };
+
+  private long high;
+
+  private long low;
+
+  private long blankTriples;
+
+  /**
+   * Creates the digest of an empty graph.
+   */
+  public GraphDigest() {
+  }
+
+  private GraphDigest(long high, long low, long blankTriples) {
+    this.high = high;
+    this.low = low;
+    this.blankTriples = blankTriples;
+  }
+
+  /**
+   * Computes the digest of all triples in a graph.
+   * 
+   * @param graph
+   *          The graph.
+   * @return The graph's digest.
+   */
+  public static GraphDigest of(Graph graph) {
+    GraphDigest digest = new GraphDigest();
+    ExtendedIterator<Triple> it = graph.find(Node.ANY, Node.ANY, Node.ANY);
+    try {
+      while (it.hasNext())
+        digest.add(it.next());
+    } finally {
+      it.close();
+    }
+    return digest;
+  }
+
+  /**
+   * Accounts for a triple added to the graph.
+   * 
+   * @param triple
+   *          A triple that was not part of the graph.
+   */
+  public void add(Triple triple) {
+    byte[] hash = hash(triple);
+    add(toLong(hash, 0), toLong(hash, 8));
+    if (hasBlankNode(triple))
+      blankTriples++;
+  }
+
+  /**
+   * Accounts for a triple removed from the graph.
+   * 
+   * @param triple
+   *          A triple that was part of the graph.
+   */
+  public void remove(Triple triple) {
+    byte[] hash = hash(triple);
+    add(~toLong(hash, 0), ~toLong(hash, 8));
+    // two's complement: -x = ~x + 1
+    add(0, 1);
+    if (hasBlankNode(triple))
+      blankTriples--;
+  }
+
+  /**
+   * Adds another digest to this one. The result is the digest of the union of
+   * two disjoint graphs.
+   * 
+   * @param other
+   *          The digest to add.
+   */
+  public void add(GraphDigest other) {
+    add(other.high, other.low);
+    blankTriples += other.blankTriples;
+  }
+
+  /**
+   * Tells whether the graph contains blank nodes. Graphs with blank nodes may
+   * differ even if their digests are equal.
+   * 
+   * @return True, if any triple of the graph contains a blank node.
+   */
+  public boolean hasBlankNodes() {
+    return blankTriples > 0;
+  }
+
+  private void add(long h, long l) {
+    long sum = low + l;
+    // carry if the unsigned sum overflowed
+    long carry = ((low & l) | ((low | l) & ~sum)) >>> 63;
+    low = sum;
+    high = high + h + carry;
+  }
+
+  /**
+   * @return A copy of this digest.
+   */
+  public GraphDigest copy() {
+    return new GraphDigest(high, low, blankTriples);
+  }
+
+  private static long toLong(byte[] bytes, int offset) {
+    long value = 0;
+    for (int i = offset; i < offset + 8; i++)
+      value = (value << 8) | (bytes[i] & 0xff);
+    return value;
+  }
+
+  private static boolean hasBlankNode(Triple triple) {
+    return triple.getSubject().isBlank() || triple.getObject().isBlank();
+  }
+
+  private static byte[] hash(Triple triple) {
+    StringBuilder sb = new StringBuilder();
+    append(triple.getSubject(), sb);
+    append(triple.getPredicate(), sb);
+    append(triple.getObject(), sb);
+    try {
+      return md5.get().digest(sb.toString().getBytes("UTF-8"));
+    } catch (UnsupportedEncodingException e) {
+      throw new GabotoRuntimeException(e);
+    }
+  }
+
+  private static void append(Node node, StringBuilder sb) {
+    if (node.isURI())
+      sb.append('U').append(node.getURI());
+    else if (node.isLiteral()) {
+      sb.append('L').append(node.getLiteralLexicalForm()).append('\u0000');
+      if (node.getLiteralLanguage() != null)
+        sb.append(node.getLiteralLanguage());
+      sb.append('\u0000');
+      if (node.getLiteralDatatypeURI() != null)
+        sb.append(node.getLiteralDatatypeURI());
+    } else if (node.isBlank())
+      sb.append('B');
+    else
+      sb.append('?').append(node.toString());
+    sb.append('\u0000');
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (!(obj instanceof GraphDigest))
+      return false;
+    GraphDigest other = (GraphDigest) obj;
+    return high == other.high && low == other.low
+        && blankTriples == other.blankTriples;
+  }
+
+  @Override
+  public int hashCode() {
+    return (int) (low ^ (low >>> 32));
+  }
+
+  /**
+   * @return The digest as 32 hexadecimal digits.
+   */
+  @Override
+  public String toString() {
+    return hex(high) + hex(low);
+  }
+
+  private static String hex(long value) {
+    String s = Long.toHexString(value);
+    while (s.length() < 16)
+      s = "0" + s;
+    return s;
+  }
+}
@@ -0,0 +1,217 @@
+/**
+ * Copyright 2009 University of Oxford
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *  - Neither the name of the University of Oxford nor the names of its 
+ *    contributors may be used to endorse or promote products derived from this 
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.sf.gaboto;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.hp.hpl.jena.datatypes.xsd.XSDDatatype;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+
+/**
+ * Maps nodes to dense int ids and back, handing out one canonical instance
+ * per node.
+ * 
+ * <p>
+ * Gaboto interns the triples it stores, so that a predicate or type URI used
+ * in millions of triples across its graphs is held in memory only once. Only
+ * nodes that tend to be shared are interned: URIs and literals of numeric,
+ * boolean and date datatypes. Blank nodes and other literals, which are
+ * mostly unique, are left alone, as the dictionary would otherwise grow with
+ * every change. Ids are assigned in the order nodes are first seen, starting
+ * at 0, and are never reused: nodes stay in the dictionary after the last
+ * triple using them was removed.
+ * </p>
+ * 
+ * <p>
+ * {@link #id(Node)} assigns ids to any concrete node, so that a dictionary can
+ * also be used to encode a set of triples.
+ * </p>
+ * 
+ * <p>
+ * Lookups do not lock and may run concurrently with the assignment of new
+ * ids.
+ * </p>
+ * 
+ * @see Gaboto#getNodeDictionary()
+ */
+public class NodeDictionary {
+
+  /** Datatypes of literals that are interned. */
+  private static final Set<String> SHARED_DATATYPES = new HashSet<String>(Arrays.asList(
+      XSDDatatype.XSDboolean.getURI(), XSDDatatype.XSDinteger.getURI(),
+      XSDDatatype.XSDint.getURI(), XSDDatatype.XSDlong.getURI(),
+      XSDDatatype.XSDshort.getURI(), XSDDatatype.XSDbyte.getURI(),
+      XSDDatatype.XSDnonNegativeInteger.getURI(),
+      XSDDatatype.XSDpositiveInteger.getURI(), XSDDatatype.XSDgYear.getURI(),
+      XSDDatatype.XSDgYearMonth.getURI(), XSDDatatype.XSDdate.getURI()));
+
+  private final ConcurrentHashMap<Node, Integer> ids = new ConcurrentHashMap<Node, Integer>();
+
+  /** URI nodes by URI, so that they can be looked up without creating one. */
+  private final ConcurrentHashMap<String, Node> uris = new ConcurrentHashMap<String, Node>();
+
+  private volatile Node[] nodes = new Node[1024];
+
+  /** Written after the node it counts, which makes it visible to readers. */
+  private volatile int size = 0;
+
+  /**
+   * Returns the id of a node, assigning the next free id if it is new.
+   * 
+   * @param node
+   *          A concrete node.
+   * @return The node's id.
+   */
+  public int id(Node node) {
+    Integer id = ids.get(node);
+    if (id != null)
+      return id;
+    return assign(node);
+  }
+
+  /**
+   * Returns the id of a node if it has one.
+   * 
+   * @param node
+   *          The node.
+   * @return The node's id, or -1 if it was never seen.
+   */
+  public int lookup(Node node) {
+    Integer id = ids.get(node);
+    return id == null ? -1 : id;
+  }
+
+  /**
+   * Returns the node with the given id.
+   * 
+   * @param id
+   *          The id.
+   * @return The canonical node.
+   * @throws IndexOutOfBoundsException
+   *           If no node has that id.
+   */
+  public Node get(int id) {
+    if (id < 0 || id >= size)
+      throw new IndexOutOfBoundsException("No node with id " + id);
+    return nodes[id];
+  }
+
+  /**
+   * Returns the canonical instance of a node, adding it if it is new. Nodes
+   * that are not shared, such as blank nodes, variables and
+   * {@link Node#ANY}, are returned unchanged.
+   * 
+   * @param node
+   *          The node.
+   * @return The canonical instance.
+   */
+  public Node intern(Node node) {
+    if (!isShared(node))
+      return node;
+    Integer id = ids.get(node);
+    return nodes[id == null ? assign(node) : id];
+  }
+
+  /**
+   * Returns a triple whose nodes are canonical instances. The triple itself
+   * is returned if its nodes already are.
+   * 
+   * @param triple
+   *          The triple.
+   * @return The interned triple.
+   */
+  public Triple intern(Triple triple) {
+    Node s = intern(triple.getSubject());
+    Node p = intern(triple.getPredicate());
+    Node o = intern(triple.getObject());
+    if (s == triple.getSubject() && p == triple.getPredicate()
+        && o == triple.getObject())
+      return triple;
+    return new Triple(s, p, o);
+  }
+
+  /**
+   * Returns the canonical node for a URI, adding it if it is new.
+   * 
+   * @param uri
+   *          The URI.
+   * @return The URI node.
+   */
+  public Node uri(String uri) {
+    Node node = uris.get(uri);
+    if (node != null)
+      return node;
+    return intern(Node.createURI(uri));
+  }
+
+  /**
+   * @return The number of nodes in the dictionary, which is also the next id
+   *         to be assigned.
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Tells whether a node is likely to be used by many triples.
+   */
+  private static boolean isShared(Node node) {
+    if (node.isURI())
+      return true;
+    if (!node.isLiteral())
+      return false;
+    String datatype = node.getLiteralDatatypeURI();
+    return datatype != null && SHARED_DATATYPES.contains(datatype);
+  }
+
+  private synchronized int assign(Node node) {
+    Integer id = ids.get(node);
+    if (id != null)
+      return id;
+
+    int next = size;
+    if (next == nodes.length) {
+      Node[] grown = new Node[next * 2];
+      System.arraycopy(nodes, 0, grown, 0, next);
+      nodes = grown;
+    }
+    nodes[next] = node;
+    size = next + 1;
+
+    ids.put(node, next);
+    if (node.isURI())
+      uris.put(node.getURI(), node);
+    return next;
+  }
+}
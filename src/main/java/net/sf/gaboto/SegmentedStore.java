@@ -0,0 +1,264 @@
+/**
+ * Copyright 2009 University of Oxford
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *  - Neither the name of the University of Oxford nor the names of its 
+ *    contributors may be used to endorse or promote products derived from this 
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.sf.gaboto;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import net.sf.gaboto.util.FileUtils;
+
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+
+import de.fuberlin.wiwiss.ng4j.NamedGraph;
+import de.fuberlin.wiwiss.ng4j.NamedGraphSet;
+
+/**
+ * Reads and writes the named graphs of Gaboto as one N-Triples file per
+ * graph, so that a checkpoint only needs to rewrite the graphs that changed.
+ * 
+ * <p>
+ * The segments live in the directory {@link #SEGMENT_DIR_NAME} next to the
+ * cdg. Their files are named after a hash of the graph's URI and the number
+ * of the checkpoint that wrote them, so that a checkpoint never overwrites a
+ * segment the current index refers to. The index file
+ * {@link #INDEX_FILE_NAME} maps file names to graph URIs and is written last,
+ * to a temporary file that is then renamed: replacing the index commits the
+ * checkpoint. Segments it no longer refers to are deleted afterwards. A crash
+ * at any point thus leaves either the old or the new checkpoint.
+ * </p>
+ * 
+ * <p>
+ * Blank nodes are local to a segment: a blank node shared by two graphs
+ * becomes two blank nodes when the store is read.
+ * </p>
+ * 
+ * @see Gaboto#persistSegments(String)
+ * @see Gaboto#readSegments(String)
+ */
+class SegmentedStore {
+
+  public final static String SEGMENT_DIR_NAME = "graphs";
+
+  public final static String INDEX_FILE_NAME = "segments.idx";
+
+  private final static String SEGMENT_LANGUAGE = "N-TRIPLE";
+
+  private final static String ENCODING = "UTF-8";
+
+  private SegmentedStore() {
+  }
+
+  /**
+   * @return Whether the directory holds a segmented store.
+   */
+  static boolean exists(File directory) {
+    return indexFile(directory).exists();
+  }
+
+  /**
+   * Removes the index, so that the directory is no longer recognised as a
+   * segmented store.
+   */
+  static void invalidate(File directory) {
+    indexFile(directory).delete();
+  }
+
+  private static File indexFile(File directory) {
+    return new File(new File(directory, SEGMENT_DIR_NAME), INDEX_FILE_NAME);
+  }
+
+  /**
+   * Writes the graphs of a graph set.
+   * 
+   * @param graphset
+   *          The graphs to persist.
+   * @param directory
+   *          The store directory.
+   * @param dirty
+   *          The URIs of the graphs to rewrite, or null to rewrite all.
+   * @return The number of segments written.
+   */
+  static int write(NamedGraphSet graphset, File directory, Collection<String> dirty)
+      throws IOException {
+    File segmentDir = new File(directory, SEGMENT_DIR_NAME);
+    if (!segmentDir.isDirectory() && !segmentDir.mkdirs())
+      throw new IOException("Could not create " + segmentDir);
+
+    // segments of the current checkpoint by graph URI
+    Map<String, String> current = exists(directory) ? readIndex(directory)
+        : new HashMap<String, String>();
+    int version = 0;
+    for (String fileName : current.values())
+      version = Math.max(version, versionOf(fileName));
+    version++;
+
+    Map<String, String> index = new LinkedHashMap<String, String>();
+    int written = 0;
+    Iterator<?> it = graphset.listGraphs();
+    while (it.hasNext()) {
+      NamedGraph graph = (NamedGraph) it.next();
+      String uri = graph.getGraphName().getURI();
+      String fileName = current.get(uri);
+      if (fileName != null && (dirty == null || dirty.contains(uri)
+          || !new File(segmentDir, fileName).exists()))
+        fileName = null;
+      if (fileName == null) {
+        fileName = segmentName(uri, version);
+        File tmp = new File(segmentDir, fileName + ".tmp");
+        OutputStream os = new BufferedOutputStream(new FileOutputStream(tmp));
+        try {
+          ModelFactory.createModelForGraph(graph).write(os, SEGMENT_LANGUAGE);
+        } finally {
+          os.close();
+        }
+        FileUtils.replaceFile(tmp, new File(segmentDir, fileName));
+        written++;
+      }
+      index.put(fileName, uri);
+    }
+
+    // the index commits the checkpoint
+    File tmp = new File(segmentDir, INDEX_FILE_NAME + ".tmp");
+    Writer writer = new OutputStreamWriter(new FileOutputStream(tmp), ENCODING);
+    try {
+      for (Map.Entry<String, String> entry : index.entrySet())
+        writer.write(entry.getKey() + "\t" + entry.getValue() + "\n");
+    } finally {
+      writer.close();
+    }
+    FileUtils.replaceFile(tmp, indexFile(directory));
+
+    // remove superseded segments and those of graphs that no longer exist
+    File[] files = segmentDir.listFiles();
+    if (files != null)
+      for (File f : files)
+        if (!f.getName().equals(INDEX_FILE_NAME) && !index.containsKey(f.getName()))
+          f.delete();
+
+    return written;
+  }
+
+  /**
+   * Reads the index of a segmented store.
+   * 
+   * @return The segment file names by graph URI.
+   */
+  private static Map<String, String> readIndex(File directory) throws IOException {
+    Map<String, String> index = new LinkedHashMap<String, String>();
+    BufferedReader reader = new BufferedReader(new InputStreamReader(
+        new FileInputStream(indexFile(directory)), ENCODING));
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        int tab = line.indexOf('\t');
+        if (tab < 0)
+          continue;
+        String uri = line.substring(tab + 1);
+        if (!index.containsKey(uri))
+          index.put(uri, line.substring(0, tab));
+      }
+    } finally {
+      reader.close();
+    }
+    return index;
+  }
+
+  /**
+   * Adds the triples of all segments to the graph set, creating missing
+   * graphs.
+   */
+  static void read(NamedGraphSet graphset, File directory) throws IOException {
+    File segmentDir = new File(directory, SEGMENT_DIR_NAME);
+    for (Map.Entry<String, String> entry : readIndex(directory).entrySet()) {
+      String uri = entry.getKey();
+      Graph graph = graphset.containsGraph(uri) ? graphset.getGraph(uri)
+          : graphset.createGraph(uri);
+      InputStream is = new BufferedInputStream(new FileInputStream(new File(
+          segmentDir, entry.getValue())));
+      try {
+        ModelFactory.createModelForGraph(graph).read(is, null, SEGMENT_LANGUAGE);
+      } finally {
+        is.close();
+      }
+    }
+  }
+
+  /**
+   * Names the segment of a graph by the MD5 hash of its URI and the number of
+   * the checkpoint writing it.
+   */
+  static String segmentName(String graphURI, int version) {
+    try {
+      byte[] digest = MessageDigest.getInstance("MD5").digest(
+          graphURI.getBytes(ENCODING));
+      StringBuilder name = new StringBuilder();
+      for (byte b : digest)
+        name.append(Integer.toHexString((b & 0xff) | 0x100).substring(1));
+      return name.append('.').append(version).append(".nt").toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new GabotoRuntimeException(e);
+    } catch (IOException e) {
+      throw new GabotoRuntimeException(e);
+    }
+  }
+
+  /**
+   * Returns the number of the checkpoint that wrote a segment, 0 for
+   * segments named without one.
+   */
+  private static int versionOf(String fileName) {
+    String[] parts = fileName.split("\\.");
+    if (parts.length != 3)
+      return 0;
+    try {
+      return Integer.parseInt(parts[1]);
+    } catch (NumberFormatException e) {
+      return 0;
+    }
+  }
+}
@@ -0,0 +1,66 @@
+/**
+ * Copyright 2009 University of Oxford
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *  - Neither the name of the University of Oxford nor the names of its 
+ *    contributors may be used to endorse or promote products derived from this 
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.sf.gaboto;
+
+import net.sf.gaboto.node.pool.EntityPool;
+import net.sf.gaboto.time.TimeInstant;
+
+/**
+ * Receives the results of a {@link SnapshotSeries} one instant at a time.
+ * 
+ * @see SnapshotSeries#run(java.util.List, SeriesProcessor)
+ */
+public interface SeriesProcessor {
+
+  /**
+   * Processes the data valid at the next instant.
+   * 
+   * <p>
+   * The snapshot and the pool are changed in place for the following
+   * instant. They must therefore not be kept beyond this call.
+   * </p>
+   * 
+   * @param ti
+   *          The time instant.
+   * @param snapshot
+   *          The snapshot for the instant.
+   * @param pool
+   *          The entity pool for the instant, or null if the series has no
+   *          pool configuration.
+   */
+  public void processInstant(TimeInstant ti, GabotoSnapshot snapshot, EntityPool pool);
+
+  /**
+   * Used to indicate whether it should be continued with the next instant.
+   * 
+   * @return Whether or not to stop processing
+   */
+  public boolean stopProcessing();
+}
@@ -0,0 +1,376 @@
+/**
+ * Copyright 2009 University of Oxford
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *  - Neither the name of the University of Oxford nor the names of its 
+ *    contributors may be used to endorse or promote products derived from this 
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.sf.gaboto;
+
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import net.sf.gaboto.event.GabotoEvent;
+import net.sf.gaboto.event.UpdateListener;
+
+/**
+ * A bounded least-recently-used cache of {@link GabotoSnapshot}s.
+ * 
+ * <p>
+ * The cache is bounded both by the number of snapshots it holds and by the
+ * number of triples held in copied snapshots, which is used as an estimate of
+ * the memory taken up by the cache. Snapshots that are views on the data (see
+ * {@link Gaboto#SNAPSHOT_MODE_VIEW}) count as a single triple.
+ * </p>
+ * 
+ * <p>
+ * Snapshots may be cached with a stamp, usually counting the changes to 
+ * the graphs they were created from. A lookup with a different stamp drops 
+ * the snapshot. Snapshots cached without a stamp are cached against the 
+ * {@link Gaboto} they were created from: the cache attaches an 
+ * {@link UpdateListener} to each such Gaboto and drops all of its unstamped 
+ * snapshots as soon as the Gaboto is changed.
+ * </p>
+ */
+public class SnapshotCache {
+
+  public static final int DEFAULT_MAX_ENTRIES = 64;
+
+  public static final long DEFAULT_MAX_TRIPLES = 5000000;
+
+  private int maxEntries;
+
+  private long maxTriples;
+
+  private long triples = 0;
+
+  private long hits = 0;
+  private long misses = 0;
+  private long evictions = 0;
+  private long invalidations = 0;
+
+  /**
+   * Cached snapshots in access order.
+   */
+  private LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+  /**
+   * Keys of the cached unstamped snapshots by the Gaboto they were created
+   * from.
+   */
+  private Map<Gaboto, Set<String>> keysByGaboto = new IdentityHashMap<Gaboto, Set<String>>();
+
+  /**
+   * Listeners attached to the Gabotos that have cached snapshots.
+   */
+  private Map<Gaboto, UpdateListener> listeners = new IdentityHashMap<Gaboto, UpdateListener>();
+
+  private static class Entry {
+    private GabotoSnapshot snapshot;
+    private Gaboto gaboto;
+    private Object stamp;
+    private long triples;
+
+    Entry(GabotoSnapshot snapshot, Gaboto gaboto, Object stamp, long triples) {
+      this.snapshot = snapshot;
+      this.gaboto = gaboto;
+      this.stamp = stamp;
+      this.triples = triples;
+    }
+  }
+
+  /**
+   * Creates a cache with the default bounds.
+   */
+  public SnapshotCache() {
+    this(DEFAULT_MAX_ENTRIES, DEFAULT_MAX_TRIPLES);
+  }
+
+  /**
+   * Creates a cache with the supplied bounds.
+   * 
+   * @param maxEntries
+   *          The maximum number of snapshots to hold.
+   * @param maxTriples
+   *          The maximum number of triples held by all copied snapshots.
+   */
+  public SnapshotCache(int maxEntries, long maxTriples) {
+    setMaxEntries(maxEntries);
+    setMaxTriples(maxTriples);
+  }
+
+  /**
+   * Returns a cached snapshot.
+   * 
+   * @param key
+   *          The key the snapshot was cached under.
+   * 
+   * @return The snapshot or null.
+   */
+  public synchronized GabotoSnapshot get(String key) {
+    return get(key, null);
+  }
+
+  /**
+   * Returns a cached snapshot if it was cached with an equal stamp. A snapshot
+   * with a different stamp is dropped.
+   * 
+   * @param key
+   *          The key the snapshot was cached under.
+   * @param stamp
+   *          The stamp describing the current state of the snapshot's data.
+   * 
+   * @return The snapshot or null.
+   */
+  public synchronized GabotoSnapshot get(String key, Object stamp) {
+    Entry e = entries.get(key);
+    if (e != null && e.stamp != null && !e.stamp.equals(stamp)) {
+      remove(key);
+      invalidations++;
+      e = null;
+    }
+    if (e == null) {
+      misses++;
+      return null;
+    }
+    hits++;
+    return e.snapshot;
+  }
+
+  /**
+   * Caches a snapshot, evicting the least recently used snapshots if either
+   * bound is exceeded.
+   * 
+   * @param key
+   *          The key.
+   * @param snapshot
+   *          The snapshot to cache.
+   */
+  public synchronized void put(String key, GabotoSnapshot snapshot) {
+    put(key, snapshot, null);
+  }
+
+  /**
+   * Caches a snapshot with a stamp describing the state of its data, evicting
+   * the least recently used snapshots if either bound is exceeded.
+   * 
+   * @param key
+   *          The key.
+   * @param snapshot
+   *          The snapshot to cache.
+   * @param stamp
+   *          The stamp, or null to drop the snapshot when its Gaboto changes.
+   */
+  public synchronized void put(String key, GabotoSnapshot snapshot, Object stamp) {
+    remove(key);
+
+    Gaboto gaboto = snapshot.getGaboto();
+    Entry e = new Entry(snapshot, gaboto, stamp, weigh(snapshot));
+    entries.put(key, e);
+    triples += e.triples;
+    if (stamp != null) {
+      evict();
+      return;
+    }
+
+    Set<String> keys = keysByGaboto.get(gaboto);
+    if (keys == null) {
+      keys = new HashSet<String>();
+      keysByGaboto.put(gaboto, keys);
+      UpdateListener listener = new InvalidationListener(gaboto);
+      listeners.put(gaboto, listener);
+      gaboto.attachUpdateListener(listener);
+    }
+    keys.add(key);
+
+    evict();
+  }
+
+  /**
+   * Drops all unstamped snapshots that were created from the supplied Gaboto.
+   * 
+   * @param gaboto
+   *          The Gaboto.
+   */
+  public synchronized void invalidate(Gaboto gaboto) {
+    Set<String> keys = keysByGaboto.get(gaboto);
+    if (keys == null || keys.isEmpty())
+      return;
+    for (String key : new HashSet<String>(keys)) {
+      remove(key);
+      invalidations++;
+    }
+  }
+
+  /**
+   * Drops all snapshots.
+   */
+  public synchronized void clear() {
+    for (String key : new HashSet<String>(entries.keySet()))
+      remove(key);
+  }
+
+  private void remove(String key) {
+    Entry e = entries.remove(key);
+    if (e == null)
+      return;
+    triples -= e.triples;
+    if (e.stamp == null)
+      forget(e.gaboto, key);
+  }
+
+  private void evict() {
+    Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+    while ((entries.size() > maxEntries || triples > maxTriples) && it.hasNext()) {
+      Map.Entry<String, Entry> eldest = it.next();
+      it.remove();
+      triples -= eldest.getValue().triples;
+      if (eldest.getValue().stamp == null)
+        forget(eldest.getValue().gaboto, eldest.getKey());
+      evictions++;
+    }
+  }
+
+  /**
+   * Stops watching a Gaboto once none of its snapshots are cached, so that
+   * the cache does not keep discarded Gabotos alive.
+   */
+  private void forget(Gaboto gaboto, String key) {
+    Set<String> keys = keysByGaboto.get(gaboto);
+    keys.remove(key);
+    if (keys.isEmpty()) {
+      keysByGaboto.remove(gaboto);
+      gaboto.detachUpdateListener(listeners.remove(gaboto));
+    }
+  }
+
+  private static long weigh(GabotoSnapshot snapshot) {
+    if (snapshot.getModel().getGraph() instanceof ReadOnlyUnionGraph)
+      return 1;
+    return snapshot.size();
+  }
+
+  /**
+   * Drops a Gaboto's snapshots whenever it is updated.
+   */
+  private class InvalidationListener implements UpdateListener {
+    private Gaboto gaboto;
+
+    InvalidationListener(Gaboto gaboto) {
+      this.gaboto = gaboto;
+    }
+
+    public void updateOccured(GabotoEvent e) {
+      invalidate(gaboto);
+    }
+  }
+
+  /**
+   * @return the maximum number of cached snapshots
+   */
+  public synchronized int getMaxEntries() {
+    return maxEntries;
+  }
+
+  /**
+   * @param maxEntries the maximum number of cached snapshots
+   */
+  public synchronized void setMaxEntries(int maxEntries) {
+    if (maxEntries < 0)
+      throw new IllegalArgumentException("Negative cache size: " + maxEntries);
+    this.maxEntries = maxEntries;
+    evict();
+  }
+
+  /**
+   * @return the maximum number of triples held by copied snapshots
+   */
+  public synchronized long getMaxTriples() {
+    return maxTriples;
+  }
+
+  /**
+   * @param maxTriples the maximum number of triples held by copied snapshots
+   */
+  public synchronized void setMaxTriples(long maxTriples) {
+    if (maxTriples < 0)
+      throw new IllegalArgumentException("Negative triple bound: " + maxTriples);
+    this.maxTriples = maxTriples;
+    evict();
+  }
+
+  /**
+   * @return the number of cached snapshots
+   */
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  /**
+   * @return the number of triples held by cached snapshots
+   */
+  public synchronized long getTripleCount() {
+    return triples;
+  }
+
+  /**
+   * @return the number of lookups that found a snapshot
+   */
+  public synchronized long getHitCount() {
+    return hits;
+  }
+
+  /**
+   * @return the number of lookups that did not find a snapshot
+   */
+  public synchronized long getMissCount() {
+    return misses;
+  }
+
+  /**
+   * @return the number of snapshots dropped to respect the bounds
+   */
+  public synchronized long getEvictionCount() {
+    return evictions;
+  }
+
+  /**
+   * @return the number of snapshots dropped because their Gaboto changed
+   */
+  public synchronized long getInvalidationCount() {
+    return invalidations;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "SnapshotCache: " + entries.size() + " snapshots, " + triples
+        + " triples, " + hits + " hits, " + misses + " misses, " + evictions
+        + " evictions, " + invalidations + " invalidations";
+  }
+}
@@ -0,0 +1,294 @@
+/**
+ * Copyright 2009 University of Oxford
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *  - Neither the name of the University of Oxford nor the names of its 
+ *    contributors may be used to endorse or promote products derived from this 
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.sf.gaboto;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import net.sf.gaboto.node.pool.EntityPool;
+import net.sf.gaboto.node.pool.EntityPoolConfiguration;
+import net.sf.gaboto.time.TimeDimensionIndexer;
+import net.sf.gaboto.time.TimeInstant;
+
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.util.iterator.ExtendedIterator;
+
+/**
+ * Walks a list of time instants, deriving the snapshot and entity pool for
+ * each instant from those of the previous one.
+ * 
+ * <p>
+ * The series keeps one snapshot model. Moving on to the next instant, only
+ * the triples of the graphs that became valid or stopped being valid are
+ * added to or removed from it; triples held by several valid graphs are
+ * counted, so that they remain until the last of them leaves. The entity
+ * pool, if a configuration was supplied, is then updated by reloading the
+ * entities whose triples changed, the entities they referred to or that
+ * were referred to by them, and all entities referring to those, directly
+ * or through other reloaded entities. If that is more than half the pool,
+ * the pool is built anew instead.
+ * </p>
+ * 
+ * <pre>
+ * SnapshotSeries series = new SnapshotSeries(gaboto);
+ * EntityPoolConfiguration config = new EntityPoolConfiguration(series.getSnapshot());
+ * config.addAcceptedType(type);
+ * series.setPoolConfiguration(config);
+ * series.run(instants, processor);
+ * </pre>
+ * 
+ * <p>
+ * Gaboto's read lock is held for the whole run, so the processor must not
+ * change Gaboto.
+ * </p>
+ */
+public class SnapshotSeries {
+
+  private Gaboto gaboto;
+
+  private Model model = ModelFactory.createDefaultModel();
+
+  private GabotoSnapshot snapshot;
+
+  private EntityPoolConfiguration poolConfig;
+
+  private EntityPool pool;
+
+  /** The graphs the model currently holds. */
+  private Set<String> current = new HashSet<String>();
+
+  /** Number of valid graphs holding a triple, for triples held by more than one. */
+  private Map<Triple, Integer> shared = new HashMap<Triple, Integer>();
+
+  /**
+   * Creates a series over the data in Gaboto.
+   * 
+   * @param gaboto
+   *          The Gaboto.
+   */
+  public SnapshotSeries(Gaboto gaboto) {
+    this.gaboto = gaboto;
+    this.snapshot = new GabotoSnapshot(model, gaboto);
+  }
+
+  /**
+   * Returns the snapshot that is changed in place from one instant to the
+   * next.
+   * 
+   * @return The series' snapshot.
+   */
+  public GabotoSnapshot getSnapshot() {
+    return snapshot;
+  }
+
+  /**
+   * Sets the configuration of the entity pool built for every instant. It
+   * should be created for the series' snapshot.
+   * 
+   * @param config
+   *          The configuration, or null to build snapshots only.
+   */
+  public void setPoolConfiguration(EntityPoolConfiguration config) {
+    this.poolConfig = config;
+  }
+
+  /**
+   * Walks the instants in chronological order, handing the snapshot and pool
+   * for each to the processor.
+   * 
+   * @param instants
+   *          The time instants.
+   * @param processor
+   *          The processor.
+   * @throws NoTimeIndexSetException
+   */
+  public void run(List<TimeInstant> instants, SeriesProcessor processor)
+      throws NoTimeIndexSetException {
+    List<TimeInstant> sorted = new ArrayList<TimeInstant>(instants);
+    Collections.sort(sorted);
+
+    gaboto.getLock().readLock().lock();
+    try {
+      TimeDimensionIndexer idx = gaboto.getTimeDimensionIndexer();
+      reset();
+      for (TimeInstant ti : sorted) {
+        Set<String> affected = moveTo(new HashSet<String>(idx.getGraphsForInstant(ti)));
+        updatePool(affected);
+        processor.processInstant(ti, snapshot, pool);
+        if (processor.stopProcessing())
+          break;
+      }
+    } finally {
+      gaboto.getLock().readLock().unlock();
+    }
+  }
+
+  private void reset() {
+    model.removeAll();
+    current.clear();
+    shared.clear();
+    pool = null;
+    add(gaboto.getGlobalKnowledgeGraph(), null);
+  }
+
+  /**
+   * Brings the model to the graphs valid at the next instant.
+   * 
+   * @return the URIs of the resources whose triples changed
+   */
+  private Set<String> moveTo(Set<String> graphs) {
+    // the gkg is always part of the model
+    graphs.remove(gaboto.getGlobalKnowledgeGraph().getGraphName().getURI());
+
+    Set<String> affected = new HashSet<String>();
+    for (String uri : current)
+      if (!graphs.contains(uri))
+        remove(gaboto.getNamedGraphSet().getGraph(uri), affected);
+    for (String uri : graphs)
+      if (!current.contains(uri))
+        add(gaboto.getNamedGraphSet().getGraph(uri), affected);
+    current = graphs;
+    return affected;
+  }
+
+  private void add(Graph graph, Set<String> affected) {
+    Graph target = model.getGraph();
+    ExtendedIterator<Triple> it = graph.find(Node.ANY, Node.ANY, Node.ANY);
+    try {
+      while (it.hasNext()) {
+        Triple t = it.next();
+        if (target.contains(t)) {
+          Integer count = shared.get(t);
+          shared.put(t, count == null ? 2 : count + 1);
+        } else {
+          target.add(t);
+          if (affected != null)
+            affected(t, affected);
+        }
+      }
+    } finally {
+      it.close();
+    }
+  }
+
+  private void remove(Graph graph, Set<String> affected) {
+    Graph target = model.getGraph();
+    List<Triple> triples = new ArrayList<Triple>();
+    ExtendedIterator<Triple> it = graph.find(Node.ANY, Node.ANY, Node.ANY);
+    try {
+      while (it.hasNext())
+        triples.add(it.next());
+    } finally {
+      it.close();
+    }
+    for (Triple t : triples) {
+      Integer count = shared.get(t);
+      if (count == null) {
+        target.delete(t);
+        affected(t, affected);
+      } else if (count == 2)
+        shared.remove(t);
+      else
+        shared.put(t, count - 1);
+    }
+  }
+
+  private static void affected(Triple t, Set<String> affected) {
+    // blank nodes belong to the resource linking to them, whose triple
+    // changes along with theirs
+    if (t.getSubject().isURI())
+      affected.add(t.getSubject().getURI());
+    if (t.getObject().isURI())
+      affected.add(t.getObject().getURI());
+  }
+
+  private void updatePool(Set<String> affected) {
+    if (poolConfig == null)
+      return;
+    if (pool == null || poolConfig.isUseResourceCollection()) {
+      poolConfig.setSnapshot(snapshot);
+      pool = EntityPool.createFrom(poolConfig);
+      return;
+    }
+    if (affected.isEmpty())
+      return;
+
+    // entities referring to changed ones hold references to stale objects,
+    // and so do the entities referring to those once they are reloaded
+    Collection<String> reload = referrers(affected);
+    if (reload.size() > pool.size() / 2) {
+      pool = EntityPool.createFrom(poolConfig);
+      return;
+    }
+    pool.reload(reload);
+  }
+
+  /**
+   * Returns the resources together with all resources referring to them,
+   * directly or through other referring resources or blank nodes.
+   */
+  private Collection<String> referrers(Set<String> resources) {
+    Set<String> closure = new HashSet<String>(resources);
+    Set<Node> seen = new HashSet<Node>();
+    List<Node> queue = new ArrayList<Node>();
+    for (String uri : resources)
+      queue.add(Node.createURI(uri));
+    seen.addAll(queue);
+
+    Graph graph = model.getGraph();
+    while (!queue.isEmpty()) {
+      Node node = queue.remove(queue.size() - 1);
+      ExtendedIterator<Triple> it = graph.find(Node.ANY, Node.ANY, node);
+      try {
+        while (it.hasNext()) {
+          Node subject = it.next().getSubject();
+          if (!seen.add(subject))
+            continue;
+          if (subject.isURI())
+            closure.add(subject.getURI());
+          queue.add(subject);
+        }
+      } finally {
+        it.close();
+      }
+    }
+    return closure;
+  }
+}
@@ -0,0 +1,221 @@
+/**
+ * Copyright 2009 University of Oxford
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *  - Neither the name of the University of Oxford nor the names of its 
+ *    contributors may be used to endorse or promote products derived from this 
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.sf.gaboto;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import net.sf.gaboto.vocabulary.GabotoVocab;
+import net.sf.gaboto.vocabulary.RDFGraph;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.sparql.core.DatasetGraph;
+import com.hp.hpl.jena.tdb.TDB;
+import com.hp.hpl.jena.tdb.TDBFactory;
+import com.hp.hpl.jena.util.iterator.ExtendedIterator;
+import com.hp.hpl.jena.vocabulary.RDF;
+
+import de.fuberlin.wiwiss.ng4j.NamedGraph;
+import de.fuberlin.wiwiss.ng4j.Quad;
+import de.fuberlin.wiwiss.ng4j.impl.NamedGraphImpl;
+import de.fuberlin.wiwiss.ng4j.impl.NamedGraphSetImpl;
+
+/**
+ * A named graph set stored in a TDB dataset on the local disk.
+ * 
+ * <p>
+ * Every named graph is a named graph of the dataset, and quads are looked up
+ * through the dataset's quad indexes rather than graph by graph. The context
+ * description graph is kept in the same dataset under
+ * {@link #CDG_GRAPH_URI}, which is not part of the graph set.
+ * </p>
+ * 
+ * <p>
+ * TDB writes changes to disk lazily; {@link #sync()} forces them to disk.
+ * </p>
+ * 
+ * @see GabotoFactory#getTdbGaboto(File)
+ */
+public class TdbNamedGraphSet extends NamedGraphSetImpl {
+
+  /**
+   * Name of the dataset graph holding the context description graph.
+   */
+  public final static String CDG_GRAPH_URI = GabotoVocab.NS + "contextDescriptionGraph";
+
+  private static final Node CDG_GRAPH = Node.createURI(CDG_GRAPH_URI);
+
+  private DatasetGraph dataset;
+
+  /**
+   * Opens or creates the dataset in the given directory.
+   * 
+   * @param directory
+   *          The directory holding the dataset.
+   */
+  public TdbNamedGraphSet(File directory) {
+    dataset = TDBFactory.createDatasetGraph(directory.getAbsolutePath());
+
+    // graphs holding data
+    Iterator<?> it = dataset.listGraphNodes();
+    while (it.hasNext())
+      register((Node) it.next());
+
+    // empty graphs are only known from the cdg
+    ExtendedIterator<Triple> graphs = getContextDescriptionGraph().getGraph().find(
+        Node.ANY, RDF.type.asNode(), RDFGraph.Graph.asNode());
+    try {
+      while (graphs.hasNext())
+        register(graphs.next().getSubject());
+    } finally {
+      graphs.close();
+    }
+  }
+
+  private void register(Node graphName) {
+    if (graphName.isURI() && !graphName.equals(CDG_GRAPH) && !containsGraph(graphName))
+      super.addGraph(new NamedGraphImpl(graphName, dataset.getGraph(graphName)));
+  }
+
+  /**
+   * @return The context description graph stored in the dataset.
+   */
+  public Model getContextDescriptionGraph() {
+    return ModelFactory.createModelForGraph(dataset.getGraph(CDG_GRAPH));
+  }
+
+  /**
+   * Creates a new graph stored in the dataset, replacing an existing graph
+   * of the same name.
+   */
+  @Override
+  public NamedGraph createGraph(Node graphName) {
+    if (containsGraph(graphName))
+      removeGraph(graphName);
+    NamedGraph graph = new NamedGraphImpl(graphName, dataset.getGraph(graphName));
+    super.addGraph(graph);
+    return graph;
+  }
+
+  /**
+   * Copies the graph into the dataset, replacing an existing graph of the
+   * same name.
+   */
+  @Override
+  public void addGraph(NamedGraph graph) {
+    NamedGraph stored = createGraph(graph.getGraphName());
+    ExtendedIterator<Triple> it = graph.find(Node.ANY, Node.ANY, Node.ANY);
+    try {
+      stored.getBulkUpdateHandler().add(it);
+    } finally {
+      it.close();
+    }
+  }
+
+  /**
+   * Removes the graph and deletes its triples from the dataset.
+   */
+  @Override
+  public void removeGraph(Node graphName) {
+    if (graphName.isConcrete() && !graphName.equals(CDG_GRAPH))
+      dataset.getGraph(graphName).getBulkUpdateHandler().removeAll();
+    super.removeGraph(graphName);
+  }
+
+  @Override
+  public void removeGraph(String graphNameURI) {
+    removeGraph(Node.createURI(graphNameURI));
+  }
+
+  /**
+   * Finds quads through the indexes of the dataset.
+   */
+  @Override
+  public Iterator findQuads(Node graphName, Node subject, Node predicate, Node object) {
+    final Iterator<?> it = dataset.find(graphName, subject, predicate, object);
+    return new Iterator<Quad>() {
+      private Quad next = advance();
+
+      private Quad advance() {
+        while (it.hasNext()) {
+          com.hp.hpl.jena.sparql.core.Quad q = (com.hp.hpl.jena.sparql.core.Quad) it.next();
+          // skip the cdg and the default graph
+          if (q.getGraph().isURI() && containsGraph(q.getGraph()))
+            return new Quad(q.getGraph(), q.getSubject(), q.getPredicate(), q.getObject());
+        }
+        return null;
+      }
+
+      public boolean hasNext() {
+        return next != null;
+      }
+
+      public Quad next() {
+        if (next == null)
+          throw new NoSuchElementException();
+        Quad q = next;
+        next = advance();
+        return q;
+      }
+
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+
+  /**
+   * Writes all pending changes to disk.
+   */
+  public void sync() {
+    TDB.sync(dataset);
+  }
+
+  /**
+   * Writes all pending changes to disk and closes the dataset.
+   */
+  @Override
+  public void close() {
+    sync();
+    dataset.close();
+    super.close();
+  }
+
+  /**
+   * @return The underlying dataset.
+   */
+  public DatasetGraph getDataset() {
+    return dataset;
+  }
+}
@@ -0,0 +1,573 @@
+/**
+ * Copyright 2009 University of Oxford
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *  - Neither the name of the University of Oxford nor the names of its 
+ *    contributors may be used to endorse or promote products derived from this 
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.sf.gaboto.event;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import net.sf.gaboto.Gaboto;
+import net.sf.gaboto.time.TimeSpan;
+
+import org.apache.log4j.Logger;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+
+import de.fuberlin.wiwiss.ng4j.Quad;
+
+/**
+ * Decouples a (possibly slow) {@link UpdateListener} from the threads that 
+ * write to Gaboto.
+ * 
+ * <p>
+ * Events are put into a bounded queue and delivered by a daemon thread. 
+ * Listeners implementing {@link BatchUpdateListener} receive all events that 
+ * queued up since the last delivery in one call, other listeners receive them 
+ * one by one. Exceptions and errors thrown by the listener are logged and do 
+ * not stop the delivery of later events.
+ * </p>
+ * 
+ * <p>
+ * What happens if the queue is full is decided by the policy:
+ * </p>
+ * <ul>
+ * <li>{@link #POLICY_BLOCK}: the writer waits until there is room. No event 
+ * is lost, but a slow listener eventually slows down writes. As writers wait 
+ * while holding Gaboto's write lock, listeners must not read from Gaboto 
+ * under this policy.</li>
+ * <li>{@link #POLICY_DROP}: the event is discarded and counted in 
+ * {@link #getDroppedCount()}. Suitable for listeners that can resynchronise, 
+ * for example caches.</li>
+ * <li>{@link #POLICY_COALESCE}: the event is folded into a net change per 
+ * quad, delivered after the queued events. A later change of a quad replaces 
+ * an earlier one, and a removal pattern drops the changes it matches. No 
+ * change is lost and the writer never waits; beyond the capacity, memory is 
+ * bounded by the number of distinct quads changed. The listener receives the 
+ * net changes, not the individual events.</li>
+ * </ul>
+ * 
+ * @see net.sf.gaboto.Gaboto#attachAsyncUpdateListener(UpdateListener, int, int)
+ */
+public class AsyncUpdateDispatcher implements UpdateListener {
+
+	/**
+	 * Writers wait for room in the queue.
+	 */
+	public final static int POLICY_BLOCK = 0;
+	
+	/**
+	 * Events that do not fit into the queue are discarded.
+	 */
+	public final static int POLICY_DROP = 1;
+	
+	/**
+	 * Events that do not fit into the queue are folded into a net change per quad.
+	 */
+	public final static int POLICY_COALESCE = 2;
+	
+	private static Logger logger = Logger.getLogger(AsyncUpdateDispatcher.class.getName());
+	
+	/**
+	 * A number of events that are delivered together.
+	 */
+	private static class Batch {
+		private final List<GabotoEvent> events = new ArrayList<GabotoEvent>();
+		private final long queued = System.currentTimeMillis();
+	}
+	
+	/**
+	 * The net effect of the events that did not fit into the queue.
+	 * 
+	 * <p>
+	 * Removal patterns are delivered before the changes of single quads. That 
+	 * keeps the order of events: a pattern drops the earlier changes it 
+	 * matches, and all other changes it is swapped with touch different quads.
+	 * </p>
+	 */
+	private static class Delta {
+		private final Map<Quad, GabotoEvent> patterns = new LinkedHashMap<Quad, GabotoEvent>();
+		private final Map<Quad, GabotoEvent> changes = new LinkedHashMap<Quad, GabotoEvent>();
+		private long queued;
+		
+		private int size() {
+			return patterns.size() + changes.size();
+		}
+		
+		private List<GabotoEvent> events() {
+			List<GabotoEvent> events = new ArrayList<GabotoEvent>(size());
+			events.addAll(patterns.values());
+			events.addAll(changes.values());
+			return events;
+		}
+	}
+	
+	private final Gaboto gaboto;
+	private final UpdateListener listener;
+	private final int capacity;
+	private final int policy;
+	
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+	private final Condition notFull = lock.newCondition();
+	private final Condition idle = lock.newCondition();
+	
+	private final LinkedList<Batch> queue = new LinkedList<Batch>();
+	private Delta delta = new Delta();
+	private int pending = 0;
+	private boolean delivering = false;
+	private long deliveringSince = 0;
+	private boolean closed = false;
+	private boolean stopped = false;
+	
+	private long queuedCount = 0;
+	private long deliveredCount = 0;
+	private long droppedCount = 0;
+	private long droppedAfterClose = 0;
+	private long coalescedCount = 0;
+	private long failedCount = 0;
+	private long maxLag = 0;
+	
+	private final Thread worker;
+	
+	/**
+	 * Creates a dispatcher and starts its delivery thread.
+	 * 
+	 * @param gaboto The Gaboto whose events are dispatched.
+	 * @param listener The listener to deliver events to.
+	 * @param capacity The maximum number of queued events.
+	 * @param policy What to do if the queue is full.
+	 */
+	public AsyncUpdateDispatcher(Gaboto gaboto, UpdateListener listener, int capacity, int policy) {
+		if (gaboto == null)
+			throw new IllegalArgumentException("Gaboto must not be null.");
+		if (listener == null)
+			throw new IllegalArgumentException("Listener must not be null.");
+		if (capacity < 1)
+			throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+		if (policy != POLICY_BLOCK && policy != POLICY_DROP && policy != POLICY_COALESCE)
+			throw new IllegalArgumentException("Unknown policy: " + policy);
+		
+		this.gaboto = gaboto;
+		this.listener = listener;
+		this.capacity = capacity;
+		this.policy = policy;
+		
+		worker = new Thread(new Runnable() {
+			public void run() {
+				try {
+					deliver();
+				} finally {
+					// never leave writers waiting for a thread that is gone
+					stopped();
+				}
+			}
+		}, "Gaboto update dispatcher (" + listener.getClass().getSimpleName() + ")");
+		worker.setDaemon(true);
+		worker.start();
+	}
+	
+	/**
+	 * Queues the event for delivery. Events arriving after the dispatcher was 
+	 * closed are discarded and counted in {@link #getDroppedCount()}.
+	 */
+	public void updateOccured(GabotoEvent e) {
+		lock.lock();
+		try {
+			if (closed) {
+				dropClosed();
+				return;
+			}
+			
+			// once events are folded, later ones must follow them
+			if (policy == POLICY_COALESCE && (pending >= capacity || delta.size() > 0)) {
+				if (delta.size() == 0)
+					delta.queued = System.currentTimeMillis();
+				coalesce(e);
+				queuedCount++;
+				notEmpty.signal();
+				return;
+			}
+			
+			if (pending >= capacity) {
+				if (policy == POLICY_DROP) {
+					droppedCount++;
+					return;
+				}
+				while (policy == POLICY_BLOCK && pending >= capacity) {
+					notFull.awaitUninterruptibly();
+					if (closed) {
+						dropClosed();
+						return;
+					}
+				}
+			}
+			
+			Batch batch = new Batch();
+			batch.events.add(e);
+			queue.add(batch);
+			pending++;
+			queuedCount++;
+			notEmpty.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Folds an event into the delta. Must be called holding the lock.
+	 */
+	private void coalesce(GabotoEvent e) {
+		if (e instanceof BatchGabotoEvent) {
+			for (GabotoEvent event : ((BatchGabotoEvent) e).getEvents())
+				coalesce(event);
+			return;
+		}
+		
+		Quad quad = quadOf(e);
+		int before = delta.size();
+		if (quad.getGraphName().isConcrete() && quad.getTriple().isConcrete()) {
+			delta.changes.remove(quad);
+			delta.changes.put(quad, e);
+		} else {
+			Iterator<Quad> it = delta.changes.keySet().iterator();
+			while (it.hasNext())
+				if (matches(quad, it.next()))
+					it.remove();
+			delta.patterns.put(quad, e);
+		}
+		pending += delta.size() - before;
+		coalescedCount++;
+	}
+	
+	/**
+	 * Returns the quad or quad pattern an insertion or removal changes.
+	 */
+	private Quad quadOf(GabotoEvent e) {
+		TimeSpan ts;
+		Triple triple;
+		if (e instanceof InsertionGabotoEvent) {
+			ts = ((InsertionGabotoEvent) e).getTimespan();
+			triple = ((InsertionGabotoEvent) e).getTriple();
+		} else if (e instanceof RemovalGabotoEvent) {
+			RemovalGabotoEvent removal = (RemovalGabotoEvent) e;
+			if (removal.getQuad() != null)
+				return removal.getQuad();
+			ts = removal.getTimespan();
+			triple = removal.getTriple();
+		} else
+			throw new IllegalArgumentException("Unexpected update type: " + e.getClass());
+		
+		Node graph;
+		if (ts == null || ts.equals(TimeSpan.EXISTENCE))
+			graph = gaboto.getGlobalKnowledgeGraph().getGraphName();
+		else
+			graph = Node.createURI(gaboto.getGraphNameFor(ts));
+		return new Quad(graph, triple);
+	}
+	
+	private static boolean matches(Quad pattern, Quad quad) {
+		return matches(pattern.getGraphName(), quad.getGraphName())
+				&& matches(pattern.getSubject(), quad.getSubject())
+				&& matches(pattern.getPredicate(), quad.getPredicate())
+				&& matches(pattern.getObject(), quad.getObject());
+	}
+	
+	private static boolean matches(Node pattern, Node node) {
+		return pattern == null || !pattern.isConcrete() || pattern.equals(node);
+	}
+	
+	/**
+	 * Counts an event discarded because the dispatcher was closed while still 
+	 * attached, warning about the first one. Must be called holding the lock.
+	 */
+	private void dropClosed() {
+		if (droppedAfterClose++ == 0)
+			logger.warn("Dispatcher for " + listener + " was closed but not detached, discarding events.");
+		droppedCount++;
+	}
+	
+	/**
+	 * Body of the delivery thread.
+	 */
+	private void deliver() {
+		while (true) {
+			List<Batch> batches;
+			Delta coalesced;
+			lock.lock();
+			try {
+				while (queue.isEmpty() && delta.size() == 0 && !closed)
+					notEmpty.awaitUninterruptibly();
+				if (queue.isEmpty() && delta.size() == 0)
+					return;
+				
+				batches = new ArrayList<Batch>(queue);
+				queue.clear();
+				coalesced = delta;
+				delta = new Delta();
+				delivering = true;
+				deliveringSince = batches.isEmpty() ? coalesced.queued : batches.get(0).queued;
+			} finally {
+				lock.unlock();
+			}
+			
+			List<GabotoEvent> events = new ArrayList<GabotoEvent>();
+			for (Batch b : batches)
+				events.addAll(b.events);
+			events.addAll(coalesced.events());
+			
+			long failed = 0;
+			try {
+				if (listener instanceof BatchUpdateListener)
+					((BatchUpdateListener) listener).updatesOccured(events);
+				else
+					for (GabotoEvent e : events)
+						listener.updateOccured(e);
+			} catch (Throwable ex) {
+				failed = 1;
+				logger.error("Update listener " + listener + " failed.", ex);
+			}
+			
+			lock.lock();
+			try {
+				long lag = System.currentTimeMillis() - deliveringSince;
+				maxLag = Math.max(maxLag, lag);
+				failedCount += failed;
+				deliveredCount += events.size();
+				pending -= events.size();
+				delivering = false;
+				notFull.signalAll();
+				if (queue.isEmpty() && delta.size() == 0)
+					idle.signalAll();
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+	
+	/**
+	 * Called when the delivery thread ends, normally or not. Marks the 
+	 * dispatcher closed and wakes up everyone waiting for it.
+	 */
+	private void stopped() {
+		lock.lock();
+		try {
+			if (!closed)
+				logger.error("Delivery thread for " + listener + " stopped unexpectedly.");
+			closed = true;
+			stopped = true;
+			delivering = false;
+			notFull.signalAll();
+			idle.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Waits until all queued events have been delivered.
+	 * 
+	 * @param timeout The maximum time to wait in milliseconds.
+	 * @return True if the queue was drained in time, false if not or if the 
+	 * delivery thread stopped with events left.
+	 * @throws InterruptedException
+	 */
+	public boolean awaitIdle(long timeout) throws InterruptedException {
+		long nanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+		lock.lock();
+		try {
+			while ((pending > 0 || delivering) && !stopped) {
+				if (nanos <= 0)
+					return false;
+				nanos = idle.awaitNanos(nanos);
+			}
+			return pending == 0;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Stops accepting events. Events already queued are still delivered, after 
+	 * which the delivery thread terminates.
+	 * 
+	 * <p>
+	 * The dispatcher should be detached from Gaboto before it is closed. Events 
+	 * reaching it afterwards, including those of writers waiting for room under 
+	 * {@link #POLICY_BLOCK}, are discarded without failing the writer.
+	 * </p>
+	 */
+	public void close() {
+		lock.lock();
+		try {
+			closed = true;
+			notEmpty.signalAll();
+			notFull.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * @return The listener events are delivered to.
+	 */
+	public UpdateListener getListener() {
+		return listener;
+	}
+	
+	/**
+	 * @return The number of events and net changes waiting to be delivered.
+	 */
+	public int getPendingCount() {
+		lock.lock();
+		try {
+			return pending;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * @return The total number of events accepted into the queue.
+	 */
+	public long getQueuedCount() {
+		lock.lock();
+		try {
+			return queuedCount;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * @return The total number of events delivered to the listener.
+	 */
+	public long getDeliveredCount() {
+		lock.lock();
+		try {
+			return deliveredCount;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * @return The total number of events discarded because the queue was full 
+	 * or the dispatcher was closed.
+	 */
+	public long getDroppedCount() {
+		lock.lock();
+		try {
+			return droppedCount;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * @return The total number of events folded into net changes because the 
+	 * queue was full.
+	 */
+	public long getCoalescedCount() {
+		lock.lock();
+		try {
+			return coalescedCount;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * @return The number of deliveries in which the listener threw an exception 
+	 * or error.
+	 */
+	public long getFailedCount() {
+		lock.lock();
+		try {
+			return failedCount;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Returns how far the listener is currently behind, that is, the age in 
+	 * milliseconds of the oldest event not yet delivered.
+	 * 
+	 * @return The current lag in milliseconds, 0 if the listener is up to date.
+	 */
+	public long getLag() {
+		lock.lock();
+		try {
+			if (delivering)
+				return System.currentTimeMillis() - deliveringSince;
+			if (!queue.isEmpty())
+				return System.currentTimeMillis() - queue.getFirst().queued;
+			if (delta.size() > 0)
+				return System.currentTimeMillis() - delta.queued;
+			return 0;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * @return The largest delay in milliseconds between queueing and delivery 
+	 * observed so far.
+	 */
+	public long getMaxLag() {
+		lock.lock();
+		try {
+			return maxLag;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * @return The policy applied when the queue is full.
+	 */
+	public int getPolicy() {
+		return policy;
+	}
+	
+	/**
+	 * @return The maximum number of queued events.
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+}
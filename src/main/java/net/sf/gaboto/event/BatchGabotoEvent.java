@@ -0,0 +1,77 @@
+/**
+ * Copyright 2009 University of Oxford
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *  - Neither the name of the University of Oxford nor the names of its 
+ *    contributors may be used to endorse or promote products derived from this 
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.sf.gaboto.event;
+
+import java.util.Collections;
+import java.util.List;
+
+import net.sf.gaboto.GabotoBatch;
+
+/**
+ * Describes a number of changes that were applied to Gaboto in one go, for
+ * example by committing a {@link GabotoBatch}.
+ * 
+ * <p>
+ * Listeners that are not interested in batches may simply process the 
+ * contained events one by one, in order.
+ * </p>
+ */
+public class BatchGabotoEvent extends GabotoEvent {
+
+	private List<GabotoEvent> events;
+	
+	/**
+	 * Creates a new batch event.
+	 * 
+	 * @param events The individual changes, in the order they were applied.
+	 */
+	public BatchGabotoEvent(List<GabotoEvent> events) {
+		super();
+		this.events = Collections.unmodifiableList(events);
+	}
+	
+	/**
+	 * Returns the individual changes in the order they were applied.
+	 * 
+	 * @return The individual changes.
+	 */
+	public List<GabotoEvent> getEvents() {
+		return events;
+	}
+	
+	/**
+	 * Returns the number of individual changes.
+	 * 
+	 * @return The number of individual changes.
+	 */
+	public int size() {
+		return events.size();
+	}
+}
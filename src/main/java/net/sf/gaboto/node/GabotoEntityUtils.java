@@ -36,6 +36,7 @@ import java.lang.reflect.Method;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 import net.sf.gaboto.GabotoRuntimeException;
@@ -84,6 +85,7 @@ public class GabotoEntityUtils {
   private static Map<String, Collection<String>> getAllPassivePropertiesCache = new HashMap<String, Collection<String>>();
   private static Map<String, Collection<String>> getAllIndirectPropertiesCache = new HashMap<String, Collection<String>>();
   private static Map<String, Collection<String>> getAllBeanPropertiesCache = new HashMap<String, Collection<String>>();
+  private static Map<String, Map<String, Method>> getStoredPropertyGettersCache = new HashMap<String, Map<String, Method>>();
 
   /**
    * An array containing all PropertyAnnotations.
@@ -195,6 +197,56 @@ public static Class<? extends GabotoEntity> getEntityClassFor(OntClass type) {
     return properties;
   }
 
+  /**
+   * Returns the getters of all properties that have an annotated setter, and
+   * are therefore stored, by property URI.
+   * 
+   * <p>
+   * The result is computed once per class.
+   * </p>
+   * 
+   * @param entityClass The entity class.
+   * @return The getters by property URI, in the order the setters were found.
+   */
+  @SuppressWarnings("unchecked")
+  public static Map<String, Method> getStoredPropertyGetters(
+      Class<? extends GabotoEntity> entityClass) {
+    if (getStoredPropertyGettersCache.containsKey(entityClass.getName()))
+      return getStoredPropertyGettersCache.get(entityClass.getName());
+
+    Map<String, Method> getters = new LinkedHashMap<String, Method>();
+    for (Method setter : entityClass.getMethods()) {
+      // is it a set method? if not continue
+      if (!IsSETMethod(setter))
+        continue;
+
+      String propertyURI = null;
+      Method getter = null;
+      for (Class<?> annoClass : PROPERTY_ANNOTATIONS) {
+        if (setter.isAnnotationPresent((Class<? extends Annotation>) annoClass)) {
+          Annotation anno = setter
+              .getAnnotation((Class<? extends Annotation>) annoClass);
+          try {
+            Method valueMethod = anno.getClass().getMethod("value",
+                (Class<?>[]) null);
+            propertyURI = (String) valueMethod.invoke(anno, (Object[]) null);
+            getter = getDirectGetMethodFor(entityClass, propertyURI);
+          } catch (Exception e) {
+            throw new GabotoRuntimeException(e);
+          }
+        }
+      }
+
+      if (getter != null)
+        getters.put(propertyURI, getter);
+    }
+
+    // store in cache
+    getStoredPropertyGettersCache.put(entityClass.getName(), getters);
+
+    return getters;
+  }
+
   @SuppressWarnings("unchecked")
   public static Collection<String> getAllDirectProperties(
       Class<? extends GabotoEntity> entityClass) {
@@ -31,32 +31,42 @@
  */
 package net.sf.gaboto.node;
 
-import java.lang.annotation.Annotation;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.Map.Entry;
 
 import net.sf.gaboto.Gaboto;
 import net.sf.gaboto.GabotoRuntimeException;
 import net.sf.gaboto.GabotoSnapshot;
+import net.sf.gaboto.node.pool.EntityPool;
+import net.sf.gaboto.time.PackedTime;
 import net.sf.gaboto.time.TimeInstant;
 import net.sf.gaboto.time.TimeSpan;
 
 import org.apache.log4j.Logger;
 
+import com.hp.hpl.jena.graph.Graph;
 import com.hp.hpl.jena.graph.Node;
 import com.hp.hpl.jena.graph.Triple;
 import com.hp.hpl.jena.ontology.OntProperty;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.util.iterator.ExtendedIterator;
 import com.hp.hpl.jena.vocabulary.RDF;
 
+import de.fuberlin.wiwiss.ng4j.NamedGraph;
 import de.fuberlin.wiwiss.ng4j.NamedGraphSet;
 import de.fuberlin.wiwiss.ng4j.Quad;
 
@@ -84,6 +94,15 @@ public class GabotoTimeBasedEntity implements Iterable<GabotoEntity> {
 
   private static Logger logger = Logger.getLogger(GabotoTimeBasedEntity.class.getName());
 
+  /**
+   * Orders time spans by their beginning.
+   */
+  private static final Comparator<TimeSpan> BEGIN_ORDER = new Comparator<TimeSpan>() {
+    public int compare(TimeSpan o1, TimeSpan o2) {
+      return PackedTime.compare(o1.getPackedBegin(), o2.getPackedBegin());
+    }
+  };
+
   /**
    * Stores the properties that are time bound.
    */
@@ -114,6 +133,19 @@ public class GabotoTimeBasedEntity implements Iterable<GabotoEntity> {
    */
   private Class<? extends GabotoEntity> entityClass;
 
+  /**
+   * Caches the result of {@link #getTimeSpansSorted()} until a property
+   * changes.
+   */
+  private List<TimeSpan> sortedTimeSpans;
+
+  /**
+   * Caches the periods during which this entity was stable, keyed by the
+   * packed key of the first day of each period. Built on demand and dropped
+   * whenever a property changes.
+   */
+  private TreeMap<Long, Period> periods;
+
   /**
    * Simple bean used to store relevant properties inside the
    * {@link GabotoTimeBasedEntity}.
@@ -146,6 +178,46 @@ public class GabotoTimeBasedEntity implements Iterable<GabotoEntity> {
 
   }
 
+  /**
+   * The values of all properties during a period in which this entity was
+   * stable, with their set methods already resolved.
+   */
+  private class Period {
+    private final Method[] setters;
+    private final Object[] values;
+    private final long earliest;
+    private final long latest;
+
+    public Period(List<Property> properties, long earliest, long latest) {
+      this.setters = new Method[properties.size()];
+      this.values = new Object[properties.size()];
+      for (int i = 0; i < setters.length; i++) {
+        Property p = properties.get(i);
+        setters[i] = GabotoEntityUtils.getSetMethodFor(entityClass, p.getPropertyUri());
+        values[i] = p.getValue();
+      }
+      this.earliest = earliest;
+      this.latest = latest;
+    }
+
+    /**
+     * Sets the values of this period in the passed entity.
+     * 
+     * @param entity
+     *          The entity.
+     */
+    public void apply(GabotoEntity entity) {
+      for (int i = 0; i < setters.length; i++) {
+        try {
+          setters[i].invoke(entity, values[i]);
+        } catch (Exception e) {
+          throw new GabotoRuntimeException(e);
+        }
+      }
+      entity.setTimeSpan(TimeSpan.createFromInstants(PackedTime.toInstant(earliest), PackedTime.toInstant(latest)));
+    }
+  }
+
   /**
    * Creates a new empty GabotoTimeBasedEntity with an undefined lifespan (
    * {@link TimeSpan#EXISTENCE}).
@@ -193,6 +265,14 @@ public class GabotoTimeBasedEntity implements Iterable<GabotoEntity> {
   /**
    * Loads an entity from the Gaboto model.
    * 
+   * <p>
+   * Each version is loaded from a private model holding only the entity's
+   * statements in its graph and in the global knowledge graph, those of its
+   * beans, and those of the entities it refers to or that refer to it. These
+   * are read under Gaboto's read lock, so the versions are consistent with
+   * each other. References are resolved against that model, that is, one
+   * step deep.
+   * </p>
    * 
    * @param uri
    *          The URI of the entity to be loaded.
@@ -204,6 +284,15 @@ public class GabotoTimeBasedEntity implements Iterable<GabotoEntity> {
    * 
    */
   public static GabotoTimeBasedEntity loadEntity(String uri, Gaboto gaboto) {
+    gaboto.getLock().readLock().lock();
+    try {
+      return load(uri, gaboto);
+    } finally {
+      gaboto.getLock().readLock().unlock();
+    }
+  }
+
+  private static GabotoTimeBasedEntity load(String uri, Gaboto gaboto) {
     logger.debug("Loading time based entity: " + uri);
 
     // find out the entity's type
@@ -221,30 +310,45 @@ public class GabotoTimeBasedEntity implements Iterable<GabotoEntity> {
 
     // find all graphs that are talking about the entity
     NamedGraphSet graphSet = gaboto.getNamedGraphSet();
+    Node node = Node.createURI(uri);
 
-    Iterator<?> it = graphSet.findQuads(Node.ANY, Node.createURI(uri), Node.ANY, Node.ANY);
+    Iterator<?> it = graphSet.findQuads(Node.ANY, node, Node.ANY, Node.ANY);
 
-    Set<String> seenGraphs = new HashSet<String>();
+    Set<String> seenGraphs = new LinkedHashSet<String>();
     while (it.hasNext()) {
       Quad quad = (Quad) it.next();
       // if quad is type quad we are not interested
-      if (quad.getPredicate().getURI().equals(RDF.type.getURI()))
+      if (quad.getPredicate().equals(RDF.type.asNode()))
         continue;
 
-      String graphName = quad.getGraphName().getURI();
-
-      if (seenGraphs.contains(graphName))
-        continue;
-      seenGraphs.add(graphName);
+      seenGraphs.add(quad.getGraphName().getURI());
+    }
 
+    NamedGraph gkg = gaboto.getGlobalKnowledgeGraph();
+    for (String graphName : seenGraphs) {
       TimeSpan ts = TimeSpan.createFromGraphName(graphName, gaboto);
       logger.debug("Found interesting timespan for tbEntity: " + ts);
 
-      // create snapshot for graph
-      GabotoSnapshot snapshot = gaboto.getSnapshot(graphName);
+      Model model = ModelFactory.createDefaultModel();
+      NamedGraph graph = graphSet.getGraph(graphName);
+      copyNeighbourhood(graph, node, model.getGraph());
+      if (!graph.getGraphName().equals(gkg.getGraphName()))
+        copyNeighbourhood(gkg, node, model.getGraph());
+
+      GabotoSnapshot snapshot = new GabotoSnapshot(model, gaboto);
+      EntityPool pool = new EntityPool(gaboto, snapshot);
 
-      // get Entity from snapshot
-      GabotoEntity entity = snapshot.loadEntity(uri);
+      // load the entity
+      GabotoEntity entity;
+      try {
+        entity = entityClass.newInstance();
+      } catch (InstantiationException e) {
+        throw new GabotoRuntimeException(e);
+      } catch (IllegalAccessException e) {
+        throw new GabotoRuntimeException(e);
+      }
+      entity.loadFromSnapshot(model.getResource(uri), snapshot, pool);
+      pool.addEntity(entity);
 
       // set timespan
       entity.setTimeSpan(ts);
@@ -256,6 +360,58 @@ public class GabotoTimeBasedEntity implements Iterable<GabotoEntity> {
     return entityTB;
   }
 
+  /**
+   * Copies the statements of a resource and its beans, and those of the
+   * resources it refers to or that refer to it, from one graph to another.
+   */
+  private static void copyNeighbourhood(Graph source, Node node, Graph target) {
+    Set<Node> copied = new HashSet<Node>();
+    List<Node> neighbours = new ArrayList<Node>();
+    copyResource(source, node, target, copied, neighbours);
+
+    ExtendedIterator<Triple> it = source.find(Node.ANY, Node.ANY, node);
+    try {
+      while (it.hasNext()) {
+        Triple t = it.next();
+        target.add(t);
+        if (t.getSubject().isURI())
+          neighbours.add(t.getSubject());
+      }
+    } finally {
+      it.close();
+    }
+
+    for (Node neighbour : neighbours)
+      copyResource(source, neighbour, target, copied, null);
+  }
+
+  /**
+   * Copies the statements of a resource and, recursively, of the blank nodes
+   * it links to. URIs it refers to are added to the references, if given.
+   */
+  private static void copyResource(Graph source, Node node, Graph target,
+      Set<Node> copied, Collection<Node> references) {
+    if (!copied.add(node))
+      return;
+    List<Node> beans = new ArrayList<Node>();
+    ExtendedIterator<Triple> it = source.find(node, Node.ANY, Node.ANY);
+    try {
+      while (it.hasNext()) {
+        Triple t = it.next();
+        target.add(t);
+        if (t.getObject().isBlank())
+          beans.add(t.getObject());
+        else if (references != null && t.getObject().isURI()
+            && !t.getPredicate().equals(RDF.type.asNode()))
+          references.add(t.getObject());
+      }
+    } finally {
+      it.close();
+    }
+    for (Node bean : beans)
+      copyResource(source, bean, target, copied, references);
+  }
+
   /**
    * Returns the URI that represents this entity.
    * 
@@ -320,36 +476,58 @@ public class GabotoTimeBasedEntity implements Iterable<GabotoEntity> {
    * @return A list of all timespans during which this entity was stable.
    */
   public List<TimeSpan> getTimeSpansSorted() {
-    // retrieve all stored timespans
+    return new ArrayList<TimeSpan>(getSortedTimeSpans());
+  }
+
+  /**
+   * Returns the cached list of all timespans where this entity was stable.
+   * 
+   * @return An unmodifiable list of all timespans during which this entity was
+   *         stable.
+   */
+  private List<TimeSpan> getSortedTimeSpans() {
+    if (sortedTimeSpans != null)
+      return sortedTimeSpans;
+
+    // retrieve all stored timespans and sort them
     List<TimeSpan> tmpTimespans = new ArrayList<TimeSpan>();
     tmpTimespans.addAll(getTimeSpansInPropertyMap());
-
-    // sort them
-    Collections.sort(tmpTimespans, new Comparator<TimeSpan>() {
-      public int compare(TimeSpan o1, TimeSpan o2) {
-        return o1.getBegin().compareTo(o2.getBegin());
-      }
-    });
+    Collections.sort(tmpTimespans, BEGIN_ORDER);
 
     // add timespan to beginning and end if necessary.
     List<TimeSpan> timespans = new ArrayList<TimeSpan>();
-    if (tmpTimespans.size() > 0 && !tmpTimespans.get(0).getBegin().canUnify(getTimeSpan().getBegin()))
+    if (tmpTimespans.size() > 0 && !PackedTime.canUnify(tmpTimespans.get(0).getPackedBegin(), getTimeSpan().getPackedBegin()))
       timespans.add(TimeSpan.createFromInstants(getTimeSpan().getBegin(), tmpTimespans.get(0).getBegin()));
     else if (tmpTimespans.size() == 0)
       timespans.add(getTimeSpan());
 
     timespans.addAll(tmpTimespans);
 
-    if (!timespans.get(timespans.size() - 1).getEnd().canUnify(getTimeSpan().getEnd())) {
+    if (!PackedTime.canUnify(timespans.get(timespans.size() - 1).getPackedEnd(), getTimeSpan().getPackedEnd())) {
       timespans.add(TimeSpan.createFromInstants(timespans.get(timespans.size() - 1).getEnd(), getTimeSpan().getEnd()));
     }
 
-    return timespans;
+    sortedTimeSpans = Collections.unmodifiableList(timespans);
+    return sortedTimeSpans;
+  }
+
+  /**
+   * Drops the cached timeline. Has to be called whenever a property changes.
+   */
+  private void changed() {
+    sortedTimeSpans = null;
+    periods = null;
   }
 
   /**
    * Retrieves an entity object as it is valid at a given point in time.
    * 
+   * <p>
+   * Instants that are precise to the day are looked up in the cached periods
+   * of this entity, anything less precise is resolved against the stored
+   * properties.
+   * </p>
+   * 
    * @param ti
    *          The time instant of interest.
    * 
@@ -369,67 +547,123 @@ public class GabotoTimeBasedEntity implements Iterable<GabotoEntity> {
 
     entity.setUri(getUri());
 
-    TimeInstant earliest = getTimeSpan().getBegin();
-    TimeInstant latest = getTimeSpan().getEnd();
+    long t = ti.getPackedBegin();
+    Period period = null;
+    if (PackedTime.isDay(t)) {
+      Entry<Long, Period> entry = getPeriods().floorEntry(PackedTime.lowerKey(t));
+      if (entry != null)
+        period = entry.getValue();
+    }
+    if (period == null)
+      period = createPeriod(t);
 
-    // loop over propertyMap and try also to find the earliest possible
-    // occurrence
-    for (Entry<TimeSpan, List<Property>> entry : propertyMap.entrySet()) {
-      if (entry.getKey().contains(ti) && (!ti.canUnify(entry.getKey().getEnd()) || !containsTimeSpanWithBegin(ti))) {
-        // relevant property map
-        for (Property p : entry.getValue()) {
-          // set property in entity
-          Method setter = GabotoEntityUtils.getSetMethodFor(entityClass, p.getPropertyUri());
-          try {
-            setter.invoke(entity, p.getValue());
-          } catch (Exception e) {
-            throw new GabotoRuntimeException(e);
-          }
-        }
+    period.apply(entity);
 
-        // set earliest
-        if (earliest == null|| earliest.compareTo(entry.getKey().getBegin()) < 0)
-          earliest = entry.getKey().getBegin();
+    return entity;
+  }
 
-      }
+  /**
+   * Returns the periods during which this entity was stable, keyed by the
+   * packed key of their first day.
+   * 
+   * <p>
+   * Whether a stored time span applies to a day only changes where a day
+   * starts or stops to unify with the beginning or the end of a stored time
+   * span, so each period is resolved once for its first day and holds for
+   * every day up to the next period.
+   * </p>
+   * 
+   * @return The periods of this entity.
+   */
+  private TreeMap<Long, Period> getPeriods() {
+    if (periods != null)
+      return periods;
+
+    TreeSet<Long> bounds = new TreeSet<Long>();
+    addBounds(bounds, getTimeSpan().getPackedBegin());
+    addBounds(bounds, getTimeSpan().getPackedEnd());
+    for (TimeSpan ts : getSortedTimeSpans()) {
+      addBounds(bounds, ts.getPackedBegin());
+      addBounds(bounds, ts.getPackedEnd());
     }
 
-    // find latest
-    for (TimeSpan tsToTest : getTimeSpansSorted()) {
-      if (tsToTest.getBegin().compareTo(ti) > 0) {
-        latest = tsToTest.getBegin();
-        break;
+    periods = new TreeMap<Long, Period>();
+    for (Long key : bounds)
+      periods.put(key, createPeriod(PackedTime.ofDay(key)));
+
+    return periods;
+  }
+
+  /**
+   * Adds the first day an instant stands for and the day after its last day.
+   * 
+   * @param bounds
+   *          The set of bounds.
+   * @param packed
+   *          A packed instant.
+   */
+  private void addBounds(Set<Long> bounds, long packed) {
+    bounds.add(PackedTime.lowerKey(packed));
+    bounds.add(PackedTime.upperKey(packed) + 1);
+  }
+
+  /**
+   * Resolves the values of all properties at a given point in time.
+   * 
+   * @param t
+   *          The packed time instant of interest.
+   * @return The period of the entity containing the time instant.
+   */
+  private Period createPeriod(long t) {
+    long earliest = getTimeSpan().getPackedBegin();
+    long latest = getTimeSpan().getPackedEnd();
+    List<TimeSpan> sorted = getSortedTimeSpans();
+    boolean beginsAtT = containsTimeSpanWithBegin(sorted, t);
+
+    // collect the relevant properties and try also to find the earliest
+    // possible occurrence
+    List<Property> properties = new ArrayList<Property>();
+    for (TimeSpan ts : sorted) {
+      List<Property> list = propertyMap.get(ts);
+      if (list == null)
+        continue;
+      if (ts.containsInstant(t) && (!PackedTime.canUnify(t, ts.getPackedEnd()) || !beginsAtT)) {
+        properties.addAll(list);
+
+        // set earliest
+        if (PackedTime.compare(earliest, ts.getPackedBegin()) < 0)
+          earliest = ts.getPackedBegin();
       }
     }
 
-    // set properties in universalList
-    for (Property p : universalProperties) {
-      // set property in entity
-      Method setter = GabotoEntityUtils.getSetMethodFor(entityClass, p.getPropertyUri());
-      try {
-        setter.invoke(entity, p.getValue());
-      } catch (Exception e) {
-        throw new GabotoRuntimeException(e);
+    // find latest
+    for (TimeSpan tsToTest : sorted) {
+      if (PackedTime.compare(tsToTest.getPackedBegin(), t) > 0) {
+        latest = tsToTest.getPackedBegin();
+        break;
       }
     }
 
-    entity.setTimeSpan(TimeSpan.createFromInstants(earliest, latest));
+    // properties in universalList
+    properties.addAll(universalProperties);
 
-    return entity;
+    return new Period(properties, earliest, latest);
   }
 
   /**
    * Returns true if any of the stored time spans starts about the same time as
    * the supplied one.
    * 
+   * @param sorted
+   *          The time spans as returned by {@link #getTimeSpansSorted()}.
    * @param ti
-   *          The time instant of interest.
+   *          The packed time instant of interest.
    * @return Whether or not one of the stored time spans starts at this time
    *         instant.
    */
-  private boolean containsTimeSpanWithBegin(TimeInstant ti) {
-    for (TimeSpan tsToTest : getTimeSpansSorted())
-      if (tsToTest.getBegin().canUnify(ti))
+  private boolean containsTimeSpanWithBegin(List<TimeSpan> sorted, long ti) {
+    for (TimeSpan tsToTest : sorted)
+      if (PackedTime.canUnify(tsToTest.getPackedBegin(), ti))
         return true;
 
     return false;
@@ -440,7 +674,6 @@ public class GabotoTimeBasedEntity implements Iterable<GabotoEntity> {
    * 
    * @param entity
    */
-  @SuppressWarnings("unchecked")
   public void addEntity(GabotoEntity entity) {
     if (!getTimeSpan().contains(entity.getTimeSpan()))
       throw new IllegalArgumentException("The entity's time span has to be contained in the object's life time.");
@@ -451,44 +684,14 @@ public class GabotoTimeBasedEntity implements Iterable<GabotoEntity> {
               + " is not compatible with " + entityClass.getName());
     }
 
-    // loop over methods to identify simple and complex properties
-    for (Method setter : entityClass.getMethods()) {
-      Method getter = null;
-      String propertyURI = "";
-
-      // is it a set method? if not continue
-      if (!GabotoEntityUtils.IsSETMethod(setter))
-        continue;
-
-      // find corresponding get method
-      for (Class<?> annoClassUntyped : GabotoEntityUtils.PROPERTY_ANNOTATIONS) {
-        Class<? extends Annotation> annoClass = (Class<? extends Annotation>) annoClassUntyped;
-        // is it annotated as a simple property
-        if (setter.isAnnotationPresent(annoClass)) {
-          Annotation anno = setter.getAnnotation(annoClass);
-
-          try {
-            // get annotation value
-            Method valueMethod = anno.getClass().getMethod("value", (Class<?>[]) null);
-            propertyURI = (String) valueMethod.invoke(anno, (Object[]) null);
-
-            // find getter
-            getter = GabotoEntityUtils.getDirectGetMethodFor(entityClass, propertyURI);
-          } catch (Exception e) {
-            throw new GabotoRuntimeException(e);
-          }
-        }
-      }
-
-      // if getter was found -> get value and add it
-      if (getter != null) {
-        try {
-          Object value = getter.invoke(entity, (Object[]) null);
-          if (value != null)
-            addProperty(entity.getTimeSpan(), propertyURI, value);
-        } catch (Exception e) {
-          throw new GabotoRuntimeException(e);
-        }
+    // add the values of all stored properties
+    for (Entry<String, Method> property : GabotoEntityUtils.getStoredPropertyGetters(entityClass).entrySet()) {
+      try {
+        Object value = property.getValue().invoke(entity, (Object[]) null);
+        if (value != null)
+          addProperty(entity.getTimeSpan(), property.getKey(), value);
+      } catch (Exception e) {
+        throw new GabotoRuntimeException(e);
       }
     }
   }
@@ -668,6 +871,7 @@ public class GabotoTimeBasedEntity implements Iterable<GabotoEntity> {
     // add property to universalPropertyEntity
     Property newProp = new Property(propertyURI, value);
     universalProperties.add(newProp);
+    changed();
   }
 
   /**
@@ -729,6 +933,7 @@ public class GabotoTimeBasedEntity implements Iterable<GabotoEntity> {
     }
 
     list.add(property);
+    changed();
   }
 
   /**
@@ -748,8 +953,10 @@ public class GabotoTimeBasedEntity implements Iterable<GabotoEntity> {
         break;
       }
     }
-    if (null != propToDelete)
+    if (null != propToDelete) {
       propertyList.remove(propToDelete);
+      changed();
+    }
 
     return propToDelete;
   }
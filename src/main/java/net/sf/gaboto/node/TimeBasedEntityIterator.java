@@ -33,6 +33,7 @@ package net.sf.gaboto.node;
 
 import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 
 import net.sf.gaboto.time.TimeInstant;
 import net.sf.gaboto.time.TimeSpan;
@@ -70,22 +71,23 @@ public class TimeBasedEntityIterator implements Iterator<GabotoEntity> {
 		return null != this.entity;
 	}
 
+	/**
+	 * Walks the sorted time spans once, skipping those that begin about the
+	 * same time as the current entity, and looks up the entity at the next one.
+	 */
 	public GabotoEntity next() {
+		if (entity == null)
+			throw new NoSuchElementException();
 		GabotoEntity tmp = entity;
 		
-		try{
+		entity = null;
+		while (index < timespans.size()) {
 			TimeInstant begin = timespans.get(index).getBegin();
-			if(tmp == null)
-				System.out.println("lala");
-			
-			while(entity.getTimeSpan().getBegin().canUnify(begin)){
-				index++;
-				begin = timespans.get(index).getBegin();
-			}
-			entity = tbEntity.getEntity(begin);
 			index++;
-		} catch(IndexOutOfBoundsException e){
-			entity = null;
+			if (!tmp.getTimeSpan().getBegin().canUnify(begin)) {
+				entity = tbEntity.getEntity(begin);
+				break;
+			}
 		}
 		
 		return tmp;
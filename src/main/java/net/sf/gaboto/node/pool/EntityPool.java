@@ -229,19 +229,7 @@ public class EntityPool implements Collection<GabotoEntity> {
           GabotoEntity entity = (GabotoEntity) entityClass.newInstance();
 
           // resource filters
-          boolean passedFilter = true;
-          for (ResourceFilter filter : config.getResourceFilters()) {
-            try {
-              filter.appliesTo().cast(entity);
-              if (!filter.filterResource(res)) {
-                passedFilter = false;
-                break;
-              }
-            } catch (ClassCastException e) {
-              // On to the next one
-            }
-          }
-          if (!passedFilter)
+          if (!pool.passesResourceFilters(entity, res))
             continue;
 
           entity.loadFromSnapshot(res, snapshot, pool);
@@ -353,6 +341,66 @@ public class EntityPool implements Collection<GabotoEntity> {
       this.removeEntity(entity);
   }
 
+  /**
+   * Reloads entities from the pool's snapshot after its model was changed.
+   * 
+   * <p>
+   * The entities are dropped from the pool and loaded again if the snapshot
+   * still holds them, applying the pool's configuration as
+   * {@link #createFrom(EntityPoolConfiguration)} does: accepted and unaccepted
+   * types, resource filters, passive entities and entity filters. Entities
+   * that are new to the snapshot are added the same way. All other entities
+   * are kept as they are, so the URIs must include every entity whose
+   * triples, passive properties or references changed, and every entity
+   * referring to one of those, directly or through other reloaded entities.
+   * </p>
+   * 
+   * @param uris
+   *          The URIs of the entities to reload.
+   */
+  public void reload(Collection<String> uris) {
+    if (this.snapshot == null || this.poolConfig == null)
+      throw new GabotoRuntimeException("Cannot reload entities without a snapshot and configuration.");
+
+    // drop stale entities first, so that references resolve to new ones
+    for (String uri : uris) {
+      entityMap.remove(uri);
+      referencedEntityMap.remove(uri);
+      directEntities.remove(uri);
+    }
+
+    Collection<GabotoEntity> loaded = new ArrayList<GabotoEntity>();
+    for (String uri : uris) {
+      if (!snapshot.containsResource(uri))
+        continue;
+      try {
+        // applies type tests and resource filters
+        GabotoEntity entity = addEntity(snapshot.getResource(uri), snapshot, true, false);
+        if (entity != null)
+          loaded.add(entity);
+      } catch (ResourceDoesNotExistException e) {
+        throw new IncoherenceException(uri, e);
+      }
+    }
+
+    if (poolConfig.isCreatePassiveEntities())
+      for (GabotoEntity entity : loaded)
+        addPassiveEntitiesFor(entity);
+
+    // filter the reloaded entities
+    for (EntityFilter filter : poolConfig.getEntityFilters()) {
+      for (GabotoEntity entity : loaded) {
+        try {
+          filter.appliesTo().cast(entity);
+          if (!filter.filterEntity(entity))
+            removeEntity(entity);
+        } catch (ClassCastException e) {
+          // On to the next one
+        }
+      }
+    }
+  }
+
   public void addMissingReferencesForEntity(Collection<Resource> resources,
       Map<String, Collection<EntityExistsCallback>> callbacks) {
     if (this.snapshot == null) {
@@ -550,23 +598,8 @@ public class EntityPool implements Collection<GabotoEntity> {
     }
 
     // resource filters
-    if (direct) {
-      // resource filters
-      boolean passedFilter = true;
-      for (ResourceFilter filter : poolConfig.getResourceFilters()) {
-        try {
-          filter.appliesTo().cast(entity);
-          if (!filter.filterResource(resource)) {
-            passedFilter = false;
-            break;
-          }
-        } catch (ClassCastException e) {
-          // On to the next one
-        }
-      }
-      if (!passedFilter)
-        return null;
-    }
+    if (direct && !passesResourceFilters(entity, resource))
+      return null;
 
     // load entity
     entity.loadFromSnapshot(resource, snapshotFrom, this);
@@ -575,6 +608,31 @@ public class EntityPool implements Collection<GabotoEntity> {
     return this.addEntity(entity, direct);
   }
 
+  /**
+   * Tests a resource against the resource filters of the pool's configuration
+   * that apply to the entity's class.
+   * 
+   * @param entity
+   *          A new, not yet loaded entity of the resource's type.
+   * @param res
+   *          The resource.
+   * @return false if any of the filters rejects the resource.
+   */
+  private boolean passesResourceFilters(GabotoEntity entity, Resource res) {
+    if (poolConfig == null)
+      return true;
+    for (ResourceFilter filter : poolConfig.getResourceFilters()) {
+      try {
+        filter.appliesTo().cast(entity);
+        if (!filter.filterResource(res))
+          return false;
+      } catch (ClassCastException e) {
+        // On to the next one
+      }
+    }
+    return true;
+  }
+
   /**
    * Removes an entity from this pool.
    * 
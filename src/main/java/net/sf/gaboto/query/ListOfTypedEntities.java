@@ -31,8 +31,12 @@
  */
 package net.sf.gaboto.query;
 
+import java.util.List;
+
 import net.sf.gaboto.Gaboto;
 import net.sf.gaboto.GabotoSnapshot;
+import net.sf.gaboto.SeriesProcessor;
+import net.sf.gaboto.SnapshotSeries;
 import net.sf.gaboto.node.pool.EntityPool;
 import net.sf.gaboto.node.pool.EntityPoolConfiguration;
 import net.sf.gaboto.time.TimeInstant;
@@ -96,6 +100,27 @@ public class ListOfTypedEntities extends GabotoQueryImpl {
   	return EntityPool.createFrom(config);
 	}
 
+	/**
+	 * Lists the entities of this query's type at each of a number of instants, 
+	 * in chronological order. The query's own instant is ignored.
+	 * 
+	 * <p>
+	 * Rather than building a snapshot and pool from scratch for every instant, 
+	 * each is derived from the previous one (see {@link SnapshotSeries}). The 
+	 * pools are handed to the processor as they become available.
+	 * </p>
+	 * 
+	 * @param instants The time instants.
+	 * @param processor Receives the pool for every instant.
+	 */
+	public void executeSeries(List<TimeInstant> instants, SeriesProcessor processor) {
+		SnapshotSeries series = new SnapshotSeries(getGaboto());
+		EntityPoolConfiguration config = new EntityPoolConfiguration(series.getSnapshot());
+		config.addAcceptedType(type);
+		series.setPoolConfiguration(config);
+		series.run(instants, processor);
+	}
+
 	@Override
 	protected void doPrepare() {
 	  // Fool Eclipse
@@ -0,0 +1,189 @@
+/**
+ * Copyright 2009 University of Oxford
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *  - Neither the name of the University of Oxford nor the names of its 
+ *    contributors may be used to endorse or promote products derived from this 
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.sf.gaboto.time;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Splits the timeline into elementary periods during which the set of valid
+ * graphs does not change.
+ * 
+ * <p>
+ * Days are identified by the keys of {@link PackedTime#lowerKey(long)}. Each
+ * graph valid on the days [lo, hi] places a boundary at the first day of its
+ * validity and at the first day after it. A period starts at a boundary and
+ * lasts until the next one; it records the graphs valid during it. Looking
+ * up the graphs for a day therefore takes O(log n) in the number of
+ * boundaries. Adding or removing a graph updates the periods it covers.
+ * </p>
+ * 
+ * <p>
+ * Boundaries are counted, so that a boundary shared by several graphs is
+ * only dropped, merging its period into the previous one, once the last of
+ * them was removed.
+ * </p>
+ */
+class ElementaryTimeline {
+
+  private static class Period {
+    /** Number of graphs starting or ending here. */
+    private int boundaries;
+    private Set<String> graphs = new HashSet<String>();
+  }
+
+  private TreeMap<Long, Period> periods = new TreeMap<Long, Period>();
+
+  /**
+   * Adds a graph valid on the days [lo, hi].
+   */
+  public void add(long lo, long hi, String graph) {
+    long start = normalize(lo);
+    long end = normalize(hi + 1);
+    split(start).boundaries++;
+    split(end).boundaries++;
+    for (Period p : periods.subMap(start, end).values())
+      p.graphs.add(graph);
+  }
+
+  /**
+   * Removes a graph that was added with the same days.
+   */
+  public void remove(long lo, long hi, String graph) {
+    long start = normalize(lo);
+    long end = normalize(hi + 1);
+    for (Period p : periods.subMap(start, end).values())
+      p.graphs.remove(graph);
+    release(start);
+    release(end);
+  }
+
+  /**
+   * Returns the graphs valid on a day.
+   * 
+   * @param key
+   *          The day's key.
+   * @return The graphs, which must not be modified.
+   */
+  public Set<String> getGraphs(long key) {
+    Map.Entry<Long, Period> e = periods.floorEntry(key);
+    if (e == null)
+      return Collections.emptySet();
+    return e.getValue().graphs;
+  }
+
+  /**
+   * Returns the first day of the period containing a day.
+   * 
+   * @param key
+   *          The day's key.
+   * @return The period's first day, or null if no graph is valid before or
+   *         on the day.
+   */
+  public Long getPeriodStart(long key) {
+    return periods.floorKey(key);
+  }
+
+  /**
+   * Returns the boundaries in (from, to].
+   */
+  public List<Long> getBoundaries(long from, long to) {
+    if (to <= from)
+      return Collections.emptyList();
+    return new ArrayList<Long>(periods.subMap(from, false, to, true).keySet());
+  }
+
+  /**
+   * @return the number of periods
+   */
+  public int size() {
+    return periods.size();
+  }
+
+  public void clear() {
+    periods.clear();
+  }
+
+  private Period split(long key) {
+    Period p = periods.get(key);
+    if (p == null) {
+      p = new Period();
+      Map.Entry<Long, Period> previous = periods.lowerEntry(key);
+      if (previous != null)
+        p.graphs.addAll(previous.getValue().graphs);
+      periods.put(key, p);
+    }
+    return p;
+  }
+
+  private void release(long key) {
+    Period p = periods.get(key);
+    // nothing starts or ends here any more, so it equals the previous period
+    if (--p.boundaries == 0)
+      periods.remove(key);
+  }
+
+  /**
+   * Tests if a key stands for an actual day.
+   */
+  static boolean isDay(long key) {
+    return normalize(key) == key;
+  }
+
+  /**
+   * Returns the key of the first actual day at or after a key. Keys past the
+   * end of a month, such as the one following a month's last day, are moved
+   * to the first day of the next month.
+   */
+  static long normalize(long key) {
+    long year = key >> 9;
+    int month = (int) (key >> 5) & 15;
+    int day = (int) key & 31;
+    if (day == 0)
+      day = 1;
+    if (month > 11) {
+      year++;
+      month = 0;
+      day = 1;
+    } else if (day > TimeSpan.getDaysInMonth((int) year, month)) {
+      day = 1;
+      if (++month > 11) {
+        year++;
+        month = 0;
+      }
+    }
+    return year << 9 | month << 5 | day;
+  }
+}
@@ -0,0 +1,248 @@
+/**
+ * Copyright 2009 University of Oxford
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *  - Neither the name of the University of Oxford nor the names of its 
+ *    contributors may be used to endorse or promote products derived from this 
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.sf.gaboto.time;
+
+import java.util.Collection;
+
+/**
+ * An interval tree over closed intervals of long keys.
+ * 
+ * <p>
+ * The tree is an AVL tree ordered by the lower bound of the intervals, where
+ * every node additionally records the largest upper bound found in its
+ * subtree. Adding and removing intervals takes O(log n), finding the k
+ * intervals that overlap a given interval takes O(log n + k).
+ * </p>
+ * 
+ * <p>
+ * The same interval may be added several times. Intervals are removed using
+ * the handle returned when they were added.
+ * </p>
+ * 
+ * @param <V> The type of the values stored with the intervals.
+ */
+class IntervalTree<V> {
+
+  private static class Node<V> {
+    private long lo;
+    private long hi;
+    private long seq;
+    private V value;
+
+    private long max;
+    private int height = 1;
+    private Node<V> left;
+    private Node<V> right;
+
+    Node(long lo, long hi, long seq, V value) {
+      this.lo = lo;
+      this.hi = hi;
+      this.seq = seq;
+      this.value = value;
+      this.max = hi;
+    }
+  }
+
+  private Node<V> root;
+
+  private long nextSeq = 0;
+
+  private int size = 0;
+
+  /**
+   * Adds an interval.
+   * 
+   * @param lo
+   *          The interval's lower bound.
+   * @param hi
+   *          The interval's upper bound.
+   * @param value
+   *          The value to associate with the interval.
+   * @return A handle to remove the interval with.
+   */
+  public Object add(long lo, long hi, V value) {
+    if (hi < lo)
+      throw new IllegalArgumentException("Empty interval: " + lo + " > " + hi);
+    Node<V> node = new Node<V>(lo, hi, nextSeq++, value);
+    root = insert(root, node);
+    size++;
+    return node;
+  }
+
+  /**
+   * Removes an interval.
+   * 
+   * @param handle
+   *          The handle returned when the interval was added.
+   */
+  @SuppressWarnings("unchecked")
+  public void remove(Object handle) {
+    Node<V> node = (Node<V>) handle;
+    root = delete(root, node.lo, node.seq);
+    size--;
+  }
+
+  /**
+   * Collects the values of all intervals that share at least one key with
+   * the interval [lo, hi].
+   * 
+   * @param lo
+   *          The lower bound.
+   * @param hi
+   *          The upper bound.
+   * @param result
+   *          The collection to add the values to.
+   */
+  public void findOverlapping(long lo, long hi, Collection<? super V> result) {
+    findOverlapping(root, lo, hi, result);
+  }
+
+  /**
+   * Removes all intervals.
+   */
+  public void clear() {
+    root = null;
+    size = 0;
+  }
+
+  /**
+   * @return the number of intervals
+   */
+  public int size() {
+    return size;
+  }
+
+  private void findOverlapping(Node<V> n, long lo, long hi, Collection<? super V> result) {
+    while (n != null && n.max >= lo) {
+      findOverlapping(n.left, lo, hi, result);
+      // everything further right starts even later
+      if (n.lo > hi)
+        return;
+      if (n.hi >= lo)
+        result.add(n.value);
+      n = n.right;
+    }
+  }
+
+  private static int compare(long lo, long seq, Node<?> n) {
+    if (lo != n.lo)
+      return lo < n.lo ? -1 : 1;
+    if (seq != n.seq)
+      return seq < n.seq ? -1 : 1;
+    return 0;
+  }
+
+  private Node<V> insert(Node<V> n, Node<V> node) {
+    if (n == null)
+      return node;
+    if (compare(node.lo, node.seq, n) < 0)
+      n.left = insert(n.left, node);
+    else
+      n.right = insert(n.right, node);
+    return balance(n);
+  }
+
+  private Node<V> delete(Node<V> n, long lo, long seq) {
+    if (n == null)
+      throw new IllegalArgumentException("Interval is not part of this tree.");
+    int c = compare(lo, seq, n);
+    if (c < 0)
+      n.left = delete(n.left, lo, seq);
+    else if (c > 0)
+      n.right = delete(n.right, lo, seq);
+    else {
+      if (n.left == null)
+        return n.right;
+      if (n.right == null)
+        return n.left;
+      Node<V> successor = n.right;
+      while (successor.left != null)
+        successor = successor.left;
+      successor.right = deleteMin(n.right);
+      successor.left = n.left;
+      n = successor;
+    }
+    return balance(n);
+  }
+
+  private Node<V> deleteMin(Node<V> n) {
+    if (n.left == null)
+      return n.right;
+    n.left = deleteMin(n.left);
+    return balance(n);
+  }
+
+  private static int height(Node<?> n) {
+    return n == null ? 0 : n.height;
+  }
+
+  private static void update(Node<?> n) {
+    n.height = Math.max(height(n.left), height(n.right)) + 1;
+    n.max = n.hi;
+    if (n.left != null && n.left.max > n.max)
+      n.max = n.left.max;
+    if (n.right != null && n.right.max > n.max)
+      n.max = n.right.max;
+  }
+
+  private Node<V> balance(Node<V> n) {
+    update(n);
+    int diff = height(n.left) - height(n.right);
+    if (diff > 1) {
+      if (height(n.left.left) < height(n.left.right))
+        n.left = rotateLeft(n.left);
+      return rotateRight(n);
+    }
+    if (diff < -1) {
+      if (height(n.right.right) < height(n.right.left))
+        n.right = rotateRight(n.right);
+      return rotateLeft(n);
+    }
+    return n;
+  }
+
+  private Node<V> rotateRight(Node<V> n) {
+    Node<V> l = n.left;
+    n.left = l.right;
+    l.right = n;
+    update(n);
+    update(l);
+    return l;
+  }
+
+  private Node<V> rotateLeft(Node<V> n) {
+    Node<V> r = n.right;
+    n.right = r.left;
+    r.left = n;
+    update(n);
+    update(r);
+    return r;
+  }
+}
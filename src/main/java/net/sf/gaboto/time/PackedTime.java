@@ -0,0 +1,216 @@
+/**
+ * Copyright 2009 University of Oxford
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *  - Neither the name of the University of Oxford nor the names of its 
+ *    contributors may be used to endorse or promote products derived from this 
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.sf.gaboto.time;
+
+/**
+ * Packs a time instant into a single long.
+ * 
+ * <p>
+ * The year, the zero based month and the day are stored in the high bits as
+ * <code>year &lt;&lt; 9 | month &lt;&lt; 5 | day</code>, with a missing month
+ * or day stored as 0. The lowest two bits record whether the month and the
+ * day are set. Shifting out these flags yields a key that orders instants
+ * the same way {@link TimeInstant#compareTo(TimeInstant)} does, so instants
+ * can be compared, unified and tested for containment without unboxing or
+ * allocating.
+ * </p>
+ * 
+ * @see TimeSpan#getPackedBegin()
+ * @see TimeSpan#getPackedEnd()
+ */
+public final class PackedTime {
+
+  private static final int MONTH_SET = 1;
+
+  private static final int DAY_SET = 2;
+
+  private PackedTime() {
+  }
+
+  /**
+   * Packs an instant.
+   * 
+   * @param year
+   *          The year.
+   * @param month
+   *          The zero based month, or null.
+   * @param day
+   *          The day, or null.
+   * @return The packed instant.
+   */
+  public static long pack(int year, Integer month, Integer day) {
+    long packed = (long) year << 11;
+    if (month != null)
+      packed |= (month.longValue() << 7) | MONTH_SET;
+    if (day != null)
+      packed |= (day.longValue() << 2) | DAY_SET;
+    return packed;
+  }
+
+  /**
+   * @param packed
+   *          A packed instant.
+   * @return The year.
+   */
+  public static int getYear(long packed) {
+    return (int) (packed >> 11);
+  }
+
+  /**
+   * @param packed
+   *          A packed instant.
+   * @return The zero based month, or null.
+   */
+  public static Integer getMonth(long packed) {
+    if ((packed & MONTH_SET) == 0)
+      return null;
+    return (int) (packed >> 7) & 15;
+  }
+
+  /**
+   * @param packed
+   *          A packed instant.
+   * @return The day, or null.
+   */
+  public static Integer getDay(long packed) {
+    if ((packed & DAY_SET) == 0)
+      return null;
+    return (int) (packed >> 2) & 31;
+  }
+
+  /**
+   * Unpacks an instant.
+   * 
+   * @param packed
+   *          A packed instant.
+   * @return A new time instant.
+   */
+  public static TimeInstant toInstant(long packed) {
+    return new TimeInstant(getYear(packed), getMonth(packed), getDay(packed));
+  }
+
+  /**
+   * Tests if an instant is precise to the day.
+   * 
+   * @param packed
+   *          A packed instant.
+   * @return True, if month and day are set.
+   */
+  public static boolean isDay(long packed) {
+    return (packed & (MONTH_SET | DAY_SET)) == (MONTH_SET | DAY_SET);
+  }
+
+  /**
+   * Packs the day a key stands for.
+   * 
+   * @param key
+   *          The key of a day, with month and day set.
+   * @return The packed instant.
+   */
+  public static long ofDay(long key) {
+    return (key << 2) | MONTH_SET | DAY_SET;
+  }
+
+  /**
+   * Packs the first day an instant might stand for.
+   * 
+   * @param packed
+   *          A packed instant.
+   * @return The packed first day, with month and day set.
+   */
+  public static long firstDay(long packed) {
+    return ofDay(ElementaryTimeline.normalize(lowerKey(packed)));
+  }
+
+  /**
+   * Returns the smallest key of any day an instant might stand for. A missing
+   * month or day counts as 0.
+   * 
+   * @param packed
+   *          A packed instant.
+   * @return The key.
+   */
+  public static long lowerKey(long packed) {
+    return packed >> 2;
+  }
+
+  /**
+   * Returns the largest key of any day an instant might stand for.
+   * 
+   * @param packed
+   *          A packed instant.
+   * @return The key.
+   */
+  public static long upperKey(long packed) {
+    long key = packed >> 2;
+    if ((packed & MONTH_SET) == 0)
+      return key | 511;
+    if ((packed & DAY_SET) == 0)
+      return key | 31;
+    return key;
+  }
+
+  /**
+   * Compares two instants as {@link TimeInstant#compareTo(TimeInstant)} does.
+   * 
+   * @param a
+   *          A packed instant.
+   * @param b
+   *          Another packed instant.
+   * @return -1, if a is earlier. 1, if it is later. 0 else.
+   */
+  public static int compare(long a, long b) {
+    a >>= 2;
+    b >>= 2;
+    return a < b ? -1 : (a == b ? 0 : 1);
+  }
+
+  /**
+   * Tests if two instants are roughly the same, as
+   * {@link TimeInstant#canUnify(TimeInstant)} does.
+   * 
+   * @param a
+   *          A packed instant.
+   * @param b
+   *          Another packed instant.
+   * @return True, if they are roughly the same.
+   */
+  public static boolean canUnify(long a, long b) {
+    if (getYear(a) != getYear(b))
+      return false;
+    if ((a & MONTH_SET) == 0 || (b & MONTH_SET) == 0)
+      return true;
+    if (((a ^ b) & (15 << 7)) != 0)
+      return false;
+    if ((a & DAY_SET) == 0 || (b & DAY_SET) == 0)
+      return true;
+    return ((a ^ b) & (31 << 2)) == 0;
+  }
+}
@@ -31,12 +31,19 @@
  */
 package net.sf.gaboto.time;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import java.util.Map.Entry;
+import java.util.Set;
 
 import net.sf.gaboto.Gaboto;
 import net.sf.gaboto.IncoherenceException;
@@ -61,17 +68,45 @@ import de.fuberlin.wiwiss.ng4j.NamedGraph;
  * that problem by parsing all time information into a Java representation and providing
  * methods to query that information.
  * </p>
- * NOTE This class does not use any proper data structure to do the task.
- * 
- * TODO think of a proper tree to do the indexing!
+ * <p>
+ * Time spans are held in an interval tree (see {@link IntervalTree}) over 
+ * keys derived from their beginning and end, so that looking up the graphs 
+ * for an instant or a duration takes O(log n + k) rather than testing 
+ * every graph. Since instants may be given at a resolution of years or 
+ * months, the keys only narrow down the candidates; every candidate is 
+ * still tested using {@link TimeSpan#contains(TimeInstant)}.
+ * </p>
+ * <p>
+ * The index also keeps the elementary periods during which the set of valid 
+ * graphs does not change (see {@link #getChangePoints(TimeSpan)}). The 
+ * graphs for an instant given to the day are read off its period.
+ * </p>
  * 
  * @author Arno Mittelbach
  *
  */
 public class TimeDimensionIndexer {
 
+	/** Marks the beginning of a persisted index: "GTDI". */
+	private static final int MAGIC = 0x47544449;
+	
+	private static final int FORMAT_VERSION = 1;
+	
+	private static final int HAS_START_MONTH = 1;
+	private static final int HAS_START_DAY = 2;
+	
+	/** Returned by dayOf for instants that are not given to a day. */
+	private static final long NO_DAY = Long.MIN_VALUE;
+
 	private Map<String, TimeSpan> lookup = new HashMap<String, TimeSpan>();
 	
+	private IntervalTree<String> tree = new IntervalTree<String>();
+	
+	/** Handles to remove the graphs from the tree with. */
+	private Map<String, Object> handles = new HashMap<String, Object>();
+	
+	private ElementaryTimeline timeline = new ElementaryTimeline();
+	
   /**
    * Builds the index.
    * 
@@ -125,6 +160,87 @@ public class TimeDimensionIndexer {
     //System.err.println("Added " + count + " to time index");
 	}
 	
+  /**
+   * Writes the index in a compact binary format.
+   * 
+   * <p>
+   * The checksum identifies the cdg the index was built from and is checked 
+   * by {@link #read(InputStream, long)}. The stream is not closed.
+   * </p>
+   * 
+   * @param os The stream to write to.
+   * @param checksum A checksum of the cdg.
+   * @throws IOException
+   */
+	public void write(OutputStream os, long checksum) throws IOException {
+		DataOutputStream out = new DataOutputStream(os);
+		out.writeInt(MAGIC);
+		out.writeInt(FORMAT_VERSION);
+		out.writeLong(checksum);
+		out.writeInt(lookup.size());
+		for(Entry<String, TimeSpan> entry : lookup.entrySet()){
+			TimeSpan ts = entry.getValue();
+			out.writeUTF(entry.getKey());
+			int flags = 0;
+			if(ts.getStartMonth() != null)
+				flags |= HAS_START_MONTH;
+			if(ts.getStartDay() != null)
+				flags |= HAS_START_DAY;
+			out.writeByte(flags);
+			out.writeInt(ts.getStartYear());
+			if(ts.getStartMonth() != null)
+				out.writeByte(ts.getStartMonth());
+			if(ts.getStartDay() != null)
+				out.writeByte(ts.getStartDay());
+			out.writeInt(ts.getDurationYear());
+			out.writeByte(ts.getDurationMonth());
+			out.writeByte(ts.getDurationDay());
+		}
+		out.flush();
+	}
+	
+  /**
+   * Reads an index written by {@link #write(OutputStream, long)} and adds 
+   * its graphs to this index.
+   * 
+   * <p>
+   * Nothing is added if the stream does not hold an index in the expected 
+   * format or if the index was built from a different cdg. The stream is 
+   * not closed.
+   * </p>
+   * 
+   * @param is The stream to read from.
+   * @param checksum The checksum of the cdg the index should match.
+   * @return Whether the index was read.
+   * @throws IOException
+   */
+	public boolean read(InputStream is, long checksum) throws IOException {
+		DataInputStream in = new DataInputStream(is);
+		if(in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION || in.readLong() != checksum)
+			return false;
+		
+		int count = in.readInt();
+		Map<String, TimeSpan> spans = new HashMap<String, TimeSpan>();
+		for(int i = 0; i < count; i++){
+			String graph = in.readUTF();
+			int flags = in.readByte();
+			TimeSpan ts = new TimeSpan();
+			ts.setStartYear(in.readInt());
+			if((flags & HAS_START_MONTH) != 0)
+				ts.setStartMonth((int) in.readByte());
+			if((flags & HAS_START_DAY) != 0)
+				ts.setStartDay((int) in.readByte());
+			ts.setDurationYear(in.readInt());
+			ts.setDurationMonth((int) in.readByte());
+			ts.setDurationDay((int) in.readByte());
+			spans.put(graph, ts);
+		}
+		
+		for(Entry<String, TimeSpan> entry : spans.entrySet())
+			add(entry.getKey(), entry.getValue());
+		return true;
+	}
+	
   /**
    * Adds another graph to the index.
    * 
@@ -133,7 +249,13 @@ public class TimeDimensionIndexer {
    */
 	public void add(String graph, TimeSpan ts){
 	  //System.err.println("TDI adding " + graph);
+		remove(graph);
 		lookup.put(graph, ts);
+		long begin = ts.getPackedBegin();
+		long lo = PackedTime.lowerKey(begin);
+		long hi = Math.max(PackedTime.upperKey(ts.getPackedEnd()), PackedTime.upperKey(begin));
+		handles.put(graph, tree.add(lo, hi, graph));
+		timeline.add(lo, hi, graph);
 	}
 	
   /**
@@ -147,21 +269,72 @@ public class TimeDimensionIndexer {
 	}
 
   /**
-   * Returns the time span for a given graph
+   * Removes a graph from the index.
    * 
-   * @param graphURI The graph's name.
+   * @param graph The graph's name.
+   */
+	public void remove(String graph){
+		Object handle = handles.remove(graph);
+		if(handle != null)
+			tree.remove(handle);
+		TimeSpan ts = lookup.remove(graph);
+		if(ts != null){
+			long begin = ts.getPackedBegin();
+			timeline.remove(PackedTime.lowerKey(begin), 
+					Math.max(PackedTime.upperKey(ts.getPackedEnd()), PackedTime.upperKey(begin)), graph);
+		}
+	}
+	
+  /**
+   * Removes a graph from the index.
    * 
-   * @return The graph's time span (or null).
+   * @param graph The graph.
+   */
+	public void remove(NamedGraph graph){
+		remove(graph.getGraphName().getURI());
+	}
+
+  /**
+   * Returns all the graphs that hold information which is valid over a given time span.
+   * 
+   * @param ts The time span.
+   * 
+   * @return A collection of graph names.
    */
 	public Collection<String> getGraphsForDuration(TimeSpan ts) {
 		Set<String> graphs = new HashSet<String>();
 
-		for(Entry<String, TimeSpan> entry : lookup.entrySet())
-			if(entry.getValue().contains(ts))
-				graphs.add(entry.getKey());
+		// a graph containing the span must contain its beginning
+		for(String graph : candidates(ts.getPackedBegin()))
+			if(lookup.get(graph).contains(ts))
+				graphs.add(graph);
 		
 		return graphs; 
 	}
+	
+  /**
+   * Returns all the graphs that hold information which is valid at some point 
+   * during the given time span.
+   * 
+   * @param ts The time span.
+   * 
+   * @return A collection of graph names.
+   */
+	public Collection<String> getGraphsIntersecting(TimeSpan ts) {
+		Set<String> graphs = new HashSet<String>();
+		
+		long begin = ts.getPackedBegin();
+		Collection<String> candidates = new HashSet<String>();
+		tree.findOverlapping(PackedTime.lowerKey(begin), 
+				Math.max(PackedTime.upperKey(ts.getPackedEnd()), PackedTime.upperKey(begin)), candidates);
+		for(String graph : candidates){
+			TimeSpan span = lookup.get(graph);
+			if(span.containsInstant(begin) || ts.containsInstant(span.getPackedBegin()))
+				graphs.add(graph);
+		}
+		
+		return graphs;
+	}
 
   /**
    * Returns all the graphs that hold information which is valid at the given point in time.
@@ -171,13 +344,19 @@ public class TimeDimensionIndexer {
    * @return A collection of graph names.
    */
 	public Collection<String> getGraphsForInstant(TimeInstant ti) {
+		long packed = ti.getPackedBegin();
+		// on a day the candidates are exactly the graphs containing it 
+		long day = dayOf(packed);
+		if(day != NO_DAY)
+			return new HashSet<String>(timeline.getGraphs(day));
+		
 		Set<String> graphs = new HashSet<String>();
 
-		for(Entry<String, TimeSpan> entry : lookup.entrySet()) { 
-			if(entry.getValue().contains(ti)) {
-				graphs.add(entry.getKey());
+		for(String graph : candidates(packed)) { 
+			if(lookup.get(graph).containsInstant(packed)) {
+				graphs.add(graph);
 			} else { 
-			  //System.err.println("Ignoring " + entry.getKey());			  
+			  //System.err.println("Ignoring " + graph);			  
 			}
 		}
 		
@@ -185,14 +364,113 @@ public class TimeDimensionIndexer {
 	}
 
   /**
-   * Returns all the graphs that hold information which is valid over a given time span.
+   * Returns the time span for a given graph
    * 
-   * @param ts The time span.
+   * @param graphURI The graph's name.
    * 
-   * @return A collection of graph names.
+   * @return The graph's time span (or null).
    */
 	public TimeSpan getTimeSpanFor(String graphURI) {
 		return lookup.get(graphURI);
 	}
+	
+	/**
+	 * Returns all the graphs whose information is only valid within the given 
+	 * time span.
+	 * 
+	 * @param ts The time span.
+	 * 
+	 * @return A collection of graph names.
+	 */
+	public Collection<String> getGraphsDuring(TimeSpan ts) {
+		Set<String> graphs = new HashSet<String>();
+		
+		// a graph within the span overlaps it
+		long begin = ts.getPackedBegin();
+		Collection<String> candidates = new HashSet<String>();
+		tree.findOverlapping(PackedTime.lowerKey(begin), 
+				Math.max(PackedTime.upperKey(ts.getPackedEnd()), PackedTime.upperKey(begin)), candidates);
+		for(String graph : candidates)
+			if(ts.contains(lookup.get(graph)))
+				graphs.add(graph);
+		
+		return graphs;
+	}
+	
+	/**
+	 * Returns the instants at which the set of valid graphs changes during a 
+	 * time span.
+	 * 
+	 * <p>
+	 * Each instant is the first day of an elementary period: from it up to 
+	 * the day before the next instant, {@link #getGraphsForInstant(TimeInstant)} 
+	 * returns the same graphs for every day. The beginning of the time span is 
+	 * not included unless a period starts on it, so the history of a time span 
+	 * can be walked by looking at its beginning and then at each change point.
+	 * </p>
+	 * 
+	 * @param range The time span.
+	 * @return The change points, in order.
+	 */
+	public List<TimeInstant> getChangePoints(TimeSpan range) {
+		long begin = range.getPackedBegin();
+		long from = ElementaryTimeline.normalize(PackedTime.lowerKey(begin));
+		long to = Math.max(PackedTime.upperKey(range.getPackedEnd()), PackedTime.upperKey(begin));
+		List<TimeInstant> points = new ArrayList<TimeInstant>();
+		// a period starting on the first day changes the set as well
+		Long first = timeline.getPeriodStart(from);
+		if(first != null && first == from)
+			points.add(PackedTime.toInstant(PackedTime.ofDay(from)));
+		for(long key : timeline.getBoundaries(from, to))
+			points.add(PackedTime.toInstant(PackedTime.ofDay(key)));
+		return points;
+	}
+	
+	/**
+	 * Returns the first day of the elementary period containing an instant.
+	 * 
+	 * <p>
+	 * All days of a period share the same graphs, so the first day identifies 
+	 * the graphs returned by {@link #getGraphsForInstant(TimeInstant)}. 
+	 * </p>
+	 * 
+	 * @param ti The time instant.
+	 * @return The first day of the period, or null if the instant is not 
+	 *         given to the day or no graph is valid before it.
+	 */
+	public TimeInstant getPeriodStart(TimeInstant ti) {
+		long day = dayOf(ti.getPackedBegin());
+		if(day == NO_DAY)
+			return null;
+		Long start = timeline.getPeriodStart(day);
+		return start == null ? null : PackedTime.toInstant(PackedTime.ofDay(start));
+	}
+	
+	/**
+	 * @return the number of elementary periods
+	 */
+	public int getPeriodCount() {
+		return timeline.size();
+	}
+	
+	/**
+	 * Returns the key of the day an instant stands for, or NO_DAY if it is 
+	 * not given to an actual day.
+	 */
+	private static long dayOf(long packed) {
+		if(PackedTime.getMonth(packed) == null || PackedTime.getDay(packed) == null)
+			return NO_DAY;
+		long key = PackedTime.lowerKey(packed);
+		return ElementaryTimeline.isDay(key) ? key : NO_DAY;
+	}
+	
+	/**
+	 * Returns the graphs whose time span might contain the packed instant.
+	 */
+	private Collection<String> candidates(long ti) {
+		Collection<String> candidates = new HashSet<String>();
+		tree.findOverlapping(PackedTime.lowerKey(ti), PackedTime.upperKey(ti), candidates);
+		return candidates;
+	}
 
 }
@@ -160,11 +160,15 @@ public class TimeInstant extends TimeSpan implements Comparable<TimeInstant> {
     if (!(obj instanceof TimeInstant))
       return false;
 
-    TimeInstant ti = (TimeInstant) obj;
+    return getPackedBegin() == ((TimeInstant) obj).getPackedBegin();
+  }
 
-    return (this.getStartYear() == ti.getStartYear())
-        && (this.getStartMonth() == ti.getStartMonth())
-        && (this.getStartDay() == ti.getStartDay());
+  /**
+   * The end of an instant is the instant itself.
+   */
+  @Override
+  public long getPackedEnd() {
+    return getPackedBegin();
   }
 
   /**
@@ -199,20 +203,7 @@ public class TimeInstant extends TimeSpan implements Comparable<TimeInstant> {
    * @return True, if they are roughly the same.
    */
   public boolean canUnify(TimeInstant ti) {
-    if (this.startYear.equals(ti.getStartYear())) {
-      if (this.getStartMonth() == null || ti.getStartMonth() == null) {
-        return true;
-      } else if (this.getStartMonth().equals(ti.getStartMonth())) {
-        if (this.getStartDay() == null || ti.getStartDay() == null) { 
-          System.err.println("Can unify");
-          return true;
-        } else if (this.getStartDay().equals(ti.getStartDay())) { 
-          System.err.println("Can unify");
-          return true;
-        }
-      }
-    }
-    return false;
+    return PackedTime.canUnify(getPackedBegin(), ti.getPackedBegin());
   }
 
   /**
@@ -224,25 +215,13 @@ public class TimeInstant extends TimeSpan implements Comparable<TimeInstant> {
    * @return -1, if this instant is earlier. 1, if it is later. 0 else.
    */
   public int compareTo(TimeInstant other) {
-	  if (this.startYear < other.getStartYear()) return -1;
-	  else if (this.startYear > other.getStartYear()) return 1;
-
-	  int thisMonth = this.getStartMonth() != null ? this.getStartMonth() : 0;
-	  int otherMonth = other.getStartMonth() != null ? other.getStartMonth() : 0;
-	  if (thisMonth < otherMonth) return -1;
-	  else if (thisMonth > otherMonth) return 1;
-
-	  int thisDay = this.getStartDay() != null ? this.getStartDay() : 0;
-	  int otherDay = other.getStartDay() != null ? other.getStartDay() : 0;
-	  if (thisDay < otherDay) return -1;
-	  else if (thisDay > otherDay) return 1;
-
-	  return 0;
+    return PackedTime.compare(getPackedBegin(), other.getPackedBegin());
   }
 
+  @Override
   public int hashCode() {
-	  int data[] = {this.startYear, this.startMonth, this.startDay};
-	  return data.hashCode();
+    long packed = getPackedBegin();
+    return (int) (packed ^ (packed >>> 32));
   }
   
 	public TimeInstant clone() {
@@ -55,6 +55,12 @@ import com.hp.hpl.jena.rdf.model.RDFNode;
  * types. ts1.getStartYear() == t2.getStartYear() will therefore not work!
  * </p>
  * 
+ * <p>
+ * Comparisons and containment tests work on the beginning and end packed into
+ * longs (see {@link PackedTime}). The packed end is computed once and kept
+ * until the time span is changed.
+ * </p>
+ * 
  * @author Arno Mittelbach
  * @version 0.1
  * 
@@ -80,6 +86,14 @@ public class TimeSpan implements Serializable {
   private Integer durationMonth;
   private Integer durationYear;
 
+  /** The packed end, valid if packedEndValid is set. */
+  private transient long packedEnd;
+
+  private transient volatile boolean packedEndValid;
+
+  /** Set once canonicalize() found this span to be canonical. */
+  private transient volatile boolean canonical;
+
   /**
    * You could also refer to this as the beginning of time.
    * 
@@ -220,31 +234,29 @@ public class TimeSpan implements Serializable {
    * @return The time span.
    */
   public static TimeSpan createFromInstants(TimeInstant begin, TimeInstant end) {
-	  begin = begin.clone();
-	  end = end.clone();
-    if (begin.canUnify(end)) 
+    long packedBegin = begin.getPackedBegin();
+    long packedEnd = end.getPackedBegin();
+    if (PackedTime.canUnify(packedBegin, packedEnd)) 
       // FIXME WTF looks like a hack
       return createFromInstants(begin, TimeInstant.oneYearOn(begin));
-    else if (begin.compareTo(end) != -1)  
+    else if (PackedTime.compare(packedBegin, packedEnd) != -1)  
       throw new IllegalArgumentException(
           "Begin has to be earlier than end. begin: " + begin + ", end: " + end  );
     
-    if (begin.startMonth == null)
-    	begin.setStartMonth(0);
-    if (end.startMonth == null)
-    	end.setStartMonth(0);
-
-    if (begin.startDay == null)
-    	begin.setStartDay(1);
-    if (end.startMonth == null)
-    	end.setStartDay(1);
+    // work on copies of the fields rather than on clones of the instants
+    int beginStartYear = begin.startYear;
+    int beginStartMonth = begin.startMonth == null ? 0 : begin.startMonth;
+    int beginStartDay = begin.startDay == null ? 1 : begin.startDay;
+    int endStartYear = end.startYear;
+    int endStartMonth = end.startMonth == null ? 0 : end.startMonth;
+    Integer endStartDay = end.startDay;
 
     // everything seems ok
 
-    TimeSpan ts = new TimeSpan(begin.startYear, begin.startMonth, begin.startDay);
+    TimeSpan ts = new TimeSpan(beginStartYear, beginStartMonth, beginStartDay);
 
     // if latest == big crunch, it is easy
-    if (end.equals(TimeSpan.DOOMS_DAY))
+    if (PackedTime.pack(endStartYear, endStartMonth, endStartDay) == DOOMS_DAY.getPackedBegin())
       return ts;
 
     // calculate duration
@@ -255,38 +267,35 @@ public class TimeSpan implements Serializable {
 
     // years
 
-    if (end.startDay != null) {
-      if (end.startDay < begin.startDay) {
+    if (endStartDay != null) {
+      if (endStartDay < beginStartDay) {
         int daysInMonth = 0;
-        if (end.startMonth > 0)
-          daysInMonth = getDaysInMonth(end.startYear, end.startMonth - 1);
+        if (endStartMonth > 0)
+          daysInMonth = getDaysInMonth(endStartYear, endStartMonth - 1);
         else
-          daysInMonth = getDaysInMonth(end.startYear - 1, 11);
+          daysInMonth = getDaysInMonth(endStartYear - 1, 11);
 
-        durationDays = (daysInMonth - begin.startDay + end.startDay) % daysInMonth;
+        durationDays = (daysInMonth - beginStartDay + endStartDay) % daysInMonth;
 
         if (durationDays >= 31)
           throw new RuntimeException("Bug in time arithetic");
 
         dayOverflow = true;
       } else {
-        durationDays = end.startDay - begin.startDay;
+        durationDays = endStartDay - beginStartDay;
       }
     }
 
-    if (end.startMonth != null) {
-      int endStartMonth = end.startMonth;
-      if (dayOverflow)
-        endStartMonth--;
-      if (endStartMonth < begin.startMonth) {
-        durationMonths = (12 - begin.startMonth + endStartMonth);
-        monthOverflow = true;
-      } else
-        durationMonths = endStartMonth - begin.startMonth;
-    }
+    if (dayOverflow)
+      endStartMonth--;
+    if (endStartMonth < beginStartMonth) {
+      durationMonths = (12 - beginStartMonth + endStartMonth);
+      monthOverflow = true;
+    } else
+      durationMonths = endStartMonth - beginStartMonth;
 
     // years
-    durationYears = end.startYear - begin.startYear - (monthOverflow ? 1 : 0);
+    durationYears = endStartYear - beginStartYear - (monthOverflow ? 1 : 0);
 
     ts.setDurationDay(durationDays);
     ts.setDurationMonth(durationMonths);
@@ -304,12 +313,31 @@ public class TimeSpan implements Serializable {
    * time spans.
    * </p>
    * 
+   * <p>
+   * Time spans with a fixed duration are always returned as a new object, so
+   * that callers may keep the result without sharing it.
+   * </p>
+   * 
    * @return The canonicalized version of this time span.
    */
   public TimeSpan canonicalize() {
-    if (hasFixedDuration())
-      return TimeSpan.createFromInstants(getBegin(), getEnd());
-    return this;
+    if (!hasFixedDuration())
+      return this;
+    if (!canonical) {
+      TimeSpan ts = TimeSpan.createFromInstants(getBegin(), getEnd());
+      if (ts.getPackedBegin() != getPackedBegin()
+          || !ts.getDurationYear().equals(getDurationYear())
+          || !ts.getDurationMonth().equals(getDurationMonth())
+          || !ts.getDurationDay().equals(getDurationDay()))
+        return ts;
+      // spans are canonicalized on every change, so remember it
+      canonical = true;
+    }
+    // copying the fields is cheaper than computing the span again
+    TimeSpan copy = new TimeSpan(startYear, startMonth, startDay,
+        durationYear, durationMonth, durationDay);
+    copy.canonical = true;
+    return copy;
   }
 
   /**
@@ -335,6 +363,7 @@ public class TimeSpan implements Serializable {
       throw new IllegalArgumentException(
           "Days start with day 1 : " + startDay);
     this.startDay = startDay;
+    changed();
   }
 
   /**
@@ -362,6 +391,7 @@ public class TimeSpan implements Serializable {
           "Month number: "
               + startMonth);
     this.startMonth = startMonth;
+    changed();
   }
 
   /**
@@ -381,6 +411,15 @@ public class TimeSpan implements Serializable {
    */
   public void setStartYear(Integer startYear) {
     this.startYear = startYear;
+    changed();
+  }
+
+  /**
+   * Drops what was derived from the fields.
+   */
+  private void changed() {
+    packedEndValid = false;
+    canonical = false;
   }
 
   /**
@@ -421,6 +460,7 @@ public class TimeSpan implements Serializable {
       this.durationDay = null;
     else 
       this.durationDay = durationDay == 0 ? null : durationDay;
+    changed();
   }
 
   /**
@@ -447,6 +487,7 @@ public class TimeSpan implements Serializable {
       this.durationMonth = null;
     else
       this.durationMonth = durationMonth == 0 ? null : durationMonth;
+    changed();
   }
 
   /**
@@ -468,6 +509,7 @@ public class TimeSpan implements Serializable {
       this.durationYear = null;
     else
       this.durationYear = durationYear == 0 ? null : durationYear;
+    changed();
   }
 
   /**
@@ -526,6 +568,31 @@ public class TimeSpan implements Serializable {
     return end;
   }
 
+  /**
+   * Returns the beginning of this time span packed into a long.
+   * 
+   * @return The packed beginning.
+   * @see PackedTime
+   */
+  public long getPackedBegin() {
+    return PackedTime.pack(startYear, startMonth, startDay);
+  }
+
+  /**
+   * Returns the end of this time span packed into a long. It is computed once
+   * and kept until the time span is changed.
+   * 
+   * @return The packed end.
+   * @see PackedTime
+   */
+  public long getPackedEnd() {
+    if (!packedEndValid) {
+      packedEnd = getEnd().getPackedBegin();
+      packedEndValid = true;
+    }
+    return packedEnd;
+  }
+
   int newDay(int start, int duration, int daysInMonth) { 
     if (((start + duration) % daysInMonth) == 0)
       return daysInMonth;
@@ -540,17 +607,29 @@ public class TimeSpan implements Serializable {
    * @return Whether the instant falls into this time span.
    */
   public boolean contains(TimeInstant ti) {
+    return containsInstant(ti.getPackedBegin());
+  }
+
+  /**
+   * Tests whether a given point in time falls into this time span.
+   * 
+   * @param ti
+   *          The packed time instant to test.
+   * @return Whether the instant falls into this time span.
+   * @see PackedTime
+   */
+  public boolean containsInstant(long ti) {
     // test if beginning is later than this beginning
-    TimeInstant beginning = this.getBegin();
-    int compB = ti.compareTo(beginning);
-    if (compB == 0 || ti.canUnify(beginning))
+    long beginning = getPackedBegin();
+    int compB = PackedTime.compare(ti, beginning);
+    if (compB == 0 || PackedTime.canUnify(ti, beginning))
       return true;
     else if (compB < 0)
       return false;
 
-    TimeInstant end = this.getEnd();
-    int compE = ti.compareTo(end);
-    if (compE < 0 || ti.canUnify(end))
+    long end = getPackedEnd();
+    int compE = PackedTime.compare(ti, end);
+    if (compE < 0 || PackedTime.canUnify(ti, end))
       return true;
 
     return false;
@@ -565,7 +644,7 @@ public class TimeSpan implements Serializable {
    *          (the month)
    * @return the number of days in a month and year
    */
-  private static int getDaysInMonth(int year, int month) {
+  static int getDaysInMonth(int year, int month) {
     int daysInMonth = 0;
     switch (month) {
     case Calendar.JANUARY:
@@ -654,10 +733,8 @@ public class TimeSpan implements Serializable {
    * @see #contains(TimeInstant)
    */
   public boolean contains(TimeSpan ts) {
-    TimeInstant tsBeginning = ts.getBegin();
-    TimeInstant tsEnd = ts.getEnd();
-
-    return contains(tsBeginning) && contains(tsEnd);
+    return containsInstant(ts.getPackedBegin())
+        && containsInstant(ts.getPackedEnd());
   }
 
   /**
@@ -669,11 +746,11 @@ public class TimeSpan implements Serializable {
    * @return True if the two time spans overlap.
    */
   public boolean overlaps(TimeSpan ts) {
-    TimeInstant tsBeginning = ts.getBegin();
-    TimeInstant tsEnd = ts.getEnd();
+    long tsBeginning = ts.getPackedBegin();
+    long tsEnd = ts.getPackedEnd();
 
-    return (!this.getBegin().equals(tsBeginning) && contains(tsBeginning))
-        || (!this.getEnd().equals(tsEnd) && contains(tsEnd));
+    return (getPackedBegin() != tsBeginning && containsInstant(tsBeginning))
+        || (getPackedEnd() != tsEnd && containsInstant(tsEnd));
   }
 
   /**
@@ -687,7 +764,9 @@ public class TimeSpan implements Serializable {
 
   @Override
   public int hashCode() {
-    return toString().hashCode();
+    long begin = getPackedBegin();
+    long end = getPackedEnd();
+    return 31 * (int) (begin ^ (begin >>> 32)) + (int) (end ^ (end >>> 32));
   }
 
   @Override
@@ -697,8 +776,8 @@ public class TimeSpan implements Serializable {
 
     TimeSpan ts = (TimeSpan) obj;
 
-    return this.getBegin().equals(ts.getBegin())
-        && this.getEnd().equals(ts.getEnd());
+    return getPackedBegin() == ts.getPackedBegin()
+        && getPackedEnd() == ts.getPackedEnd();
   }
 
   @Override
@@ -40,6 +40,7 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.zip.CRC32;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 import java.util.zip.ZipOutputStream;
@@ -212,5 +213,42 @@ public class FileUtils {
 			   origin.close();
 		}
 	}
-  
+	
+	/**
+	 * Computes the CRC32 checksum of a file's content.
+	 * 
+	 * @param file The file.
+	 * @return The checksum.
+	 * @throws IOException
+	 */
+	public static long checksum(File file) throws IOException {
+		CRC32 crc = new CRC32();
+		InputStream in = new BufferedInputStream(new FileInputStream(file));
+		try {
+			byte[] buf = new byte[8192];
+			int len;
+			while ((len = in.read(buf)) > 0)
+				crc.update(buf, 0, len);
+		} finally {
+			in.close();
+		}
+		return crc.getValue();
+	}
+
+	/**
+	 * Moves a file into place, replacing the target. Written to a temporary 
+	 * file first and then moved, the target is never left partly written.
+	 * 
+	 * @param from The file to move.
+	 * @param to The file to replace.
+	 * @throws IOException
+	 */
+	public static void replaceFile(File from, File to) throws IOException {
+		// renaming onto an existing file fails on some platforms
+		if (!from.renameTo(to)) {
+			to.delete();
+			if (!from.renameTo(to))
+				throw new IOException("Could not rename " + from + " to " + to);
+		}
+	}
 }